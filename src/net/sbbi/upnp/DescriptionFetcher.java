@@ -0,0 +1,153 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.sbbi.upnp.devices.UPNPRootDevice;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Fetches and parses the discovered devices descriptions on a bounded pool of threads so that the SSDP reactor thread
+ * never waits for an HTTP server. Concurrent requests for the same description location share a single fetch.
+ * <br/>
+ * The number of fetching threads can be set with the net.sbbi.upnp.Discovery.fetchThreads system property.
+ *
+ * @version 1.0
+ */
+
+final class DescriptionFetcher {
+	private final static Logger log = Logger.getLogger(DescriptionFetcher.class);
+
+	public final static int DEFAULT_FETCH_THREADS = 8;
+
+	private final static DescriptionFetcher singleton = new DescriptionFetcher();
+
+	/**
+	 * Callback used to hand over a fetched device
+	 */
+	interface FetchHandler {
+		/**
+		 * Called by a fetching thread once the description has been parsed
+		 *
+		 * @param location
+		 *            the description location
+		 * @param device
+		 *            the parsed root device or null if the description could not be fetched or parsed
+		 */
+		public void deviceFetched(URL location, UPNPRootDevice device);
+	}
+
+	private final Map<String, List<FetchHandler>> inFlight = new HashMap<String, List<FetchHandler>>();
+	private final ThreadPoolExecutor executor;
+
+	private DescriptionFetcher() {
+		int threads = DEFAULT_FETCH_THREADS;
+		String prop = System.getProperty("net.sbbi.upnp.Discovery.fetchThreads");
+		if (prop != null)
+			threads = Integer.parseInt(prop);
+		executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Discovery fetcher " + (++count));
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	final static DescriptionFetcher getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Runs a description related task on the fetching threads
+	 *
+	 * @param task
+	 *            the task
+	 */
+	void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Queues a description fetch, the handler is attached to the running fetch if the location is already being fetched
+	 *
+	 * @param location
+	 *            the device description location
+	 * @param maxAge
+	 *            the device max-age
+	 * @param firmware
+	 *            the device firmware
+	 * @param usn
+	 *            the device discovery USN
+	 * @param udn
+	 *            the device discovery UDN
+	 * @param bootId
+	 *            the device BOOTID.UPNP.ORG value or null if not sent
+	 * @param configId
+	 *            the device CONFIGID.UPNP.ORG value or null if not sent
+	 * @param handler
+	 *            the handler to call once the fetch is done
+	 */
+	void fetch(final URL location, final String maxAge, final String firmware, final String usn, final String udn, final String bootId,
+			final String configId, FetchHandler handler) {
+		final String key = location.toExternalForm();
+		synchronized (inFlight) {
+			List<FetchHandler> handlers = inFlight.get(key);
+			if (handlers != null) {
+				handlers.add(handler);
+				return;
+			}
+			handlers = new ArrayList<FetchHandler>();
+			handlers.add(handler);
+			inFlight.put(key, handlers);
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				UPNPRootDevice device = null;
+				try {
+					device = new UPNPRootDevice(location, maxAge, firmware, usn, udn);
+					device.setDiscoveryIds(bootId, configId);
+					DeviceRegistry.getInstance().register(device);
+					SnapshotStore.getInstance().register(device);
+				} catch (Exception ex) {
+					log.error("Error occurred during UPNP root device object creation from location " + location, ex);
+				}
+				List<FetchHandler> handlers;
+				synchronized (inFlight) {
+					handlers = inFlight.remove(key);
+				}
+				for (Iterator<FetchHandler> i = handlers.iterator(); i.hasNext();) {
+					try {
+						i.next().deviceFetched(location, device);
+					} catch (RuntimeException ex) {
+						log.error("Unexpected error during fetched device " + location + " notification", ex);
+					}
+				}
+			}
+		});
+	}
+}
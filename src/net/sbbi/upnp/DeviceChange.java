@@ -0,0 +1,124 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sbbi.upnp.devices.UPNPDevice;
+import net.sbbi.upnp.devices.UPNPRootDevice;
+import net.sbbi.upnp.services.UPNPService;
+
+/**
+ * Difference between two versions of a root device built from a changed description. The services are matched by
+ * their owner device UDN, service id and service type.
+ *
+ * @version 1.0
+ */
+
+public class DeviceChange {
+	private final UPNPRootDevice oldDevice;
+	private final UPNPRootDevice newDevice;
+	private final List<UPNPService> addedServices;
+	private final List<UPNPService> removedServices;
+
+	DeviceChange(UPNPRootDevice oldDevice, UPNPRootDevice newDevice) {
+		this.oldDevice = oldDevice;
+		this.newDevice = newDevice;
+		Map<String, UPNPService> oldServices = getServices(oldDevice);
+		Map<String, UPNPService> newServices = getServices(newDevice);
+		addedServices = getMissing(newServices, oldServices);
+		removedServices = getMissing(oldServices, newServices);
+	}
+
+	/**
+	 * The replaced device
+	 *
+	 * @return the device built from the previous description
+	 */
+	public UPNPRootDevice getOldDevice() {
+		return oldDevice;
+	}
+
+	/**
+	 * The new device
+	 *
+	 * @return the device built from the changed description
+	 */
+	public UPNPRootDevice getNewDevice() {
+		return newDevice;
+	}
+
+	/**
+	 * The services of the new device which were not provided by the old one
+	 *
+	 * @return an unmodifiable list, empty if no service has been added
+	 */
+	public List<UPNPService> getAddedServices() {
+		return addedServices;
+	}
+
+	/**
+	 * The services of the old device which are not provided anymore by the new one
+	 *
+	 * @return an unmodifiable list, empty if no service has been removed
+	 */
+	public List<UPNPService> getRemovedServices() {
+		return removedServices;
+	}
+
+	@Override
+	public String toString() {
+		return newDevice.getUDN() + " changed, " + addedServices.size() + " services added, " + removedServices.size() + " services removed";
+	}
+
+	private static Map<String, UPNPService> getServices(UPNPRootDevice device) {
+		Map<String, UPNPService> rtrVal = new LinkedHashMap<String, UPNPService>();
+		addServices(device, rtrVal);
+		List<UPNPDevice> children = device.getChildDevices();
+		if (children != null) {
+			for (Iterator<UPNPDevice> i = children.iterator(); i.hasNext();) {
+				addServices(i.next(), rtrVal);
+			}
+		}
+		return rtrVal;
+	}
+
+	private static void addServices(UPNPDevice device, Map<String, UPNPService> services) {
+		List<UPNPService> deviceServices = device.getServices();
+		if (deviceServices == null) {
+			return;
+		}
+		for (Iterator<UPNPService> i = deviceServices.iterator(); i.hasNext();) {
+			UPNPService service = i.next();
+			services.put(device.getUDN() + '|' + service.getServiceId() + '|' + service.getServiceType(), service);
+		}
+	}
+
+	private static List<UPNPService> getMissing(Map<String, UPNPService> services, Map<String, UPNPService> others) {
+		List<UPNPService> rtrVal = null;
+		for (Iterator<Map.Entry<String, UPNPService>> i = services.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, UPNPService> entry = i.next();
+			if (!others.containsKey(entry.getKey())) {
+				if (rtrVal == null) {
+					rtrVal = new ArrayList<UPNPService>();
+				}
+				rtrVal.add(entry.getValue());
+			}
+		}
+		return rtrVal == null ? Collections.<UPNPService> emptyList() : Collections.unmodifiableList(rtrVal);
+	}
+}
@@ -0,0 +1,30 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+/**
+ * This interface can be registered against the DeviceRegistry class to be notified when the description of a stored
+ * device changed and the device has been built again.
+ *
+ * @version 1.0
+ */
+
+public interface DeviceChangeHandler {
+	/**
+	 * Method called when a stored device has been replaced, this method should return quickly since it is called by
+	 * the threads fetching the devices descriptions
+	 *
+	 * @param change
+	 *            the replaced and new devices and the services added or removed
+	 */
+	public void deviceChanged(DeviceChange change);
+}
@@ -0,0 +1,354 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.sbbi.upnp.devices.UPNPRootDevice;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process wide registry of the parsed UPNP root devices, keyed by their discovery UDN. When enabled the Discovery class
+ * reuses the devices stored here instead of fetching and parsing again their description, a device is kept until its
+ * max-age expires. The ssdp:alive messages received by the DiscoveryAdvertisement class reset the devices validity time
+ * and the ssdp:byebye messages remove them. The registry is bounded, the least recently used devices are evicted first.
+ * <br/>
+ * The devices keep the BOOTID.UPNP.ORG and CONFIGID.UPNP.ORG values of the search response they have been discovered
+ * with. When a device announces new values, its description is fetched again with a conditional request and only parsed if its content hash changed. The device is then replaced and the registered
+ * DeviceChangeHandler objects are notified of the services added or removed.
+ * <br/>
+ * The registry can be enabled with the net.sbbi.upnp.DeviceRegistry.enabled system property set to true and its size
+ * set with the net.sbbi.upnp.DeviceRegistry.maxSize system property.
+ *
+ * @version 1.0
+ */
+
+public class DeviceRegistry {
+	private final static Logger log = Logger.getLogger(DeviceRegistry.class);
+
+	public final static int DEFAULT_MAX_SIZE = 256;
+
+	private final static DeviceRegistry singleton = new DeviceRegistry();
+
+	private boolean enabled = false;
+	private boolean tracking = false;
+	private int maxSize = DEFAULT_MAX_SIZE;
+
+	private final Map<String, UPNPRootDevice> devices = new LinkedHashMap<String, UPNPRootDevice>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, UPNPRootDevice> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	private final Set<String> revalidating = new HashSet<String>();
+
+	private final List<DeviceChangeHandler> changeHandlers = new CopyOnWriteArrayList<DeviceChangeHandler>();
+
+	private final DiscoveryEventHandler advertisementHandler = new DiscoveryConfigEventHandler() {
+		public void eventSSDPAlive(String usn, String udn, String nt, String maxAge, URL location) {
+			eventSSDPAlive(usn, udn, nt, maxAge, location, null, null);
+		}
+
+		public void eventSSDPAlive(String usn, String udn, String nt, String maxAge, URL location, String bootId, String configId) {
+			UPNPRootDevice device;
+			synchronized (DeviceRegistry.this) {
+				device = devices.get(udn);
+				if (device == null) {
+					return;
+				}
+				if (!device.getDeviceDefLoc().equals(location)) {
+					// the device moved, it will be fetched again on next discovery
+					devices.remove(udn);
+					return;
+				}
+				device.resetValidityTime(maxAge);
+			}
+			if (bootId == null && configId == null) {
+				// UPNP 1.0 device, nothing tells that the description changed
+				return;
+			}
+			if (!sameId(bootId, device.getBootId()) || !sameId(configId, device.getConfigId())) {
+				revalidate(udn, device, maxAge, bootId, configId);
+			}
+		}
+
+		public void eventSSDPByeBye(String usn, String udn, String nt) {
+			remove(udn);
+		}
+	};
+
+	private DeviceRegistry() {
+		String prop = System.getProperty("net.sbbi.upnp.DeviceRegistry.enabled");
+		if (prop != null && prop.equals("true"))
+			enabled = true;
+		prop = System.getProperty("net.sbbi.upnp.DeviceRegistry.maxSize");
+		if (prop != null)
+			maxSize = Integer.parseInt(prop);
+	}
+
+	public final static DeviceRegistry getInstance() {
+		return singleton;
+	}
+
+	public synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables the registry, disabling it clears all the stored devices
+	 *
+	 * @param enabled
+	 *            true to enable the registry
+	 */
+	public void setEnabled(boolean enabled) {
+		synchronized (this) {
+			this.enabled = enabled;
+			if (enabled) {
+				return;
+			}
+			devices.clear();
+		}
+		stopTracking();
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Sets the maximum number of devices kept by the registry, the least recently used devices are evicted first
+	 *
+	 * @param maxSize
+	 *            the maximum number of devices
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Illegal maxSize " + maxSize);
+		}
+		this.maxSize = maxSize;
+		for (Iterator<String> i = devices.keySet().iterator(); devices.size() > maxSize && i.hasNext();) {
+			i.next();
+			i.remove();
+		}
+	}
+
+	/**
+	 * Looks for a still valid device
+	 *
+	 * @param udn
+	 *            the device discovery UDN
+	 * @param location
+	 *            the device description location
+	 * @return the stored device or null if the device is unknown, outdated or if its location changed
+	 */
+	public synchronized UPNPRootDevice lookup(String udn, URL location) {
+		UPNPRootDevice device = devices.get(udn);
+		if (device == null) {
+			return null;
+		}
+		if (device.getValidityTime() <= 0 || !device.getDeviceDefLoc().equals(location)) {
+			devices.remove(udn);
+			return null;
+		}
+		return device;
+	}
+
+	/**
+	 * Stores a device, the devices advertisements tracking is started with the first stored device
+	 *
+	 * @param device
+	 *            the device to store
+	 */
+	public void register(UPNPRootDevice device) {
+		String udn = device.getDiscoveryUDN() != null ? device.getDiscoveryUDN() : device.getUDN();
+		synchronized (this) {
+			if (!enabled) {
+				return;
+			}
+			devices.put(udn, device);
+		}
+		startTracking();
+	}
+
+	/**
+	 * Removes a device
+	 *
+	 * @param udn
+	 *            the device discovery UDN
+	 * @return the removed device or null if unknown
+	 */
+	public synchronized UPNPRootDevice remove(String udn) {
+		return devices.remove(udn);
+	}
+
+	/**
+	 * The still valid devices stored in the registry
+	 *
+	 * @return an array of UPNP Root device or null if the registry is empty
+	 */
+	public synchronized UPNPRootDevice[] getDevices() {
+		List<UPNPRootDevice> valid = new ArrayList<UPNPRootDevice>(devices.size());
+		for (Iterator<UPNPRootDevice> i = devices.values().iterator(); i.hasNext();) {
+			UPNPRootDevice device = i.next();
+			if (device.getValidityTime() > 0) {
+				valid.add(device);
+			} else {
+				i.remove();
+			}
+		}
+		if (valid.isEmpty()) {
+			return null;
+		}
+		return valid.toArray(new UPNPRootDevice[valid.size()]);
+	}
+
+	public synchronized int size() {
+		return devices.size();
+	}
+
+	public synchronized void clear() {
+		devices.clear();
+	}
+
+	/**
+	 * Registers a handler notified when a stored device is replaced because its description changed
+	 *
+	 * @param handler
+	 *            the handler
+	 */
+	public void addChangeHandler(DeviceChangeHandler handler) {
+		changeHandlers.add(handler);
+	}
+
+	public void removeChangeHandler(DeviceChangeHandler handler) {
+		changeHandlers.remove(handler);
+	}
+
+	/**
+	 * Checks in the background if the description of a device announcing new BOOTID.UPNP.ORG or CONFIGID.UPNP.ORG values
+	 * changed, with a conditional request using the description ETag and Last-Modified validators. The device is only
+	 * built again when the description content changed.
+	 */
+	private void revalidate(final String udn, final UPNPRootDevice device, final String maxAge, final String bootId, final String configId) {
+		synchronized (this) {
+			if (!revalidating.add(udn)) {
+				return;
+			}
+		}
+		DescriptionFetcher.getInstance().execute(new Runnable() {
+			public void run() {
+				try {
+					revalidateDevice(udn, device, maxAge, bootId, configId);
+				} catch (RuntimeException ex) {
+					log.error("Unexpected error during device " + udn + " revalidation", ex);
+				} finally {
+					synchronized (DeviceRegistry.this) {
+						revalidating.remove(udn);
+					}
+				}
+			}
+		});
+	}
+
+	private void revalidateDevice(String udn, UPNPRootDevice device, String maxAge, String bootId, String configId) {
+		URL location = device.getDeviceDefLoc();
+		DocumentFetcher.Response description;
+		try {
+			description = DocumentFetcher.getInstance().fetchIfModified(location, device.getDescriptionETag(), device.getDescriptionLastModified());
+		} catch (IOException ex) {
+			// the ids are not recorded, the next alive message will try again
+			if (log.isDebugEnabled())
+				log.debug("Unable to revalidate device " + udn + " description at " + location + ": " + ex.getMessage());
+			return;
+		}
+		if (description == null || description.getHash().equals(device.getDescriptionHash())) {
+			if (log.isDebugEnabled())
+				log.debug("Device " + udn + " description at " + location + " did not change");
+			device.setDiscoveryIds(bootId, configId);
+			SnapshotStore.getInstance().register(device);
+			return;
+		}
+		UPNPRootDevice newDevice;
+		try {
+			newDevice = new UPNPRootDevice(location, maxAge, device.getVendorFirmware(), device.getDiscoveryUSN(), device.getDiscoveryUDN(),
+					description);
+		} catch (Exception ex) {
+			log.error("Error occurred during UPNP root device object creation from location " + location, ex);
+			remove(udn);
+			return;
+		}
+		newDevice.setDiscoveryIds(bootId, configId);
+		synchronized (this) {
+			if (devices.get(udn) != device) {
+				// removed or replaced meanwhile
+				return;
+			}
+			devices.put(udn, newDevice);
+		}
+		SnapshotStore.getInstance().register(newDevice);
+		DeviceChange change = new DeviceChange(device, newDevice);
+		if (log.isDebugEnabled())
+			log.debug(change);
+		for (Iterator<DeviceChangeHandler> i = changeHandlers.iterator(); i.hasNext();) {
+			try {
+				i.next().deviceChanged(change);
+			} catch (RuntimeException ex) {
+				log.error("Unexpected error during device " + udn + " change notification", ex);
+			}
+		}
+	}
+
+	private static boolean sameId(String value, String other) {
+		return value == null ? other == null : value.equals(other);
+	}
+
+	private void startTracking() {
+		synchronized (this) {
+			if (tracking) {
+				return;
+			}
+			tracking = true;
+		}
+		SSDPEventDispatcher.getInstance().setInline(advertisementHandler);
+		try {
+			DiscoveryAdvertisement.getInstance().registerEvent(DiscoveryAdvertisement.EVENT_SSDP_ALIVE, null, advertisementHandler);
+			DiscoveryAdvertisement.getInstance().registerEvent(DiscoveryAdvertisement.EVENT_SSDP_BYE_BYE, null, advertisementHandler);
+		} catch (IOException ex) {
+			// the devices will only expire with their max-age
+			log.warn("Unable to track devices advertisements, registry entries will only expire with their max-age", ex);
+		}
+	}
+
+	private void stopTracking() {
+		synchronized (this) {
+			if (!tracking) {
+				return;
+			}
+			tracking = false;
+		}
+		DiscoveryAdvertisement.getInstance().unRegisterEvent(DiscoveryAdvertisement.EVENT_SSDP_ALIVE, null, advertisementHandler);
+		DiscoveryAdvertisement.getInstance().unRegisterEvent(DiscoveryAdvertisement.EVENT_SSDP_BYE_BYE, null, advertisementHandler);
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import net.sbbi.upnp.devices.UPNPRootDevice;
+
+/**
+ * This interface can be used with the Discovery.discoverAsync() methods to receive the discovered devices as soon as
+ * their description has been parsed.
+ *
+ * @version 1.0
+ */
+
+public interface DiscoveredDeviceHandler {
+	/**
+	 * Method called when a new device has been discovered, this method should return quickly since it is called by the
+	 * threads fetching the devices descriptions
+	 *
+	 * @param device
+	 *            the discovered root device
+	 */
+	public void discoveredRootDevice(UPNPRootDevice device);
+}
@@ -12,16 +12,11 @@
 package net.sbbi.upnp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
-import java.net.URL;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 
 import net.sbbi.upnp.devices.UPNPRootDevice;
 
@@ -33,6 +28,14 @@ import org.apache.log4j.Logger;
  * net.sbbi.upnp.Discovery.bindPort system property to specify another port. The discovery methods only accept matching
  * device description and broadcast message response IP to avoid a security flaw with the protocol. If you are not happy
  * with such behaviour you can set the net.sbbi.upnp.ddos.matchip system property to false to avoid this check.
+ * <br/>
+ * The search message is sent again a few times during the first part of the MX window to cope with lost datagrams,
+ * the number of retransmissions can be set with the net.sbbi.upnp.Discovery.retransmissions system property. The
+ * synchronous discover() methods end as soon as the devices stop answering, according to the response delays observed
+ * on the same network by the previous discoveries.
+ * <br/>
+ * The services SCPD documents of the discovered devices can be fetched in the background as soon as the devices are
+ * found, by setting the net.sbbi.upnp.devices.UPNPRootDevice.prefetchSCPD system property to true.
  * 
  * @author <a href="mailto:superbonbon@sbbi.net">SuperBonBon</a>
  * @version 1.0
@@ -53,6 +56,8 @@ public class Discovery {
 	public final static String SSDP_IP = "239.255.255.250";
 	public final static int SSDP_PORT = 1900;
 
+	private static ScheduledExecutorService scheduler;
+
 	/**
 	 * Devices discovering on all network interfaces with default values, all root devices will be searched
 	 * 
@@ -144,69 +149,91 @@ public class Discovery {
 		return discoverDevices(timeOut, ttl, mx, searchTarget, ni);
 	}
 
-	private static UPNPRootDevice[] discoverDevices(int timeOut, int ttl, int mx, String searchTarget, NetworkInterface ni) throws IOException {
+	/**
+	 * Asynchronous devices discovering on all network interfaces with the default timeout, ttl and mx values, the
+	 * method returns as soon as the search messages are sent.
+	 * 
+	 * @param searchTarget
+	 *            the device URI to search
+	 * @param policy
+	 *            the discovery completion policy, null to wait for the whole timeout
+	 * @param handler
+	 *            an optional handler receiving each device as soon as its description is parsed, can be null
+	 * @return a future completed when the discovery ends, its get() methods return the matching devices or null if
+	 *         nothing found
+	 * @throws IOException
+	 *             if some IOException occurs during discovering
+	 */
+	public static DiscoveryFuture discoverAsync(String searchTarget, DiscoveryPolicy policy, DiscoveredDeviceHandler handler) throws IOException {
+		return discoverAsync(DEFAULT_TIMEOUT, DEFAULT_TTL, DEFAULT_MX, searchTarget, null, policy, handler);
+	}
+
+	/**
+	 * Asynchronous devices discovering with a given timeout and a given root device to search on an given network
+	 * interface, as well as a ttl and mx param, the method returns as soon as the search messages are sent.
+	 * 
+	 * @param timeOut
+	 *            the maximum time allowed for the devices to give a response
+	 * @param ttl
+	 *            the UDP socket packets time to live
+	 * @param mx
+	 *            discovery message mx http header field value
+	 * @param searchTarget
+	 *            the device URI to search
+	 * @param ni
+	 *            the networkInterface where to search devices, null to lookup all interfaces
+	 * @param policy
+	 *            the discovery completion policy, null to wait for the whole timeout
+	 * @param handler
+	 *            an optional handler receiving each device as soon as its description is parsed, can be null
+	 * @return a future completed when the discovery ends, its get() methods return the matching devices or null if
+	 *         nothing found
+	 * @throws IOException
+	 *             if some IOException occurs during discovering
+	 */
+	public static DiscoveryFuture discoverAsync(int timeOut, int ttl, int mx, String searchTarget, NetworkInterface ni, DiscoveryPolicy policy, DiscoveredDeviceHandler handler) throws IOException {
 		if (searchTarget == null || searchTarget.trim().length() == 0) {
 			throw new IllegalArgumentException("Illegal searchTarget");
 		}
-		final Map<String, UPNPRootDevice> devices = new HashMap<String, UPNPRootDevice>();
-
-		DiscoveryResultsHandler handler = new DiscoveryResultsHandler() {
-			public void discoveredDevice(String usn, String udn, String nt, String maxAge, URL location, String firmware) {
-				synchronized (devices) {
-					if (!devices.containsKey(usn)) {
-						try {
-							UPNPRootDevice device = new UPNPRootDevice(location, maxAge, firmware, usn, udn);
-							devices.put(usn, device);
-						} catch (Exception ex) {
-							log.error("Error occurred during UPNP root device object creation from location " + location, ex);
-						}
-					}
-				}
-			}
-		};
-
-		DiscoveryListener.getInstance().registerResultsHandler(handler, searchTarget);
-		if (ni == null) {
-			for (Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces(); e.hasMoreElements();) {
-				NetworkInterface intf = e.nextElement();
-				for (Enumeration<InetAddress> adrs = intf.getInetAddresses(); adrs.hasMoreElements();) {
-					InetAddress adr = adrs.nextElement();
-					if (adr instanceof Inet4Address && !adr.isLoopbackAddress()) {
-						try {
-							sendSearchMessage(adr, ttl, mx, searchTarget);
-						} catch (IOException ioe) {
-							// Probably 'No route to host' so just ignore this interface and keep going...
-						}
-					}
-				}
-			}
-		} else {
-			for (Enumeration<InetAddress> adrs = ni.getInetAddresses(); adrs.hasMoreElements();) {
-				InetAddress adr = adrs.nextElement();
-				if (adr instanceof Inet4Address && !adr.isLoopbackAddress()) {
-					try {
-						sendSearchMessage(adr, ttl, mx, searchTarget);
-					} catch (IOException ioe) {
-						// Probably 'No route to host' so just ignore this interface and keep going...
-					}
-				}
-			}
+		if (policy == null) {
+			policy = DiscoveryPolicy.TIMEOUT;
 		}
+		DiscoveryFuture future = new DiscoveryFuture(searchTarget, policy, handler);
+		future.start(timeOut, ttl, mx, ni);
+		return future;
+	}
+
+	private static UPNPRootDevice[] discoverDevices(int timeOut, int ttl, int mx, String searchTarget, NetworkInterface ni) throws IOException {
+		DiscoveryFuture future = discoverAsync(timeOut, ttl, mx, searchTarget, ni, DiscoveryPolicy.ADAPTIVE, null);
 		try {
-			Thread.sleep(timeOut);
+			return future.get();
 		} catch (InterruptedException ex) {
 			// don't care
+			future.stop();
+			return future.getDiscoveredDevices();
 		}
-		DiscoveryListener.getInstance().unRegisterResultsHandler(handler, searchTarget);
-		if (devices.isEmpty()) {
-			return null;
-		}
-		int j = 0;
-		UPNPRootDevice[] rootDevices = new UPNPRootDevice[devices.size()];
-		for (Iterator<UPNPRootDevice> i = devices.values().iterator(); i.hasNext();) {
-			rootDevices[j++] = i.next();
+	}
+
+	/**
+	 * Scheduler used to complete the asynchronous discoveries
+	 * 
+	 * @return the shared scheduler
+	 */
+	static ScheduledExecutorService getScheduler() {
+		synchronized (Discovery.class) {
+			if (scheduler == null) {
+				ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread deamon = new Thread(r, "Discovery scheduler");
+						deamon.setDaemon(true);
+						return deamon;
+					}
+				});
+				executor.setRemoveOnCancelPolicy(true);
+				scheduler = executor;
+			}
+			return scheduler;
 		}
-		return rootDevices;
 	}
 
 	/**
@@ -224,31 +251,7 @@ public class Discovery {
 	 *             if some IO errors occurs during search
 	 */
 	public static void sendSearchMessage(InetAddress src, int ttl, int mx, String searchTarget) throws IOException {
-		int bindPort = DEFAULT_SSDP_SEARCH_PORT;
-		String port = System.getProperty("net.sbbi.upnp.Discovery.bindPort");
-		if (port != null) {
-			bindPort = Integer.parseInt(port);
-		}
-		InetAddress groupAdr = InetAddress.getByName(Discovery.SSDP_IP);
-		InetSocketAddress adr = new InetSocketAddress(groupAdr, Discovery.SSDP_PORT);
-		InetSocketAddress bindAdr = new InetSocketAddress(src, bindPort);
-
-		java.net.MulticastSocket skt = new java.net.MulticastSocket(bindAdr);
-//		skt.joinGroup(groupAdr);
-		skt.setTimeToLive(ttl);
-		StringBuffer packet = new StringBuffer();
-		packet.append("M-SEARCH * HTTP/1.1\r\n");
-		packet.append("HOST: 239.255.255.250:1900\r\n");
-		packet.append("MAN: \"ssdp:discover\"\r\n");
-		packet.append("MX: ").append(mx).append("\r\n");
-		packet.append("ST: ").append(searchTarget).append("\r\n").append("\r\n");
-		if (log.isDebugEnabled())
-			log.debug("Sending discovery message on 239.255.255.250:1900 multicast address form ip " + src.getHostAddress() + ":\n" + packet.toString());
-		String toSend = packet.toString();
-		byte[] pk = toSend.getBytes();
-		skt.send(new DatagramPacket(pk, pk.length, adr));
-		skt.disconnect();
-		skt.close();
+		SearchSender.getInstance().send(src, ttl, mx, searchTarget);
 	}
 
 }
@@ -12,13 +12,10 @@
 package net.sbbi.upnp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.channels.DatagramChannel;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -26,28 +23,41 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 
 /**
- * SSDP messages listener Thread, notify registered objects implementing the interface DiscoveryEventHandler</br> when a
- * device joins the networks or leaves it.<br/>
+ * SSDP messages listener, notify registered objects implementing the interface DiscoveryEventHandler</br> when a device
+ * joins the networks or leaves it.<br/>
  * The listener thread is set to only accept matching device description and broadcast message sender IP to avoid a
  * security flaw with the protocol. If you are not happy with such behaviour you can set the net.sbbi.upnp.ddos.matchip
- * system property to false to avoid this check.
+ * system property to false to avoid this check.<br/>
+ * The NOTIFY datagrams repeated by a device within one second are dropped before being parsed, the window can be set
+ * with the net.sbbi.upnp.DiscoveryAdvertisement.duplicateWindow system property ( 0 to disable ). The alive messages
+ * sent by a device for each of its NT can also be merged into a single event for the handlers registered for all the
+ * NT types, see setMergeAliveWindow().<br/>
+ * The handlers implementing DiscoveryConfigEventHandler also receive the BOOTID.UPNP.ORG and CONFIGID.UPNP.ORG header
+ * values of the alive messages.
  * 
  * @author <a href="mailto:superbonbon@sbbi.net">SuperBonBon</a>
  * @version 1.0
  */
 
-public class DiscoveryAdvertisement implements Runnable {
+public class DiscoveryAdvertisement {
 	private final static Logger log = Logger.getLogger(DiscoveryAdvertisement.class);
 
 	private static boolean MATCH_IP = true;
 
+	public final static long DEFAULT_DUPLICATE_WINDOW = 1000;
+
+	private static long DUPLICATE_WINDOW = DEFAULT_DUPLICATE_WINDOW;
+
 	static {
 		String prop = System.getProperty("net.sbbi.upnp.ddos.matchip");
 		if (prop != null && prop.equals("false"))
 			MATCH_IP = false;
+		prop = System.getProperty("net.sbbi.upnp.DiscoveryAdvertisement.duplicateWindow");
+		if (prop != null)
+			DUPLICATE_WINDOW = Long.parseLong(prop);
 	}
 
-	private static final int DEFAULT_TIMEOUT = 250;
+	private final static int MERGED_ALIVE_SWEEP_SIZE = 1024;
 
 	public final static int EVENT_SSDP_ALIVE = 0;
 	public final static int EVENT_SSDP_BYE_BYE = 1;
@@ -56,28 +66,63 @@ public class DiscoveryAdvertisement implements Runnable {
 	private final static String NTS_SSDP_BYE_BYE = "ssdp:byebye";
 	private final static String NT_ALL_EVENTS = "DiscoveryAdvertisement:nt:allevents";
 
-	private final Map<String, Set<DiscoveryEventHandler>> byeByeRegistered = new HashMap<String, Set<DiscoveryEventHandler>>();
-	private final Map<String, Set<DiscoveryEventHandler>> aliveRegistered = new HashMap<String, Set<DiscoveryEventHandler>>();
+	private final HandlerRegistry<DiscoveryEventHandler> byeByeRegistered = new HandlerRegistry<DiscoveryEventHandler>();
+	private final HandlerRegistry<DiscoveryEventHandler> aliveRegistered = new HandlerRegistry<DiscoveryEventHandler>();
 	private final Map<String, InetAddress> USNPerIP = new HashMap<String, InetAddress>();
 
 	private final Object REGISTRATION_PROCESS = new Object();
 
 	private final static DiscoveryAdvertisement singleton = new DiscoveryAdvertisement();
 	private boolean inService = false;
-	private boolean daemon = true;
 
-	private java.net.MulticastSocket skt;
-	private DatagramPacket input;
+	private DatagramChannel channel;
+
+	// only used by the SSDP reactor thread
+	private final SSDPMessage msg = new SSDPMessage();
+	private final DuplicateFilter duplicates = DUPLICATE_WINDOW > 0 ? new DuplicateFilter(DUPLICATE_WINDOW) : null;
+	private final Map<String, Long> mergedAlive = new HashMap<String, Long>();
+
+	private volatile long mergeAliveWindow = 0;
 
 	private DiscoveryAdvertisement() {
+		String prop = System.getProperty("net.sbbi.upnp.DiscoveryAdvertisement.mergeAliveWindow");
+		if (prop != null)
+			mergeAliveWindow = Long.parseLong(prop);
 	}
 
 	public final static DiscoveryAdvertisement getInstance() {
 		return singleton;
 	}
 
+	/**
+	 * Sets the listener as a daemon thread, the SSDP messages are received by a thread shared with the
+	 * DiscoveryListener class so this setting applies to both of them
+	 * 
+	 * @param daemon
+	 *            daemon thread
+	 */
 	public void setDaemon(boolean daemon) {
-		this.daemon = daemon;
+		SSDPReactor.getInstance().setDaemon(daemon);
+	}
+
+	/**
+	 * Merges the alive messages of a device into a single event for the handlers registered for all the NT types, the
+	 * first alive message received for a device UDN is delivered and the others are skipped during the given window.
+	 * The handlers registered for a given NT still receive every message with this NT. The default window can be set
+	 * with the net.sbbi.upnp.DiscoveryAdvertisement.mergeAliveWindow system property.
+	 * 
+	 * @param mergeAliveWindow
+	 *            the delay in ms during which the alive messages of a device are merged, 0 to deliver every message
+	 */
+	public void setMergeAliveWindow(long mergeAliveWindow) {
+		if (mergeAliveWindow < 0) {
+			throw new IllegalArgumentException("Illegal mergeAliveWindow " + mergeAliveWindow);
+		}
+		this.mergeAliveWindow = mergeAliveWindow;
+	}
+
+	public long getMergeAliveWindow() {
+		return mergeAliveWindow;
 	}
 
 	/**
@@ -97,23 +142,13 @@ public class DiscoveryAdvertisement implements Runnable {
 	public void registerEvent(int notificationEvent, String nt, DiscoveryEventHandler eventHandler) throws IOException {
 		synchronized (REGISTRATION_PROCESS) {
 			if (!inService)
-				startDevicesListenerThread();
+				startDevicesListener();
 			if (nt == null)
 				nt = NT_ALL_EVENTS;
 			if (notificationEvent == EVENT_SSDP_ALIVE) {
-				Set<DiscoveryEventHandler> handlers = aliveRegistered.get(nt);
-				if (handlers == null) {
-					handlers = new HashSet<DiscoveryEventHandler>();
-					aliveRegistered.put(nt, handlers);
-				}
-				handlers.add(eventHandler);
+				aliveRegistered.add(nt, eventHandler);
 			} else if (notificationEvent == EVENT_SSDP_BYE_BYE) {
-				Set<DiscoveryEventHandler> handlers = byeByeRegistered.get(nt);
-				if (handlers == null) {
-					handlers = new HashSet<DiscoveryEventHandler>();
-					byeByeRegistered.put(nt, handlers);
-				}
-				handlers.add(eventHandler);
+				byeByeRegistered.add(nt, eventHandler);
 			} else {
 				throw new IllegalArgumentException("Unknown notificationEvent type");
 			}
@@ -137,128 +172,139 @@ public class DiscoveryAdvertisement implements Runnable {
 			if (nt == null)
 				nt = NT_ALL_EVENTS;
 			if (notificationEvent == EVENT_SSDP_ALIVE) {
-				Set<DiscoveryEventHandler> handlers = aliveRegistered.get(nt);
-				if (handlers != null) {
-					handlers.remove(eventHandler);
-					if (handlers.size() == 0) {
-						aliveRegistered.remove(nt);
-					}
-				}
+				aliveRegistered.remove(nt, eventHandler);
 			} else if (notificationEvent == EVENT_SSDP_BYE_BYE) {
-				Set<DiscoveryEventHandler> handlers = byeByeRegistered.get(nt);
-				if (handlers != null) {
-					handlers.remove(eventHandler);
-					if (handlers.size() == 0) {
-						byeByeRegistered.remove(nt);
-					}
-				}
+				byeByeRegistered.remove(nt, eventHandler);
 			} else {
 				throw new IllegalArgumentException("Unknown notificationEvent type");
 			}
-			if (aliveRegistered.size() == 0 && byeByeRegistered.size() == 0) {
-				stopDevicesListenerThread();
+			if (aliveRegistered.isEmpty() && byeByeRegistered.isEmpty()) {
+				stopDevicesListener();
 			}
 		}
 	}
 
-	private void startDevicesListenerThread() throws IOException {
+	private void startDevicesListener() throws IOException {
 		synchronized (singleton) {
 			if (!inService) {
-				this.startMultiCastSocket();
-				Thread deamon = new Thread(this, "DiscoveryAdvertisement daemon");
-				deamon.setDaemon(daemon);
-				deamon.start();
-				// wait for the thread to be started
-				while (!inService) {
-					// let's wait a few ms
-					try {
-						Thread.sleep(2);
-					} catch (InterruptedException ex) {
-						// don t care
+				channel = SSDPReactor.openMulticastChannel(Discovery.SSDP_PORT);
+				SSDPReactor.getInstance().register(channel, new SSDPReactor.DatagramHandler() {
+					public void datagramReceived(byte[] data, int length, InetAddress from) throws IOException {
+						listenBroadCast(data, length, from);
 					}
-				}
+				});
+				inService = true;
 			}
 		}
 	}
 
-	private void stopDevicesListenerThread() {
+	private void stopDevicesListener() {
 		synchronized (singleton) {
-			inService = false;
+			if (inService) {
+				SSDPReactor.getInstance().unRegister(channel);
+				channel = null;
+				inService = false;
+			}
 		}
 	}
 
-	private void startMultiCastSocket() throws IOException {
-
-		skt = new java.net.MulticastSocket(null);
-		skt.bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), Discovery.SSDP_PORT));
-		skt.setTimeToLive(Discovery.DEFAULT_TTL);
-		skt.setSoTimeout(DEFAULT_TIMEOUT);
-		skt.joinGroup(InetAddress.getByName(Discovery.SSDP_IP));
-
-		byte[] buf = new byte[2048];
-		input = new DatagramPacket(buf, buf.length);
-
-	}
-
-	public void run() {
-		if (!Thread.currentThread().getName().equals("DiscoveryAdvertisement daemon")) {
-			throw new RuntimeException("No right to call this method");
+	/**
+	 * Tells if an alive message of a device has already been delivered to the handlers registered for all the NT types
+	 * during the merge window
+	 */
+	private boolean isMergedAlive(String udn) {
+		long window = mergeAliveWindow;
+		if (window == 0) {
+			return false;
 		}
-		inService = true;
-		while (inService) {
-			try {
-				listenBroadCast();
-			} catch (SocketTimeoutException ex) {
-				// ignoring
-			} catch (IOException ioEx) {
-				log.error("IO Exception during UPNP DiscoveryAdvertisement messages listening thread", ioEx);
-			} catch (Exception ex) {
-				log.error("Fatal Error during UPNP DiscoveryAdvertisement messages listening thread, thread will exit", ex);
-				inService = false;
-				aliveRegistered.clear();
-				byeByeRegistered.clear();
-				USNPerIP.clear();
+		long now = System.currentTimeMillis();
+		Long delivered = mergedAlive.get(udn);
+		if (delivered != null && now - delivered.longValue() <= window) {
+			return true;
+		}
+		if (mergedAlive.size() >= MERGED_ALIVE_SWEEP_SIZE) {
+			for (Iterator<Long> i = mergedAlive.values().iterator(); i.hasNext();) {
+				if (now - i.next().longValue() > window) {
+					i.remove();
+				}
 			}
 		}
+		mergedAlive.put(udn, Long.valueOf(now));
+		return false;
+	}
 
-		try {
-			skt.leaveGroup(InetAddress.getByName(Discovery.SSDP_IP));
-			skt.close();
-		} catch (Exception ex) {
-			// ignoring
+	private void dispatchAlive(Set<DiscoveryEventHandler> handlers, final String usn, final String udn, final String nt,
+			final String maxAge, final URL loc, final String bootId, final String configId) {
+		SSDPEventDispatcher dispatcher = SSDPEventDispatcher.getInstance();
+		for (Iterator<DiscoveryEventHandler> i = handlers.iterator(); i.hasNext();) {
+			final DiscoveryEventHandler eventHandler = i.next();
+			dispatcher.dispatch(eventHandler, new Runnable() {
+				public void run() {
+					if (eventHandler instanceof DiscoveryConfigEventHandler) {
+						((DiscoveryConfigEventHandler) eventHandler).eventSSDPAlive(usn, udn, nt, maxAge, loc, bootId, configId);
+					} else {
+						eventHandler.eventSSDPAlive(usn, udn, nt, maxAge, loc);
+					}
+				}
+			});
 		}
 	}
 
-	private void listenBroadCast() throws IOException {
+	private void dispatchByeBye(Set<DiscoveryEventHandler> handlers, final String usn, final String udn, final String nt) {
+		SSDPEventDispatcher dispatcher = SSDPEventDispatcher.getInstance();
+		for (Iterator<DiscoveryEventHandler> i = handlers.iterator(); i.hasNext();) {
+			final DiscoveryEventHandler eventHandler = i.next();
+			dispatcher.dispatch(eventHandler, new Runnable() {
+				public void run() {
+					eventHandler.eventSSDPByeBye(usn, udn, nt);
+				}
+			});
+		}
+	}
 
-		skt.receive(input);
-		InetAddress from = input.getAddress();
-		String received = new String(input.getData(), input.getOffset(), input.getLength());
-		HttpResponse msg = null;
-		try {
-			msg = new HttpResponse(received);
-		} catch (IllegalArgumentException ex) {
+	private void listenBroadCast(byte[] data, int length, InetAddress from) throws IOException {
+		SSDPStatistics stats = SSDPStatistics.getInstance();
+		if (duplicates != null && duplicates.isDuplicate(data, length, from)) {
+			stats.datagramDuplicate();
+			return;
+		}
+		if (!msg.parse(data, length)) {
 			// crappy http sent
+			stats.datagramRejected();
 			if (log.isDebugEnabled())
-				log.debug("Skipping uncompliant HTTP message " + received);
+				log.debug("Skipping uncompliant HTTP message " + msg);
 			return;
 		}
-		String header = msg.getHeader();
-		if (header != null && header.startsWith("NOTIFY")) {
+		stats.datagramParsed();
+		if (!processMessage(from)) {
+			stats.datagramRejected();
+		}
+	}
+
+	/**
+	 * Processes the last parsed message, the messages other than NOTIFY are ignored
+	 * 
+	 * @param from
+	 *            the message sender address
+	 * @return false if the message is an invalid NOTIFY message
+	 * @throws IOException
+	 *             if some error occurs during the message processing
+	 */
+	private boolean processMessage(InetAddress from) throws IOException {
+		if (msg.isNotify()) {
 			if (log.isDebugEnabled())
-				log.debug(received);
-			String ntsField = msg.getHTTPHeaderField("nts");
-			if (ntsField == null || ntsField.trim().length() == 0) {
+				log.debug(msg);
+			if (!msg.hasField(SSDPMessage.NTS)) {
 				if (log.isDebugEnabled())
 					log.debug("Skipping SSDP message, missing HTTP header 'ntsField' field");
-				return;
+				return false;
 			}
-			if (ntsField.equals(NTS_SSDP_ALIVE)) {
-				String deviceDescrLoc = msg.getHTTPHeaderField("location");
+			if (msg.fieldEquals(SSDPMessage.NTS, NTS_SSDP_ALIVE)) {
+				String deviceDescrLoc = msg.getField(SSDPMessage.LOCATION);
 				if (deviceDescrLoc == null || deviceDescrLoc.trim().length() == 0) {
 					if (log.isDebugEnabled())
 						log.debug("Skipping SSDP message, missing HTTP header 'location' field");
-					return;
+					return false;
 				}
 				URL loc = new URL(deviceDescrLoc);
 				if (MATCH_IP) {
@@ -268,62 +314,57 @@ public class DiscoveryAdvertisement implements Runnable {
 								" does not match device description IP " + locHost +
 								" skipping message, set the net.sbbi.upnp.ddos.matchip system property" +
 								" to false to avoid this check");
-						return;
+						return false;
 					}
 				}
 
-				String nt = msg.getHTTPHeaderField("nt");
+				String nt = msg.getField(SSDPMessage.NT);
 				if (nt == null || nt.trim().length() == 0) {
 					if (log.isDebugEnabled())
 						log.debug("Skipping SSDP message, missing HTTP header 'nt' field");
-					return;
+					return false;
 				}
-				String maxAge = msg.getHTTPFieldElement("Cache-Control", "max-age");
+				String maxAge = msg.getMaxAge();
 				if (maxAge == null || maxAge.trim().length() == 0) {
 					if (log.isDebugEnabled())
 						log.debug("Skipping SSDP message, missing HTTP header 'max-age' field");
-					return;
+					return false;
 				}
-				String usn = msg.getHTTPHeaderField("usn");
+				String usn = msg.getField(SSDPMessage.USN);
 				if (usn == null || usn.trim().length() == 0) {
 					if (log.isDebugEnabled())
 						log.debug("Skipping SSDP message, missing HTTP header 'usn' field");
-					return;
+					return false;
 				}
 
+				String bootId = msg.getField(SSDPMessage.BOOTID);
+				String configId = msg.getField(SSDPMessage.CONFIGID);
+
 				USNPerIP.put(usn, from);
 				String udn = usn;
 				int index = udn.indexOf("::");
 				if (index != -1)
 					udn = udn.substring(0, index);
-				synchronized (REGISTRATION_PROCESS) {
-					Set<DiscoveryEventHandler> handlers = aliveRegistered.get(NT_ALL_EVENTS);
-					if (handlers != null) {
-						for (Iterator<DiscoveryEventHandler> i = handlers.iterator(); i.hasNext();) {
-							DiscoveryEventHandler eventHandler = i.next();
-							eventHandler.eventSSDPAlive(usn, udn, nt, maxAge, loc);
-						}
-					}
-					handlers = aliveRegistered.get(nt);
-					if (handlers != null) {
-						for (Iterator<DiscoveryEventHandler> i = handlers.iterator(); i.hasNext();) {
-							DiscoveryEventHandler eventHandler = i.next();
-							eventHandler.eventSSDPAlive(usn, udn, nt, maxAge, loc);
-						}
-					}
+				Set<DiscoveryEventHandler> handlers = aliveRegistered.get(NT_ALL_EVENTS);
+				if (handlers != null && !isMergedAlive(udn)) {
+					dispatchAlive(handlers, usn, udn, nt, maxAge, loc, bootId, configId);
 				}
-			} else if (ntsField.equals(NTS_SSDP_BYE_BYE)) {
-				String usn = msg.getHTTPHeaderField("usn");
+				handlers = aliveRegistered.get(nt);
+				if (handlers != null) {
+					dispatchAlive(handlers, usn, udn, nt, maxAge, loc, bootId, configId);
+				}
+			} else if (msg.fieldEquals(SSDPMessage.NTS, NTS_SSDP_BYE_BYE)) {
+				String usn = msg.getField(SSDPMessage.USN);
 				if (usn == null || usn.trim().length() == 0) {
 					if (log.isDebugEnabled())
 						log.debug("Skipping SSDP message, missing HTTP header 'usn' field");
-					return;
+					return false;
 				}
-				String nt = msg.getHTTPHeaderField("nt");
+				String nt = msg.getField(SSDPMessage.NT);
 				if (nt == null || nt.trim().length() == 0) {
 					if (log.isDebugEnabled())
 						log.debug("Skipping SSDP message, missing HTTP header 'nt' field");
-					return;
+					return false;
 				}
 
 				InetAddress originalAliveSenderIp = USNPerIP.get(usn);
@@ -334,7 +375,7 @@ public class DiscoveryAdvertisement implements Runnable {
 					if (!originalAliveSenderIp.equals(from)) {
 						// someone else is trying to say that the usn is leaving
 						// since IP do not match we skip the message
-						return;
+						return false;
 					}
 				}
 
@@ -342,25 +383,19 @@ public class DiscoveryAdvertisement implements Runnable {
 				int index = udn.indexOf("::");
 				if (index != -1)
 					udn = udn.substring(0, index);
-				synchronized (REGISTRATION_PROCESS) {
-					Set<DiscoveryEventHandler> handlers = byeByeRegistered.get(NT_ALL_EVENTS);
-					if (handlers != null) {
-						for (Iterator<DiscoveryEventHandler> i = handlers.iterator(); i.hasNext();) {
-							DiscoveryEventHandler eventHandler = i.next();
-							eventHandler.eventSSDPByeBye(usn, udn, nt);
-						}
-					}
-					handlers = byeByeRegistered.get(nt);
-					if (handlers != null) {
-						for (Iterator<DiscoveryEventHandler> i = handlers.iterator(); i.hasNext();) {
-							DiscoveryEventHandler eventHandler = i.next();
-							eventHandler.eventSSDPByeBye(usn, udn, nt);
-						}
-					}
+				Set<DiscoveryEventHandler> handlers = byeByeRegistered.get(NT_ALL_EVENTS);
+				if (handlers != null) {
+					dispatchByeBye(handlers, usn, udn, nt);
+				}
+				handlers = byeByeRegistered.get(nt);
+				if (handlers != null) {
+					dispatchByeBye(handlers, usn, udn, nt);
 				}
 			} else {
-				log.warn("Unvalid NTS field value (" + ntsField + ") received in NOTIFY message :" + received);
+				log.warn("Unvalid NTS field value (" + msg.getField(SSDPMessage.NTS) + ") received in NOTIFY message :" + msg);
+				return false;
 			}
 		}
+		return true;
 	}
 }
@@ -0,0 +1,44 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.net.URL;
+
+/**
+ * DiscoveryEventHandler also receiving the BOOTID.UPNP.ORG and CONFIGID.UPNP.ORG header values sent by the UPNP 1.1
+ * devices. A device changes its BOOTID when it reboots and its CONFIGID when its description or one of its SCPD
+ * documents changes, only this alive method is called for the handlers implementing this interface.
+ *
+ * @version 1.0
+ */
+
+public interface DiscoveryConfigEventHandler extends DiscoveryEventHandler {
+	/**
+	 * Called when a device joins the network or advertise it is still alive
+	 *
+	 * @param usn
+	 *            the device USN (udn::nt)
+	 * @param udn
+	 *            the device UDN
+	 * @param nt
+	 *            the device NT
+	 * @param maxAge
+	 *            the device maxAge
+	 * @param location
+	 *            the device location
+	 * @param bootId
+	 *            the device BOOTID.UPNP.ORG value or null if not sent
+	 * @param configId
+	 *            the device CONFIGID.UPNP.ORG value or null if not sent
+	 */
+	public void eventSSDPAlive(String usn, String udn, String nt, String maxAge, URL location, String bootId, String configId);
+}
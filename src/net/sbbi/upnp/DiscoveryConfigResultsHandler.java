@@ -0,0 +1,46 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.net.URL;
+
+/**
+ * DiscoveryResultsHandler also receiving the BOOTID.UPNP.ORG and CONFIGID.UPNP.ORG header values sent by the UPNP 1.1
+ * devices in their search responses, only this discoveredDevice method is called for the handlers implementing this
+ * interface.
+ *
+ * @version 1.0
+ */
+
+public interface DiscoveryConfigResultsHandler extends DiscoveryResultsHandler {
+	/**
+	 * Method called by the DiscoveryListener class when a search response message has been received from the network
+	 *
+	 * @param usn
+	 *            the device USN
+	 * @param udn
+	 *            the device UDN
+	 * @param nt
+	 *            the device NT
+	 * @param maxAge
+	 *            the message max age
+	 * @param location
+	 *            the device location
+	 * @param firmware
+	 *            the device firmware
+	 * @param bootId
+	 *            the device BOOTID.UPNP.ORG value or null if not sent
+	 * @param configId
+	 *            the device CONFIGID.UPNP.ORG value or null if not sent
+	 */
+	public void discoveredDevice(String usn, String udn, String nt, String maxAge, URL location, String firmware, String bootId, String configId);
+}
@@ -13,7 +13,8 @@ package net.sbbi.upnp;
 
 /**
  * Interface for object that want to receive events from the 
- * DiscoveryAdvertisement thread
+ * DiscoveryAdvertisement class, the events are delivered by the
+ * SSDPEventDispatcher on a dedicated thread
  * @author <a href="mailto:superbonbon@sbbi.net">SuperBonBon</a>
  * @version 1.0
  */
@@ -0,0 +1,468 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.io.IOException;
+import java.net.NetworkInterface;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.sbbi.upnp.devices.UPNPRootDevice;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Result of an asynchronous discovery started with the Discovery.discoverAsync() methods. The discovery completes when
+ * its timeout is reached or earlier according to its DiscoveryPolicy, the get() methods then return the discovered
+ * devices or null if nothing has been found. The devices descriptions are fetched by the DescriptionFetcher threads, when
+ * the timeout is reached the discovery stops listening and completes once the descriptions already being fetched are
+ * parsed, or at the latest FETCH_GRACE ms later without the descriptions still being fetched. Devices answering several
+ * times with the same description location are only returned once.
+ * <br/>
+ * The search message is retransmitted with some jitter during the first half of the MX window. The delay of the last
+ * new response is recorded per network interface, adaptive discoveries end once this delay and the last retransmission
+ * are passed and the responses stopped coming. An adaptive discovery without any response lasts until its timeout.
+ *
+ * @version 1.0
+ */
+
+public class DiscoveryFuture implements Future<UPNPRootDevice[]> {
+	private final static Logger log = Logger.getLogger(DiscoveryFuture.class);
+
+	public final static int DEFAULT_RETRANSMISSIONS = 2;
+
+	/**
+	 * Delay without new response after which an adaptive discovery ends
+	 */
+	private final static long QUIET_GAP = 200;
+
+	/**
+	 * Delay after which a discovery no longer listening completes without the descriptions still being fetched
+	 */
+	private final static long FETCH_GRACE = 2000;
+
+	private final static Map<String, Long> responseWindows = new HashMap<String, Long>();
+	private final static Random jitter = new Random();
+	private static int retransmissions = DEFAULT_RETRANSMISSIONS;
+
+	static {
+		String prop = System.getProperty("net.sbbi.upnp.Discovery.retransmissions");
+		if (prop != null)
+			retransmissions = Integer.parseInt(prop);
+	}
+
+	private final String searchTarget;
+	private final DiscoveryPolicy policy;
+	private final DiscoveredDeviceHandler deviceHandler;
+	private final Map<String, UPNPRootDevice> devices = new LinkedHashMap<String, UPNPRootDevice>();
+	private final Set<String> fetching = new HashSet<String>();
+
+	private boolean done = false;
+	private boolean listening = true;
+	private boolean cancelled = false;
+	private ScheduledFuture<?> timeoutTask;
+	private ScheduledFuture<?> quietTask;
+	private ScheduledFuture<?> adaptiveTask;
+	private ScheduledFuture<?> graceTask;
+	private ScheduledFuture<?>[] retransmissionTasks;
+
+	private int ttl;
+	private int mx;
+	private NetworkInterface ni;
+	private String network;
+	private long startTime;
+	private long lastResponse = -1;
+
+	private final Runnable completion = new Runnable() {
+		public void run() {
+			stopListening();
+		}
+	};
+
+	private final Runnable gracePeriodEnd = new Runnable() {
+		public void run() {
+			complete(false);
+		}
+	};
+
+	private final Runnable quiescenceCheck = new Runnable() {
+		public void run() {
+			checkQuiescence();
+		}
+	};
+
+	private final Runnable retransmission = new Runnable() {
+		public void run() {
+			synchronized (DiscoveryFuture.this) {
+				if (!listening) {
+					return;
+				}
+			}
+			try {
+				SearchSender.getInstance().send(ttl, mx, searchTarget, ni);
+			} catch (IOException ex) {
+				if (log.isDebugEnabled())
+					log.debug("Unable to retransmit search message", ex);
+			}
+		}
+	};
+
+	private final DescriptionFetcher.FetchHandler fetchHandler = new DescriptionFetcher.FetchHandler() {
+		public void deviceFetched(URL location, UPNPRootDevice device) {
+			String key = location.toExternalForm();
+			boolean last;
+			synchronized (DiscoveryFuture.this) {
+				fetching.remove(key);
+				last = !listening && fetching.isEmpty();
+			}
+			if (device != null) {
+				deviceFound(key, device);
+			}
+			if (last) {
+				complete(false);
+			}
+		}
+	};
+
+	private final DiscoveryResultsHandler resultsHandler = new DiscoveryConfigResultsHandler() {
+		public void discoveredDevice(String usn, String udn, String nt, String maxAge, URL location, String firmware) {
+			discoveredDevice(usn, udn, nt, maxAge, location, firmware, null, null);
+		}
+
+		public void discoveredDevice(String usn, String udn, String nt, String maxAge, URL location, String firmware, String bootId, String configId) {
+			String key = location.toExternalForm();
+			synchronized (DiscoveryFuture.this) {
+				if (!listening || devices.containsKey(key) || fetching.contains(key)) {
+					return;
+				}
+				lastResponse = System.currentTimeMillis();
+			}
+			DeviceRegistry registry = DeviceRegistry.getInstance();
+			UPNPRootDevice device = registry.isEnabled() ? registry.lookup(udn, location) : null;
+			if (device != null) {
+				// a search response is as good as an ssdp:alive message
+				device.resetValidityTime(maxAge);
+				deviceFound(key, device);
+				return;
+			}
+			synchronized (DiscoveryFuture.this) {
+				if (!listening || !fetching.add(key)) {
+					return;
+				}
+			}
+			DescriptionFetcher.getInstance().fetch(location, maxAge, firmware, usn, udn, bootId, configId, fetchHandler);
+		}
+	};
+
+	DiscoveryFuture(String searchTarget, DiscoveryPolicy policy, DiscoveredDeviceHandler deviceHandler) {
+		this.searchTarget = searchTarget;
+		this.policy = policy;
+		this.deviceHandler = deviceHandler;
+	}
+
+	/**
+	 * Starts listening for the search responses and sends the search messages, the discovery will complete at the
+	 * latest after the given timeout
+	 *
+	 * @param timeOut
+	 *            the discovery timeout in ms
+	 * @param ttl
+	 *            the UDP socket packets time to live
+	 * @param mx
+	 *            discovery message mx http header field value
+	 * @param ni
+	 *            the networkInterface where to search devices, null to lookup all interfaces
+	 * @throws IOException
+	 *             if the search responses listener cannot be started or the search messages cannot be sent
+	 */
+	void start(int timeOut, int ttl, int mx, NetworkInterface ni) throws IOException {
+		this.ttl = ttl;
+		this.mx = mx;
+		this.ni = ni;
+		network = ni == null ? "" : ni.getName();
+		SSDPEventDispatcher.getInstance().setInline(resultsHandler);
+		DiscoveryListener.getInstance().registerResultsHandler(resultsHandler, searchTarget);
+		synchronized (this) {
+			startTime = System.currentTimeMillis();
+		}
+		try {
+			SearchSender.getInstance().send(ttl, mx, searchTarget, ni);
+		} catch (IOException ex) {
+			complete(true);
+			throw ex;
+		}
+		ScheduledExecutorService scheduler = Discovery.getScheduler();
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			timeoutTask = scheduler.schedule(completion, timeOut, TimeUnit.MILLISECONDS);
+			long spacing = Math.min(mx * 1000L, timeOut) / (2 * (retransmissions + 1));
+			long lastRetransmission = 0;
+			if (spacing > 0) {
+				retransmissionTasks = new ScheduledFuture<?>[retransmissions];
+				for (int i = 0; i < retransmissions; i++) {
+					long delay = (i + 1) * spacing + (long) (jitter.nextDouble() * spacing / 2);
+					retransmissionTasks[i] = scheduler.schedule(retransmission, delay, TimeUnit.MILLISECONDS);
+					lastRetransmission = Math.max(lastRetransmission, delay);
+				}
+			}
+			if (policy.isAdaptive()) {
+				long window = getResponseWindow(network);
+				if (window >= 0) {
+					// the devices answering the last retransmission must be given a chance
+					long delay = Math.max(window * 3 / 2, lastRetransmission) + QUIET_GAP;
+					adaptiveTask = scheduler.schedule(quiescenceCheck, delay, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+	}
+
+	private void checkQuiescence() {
+		synchronized (this) {
+			if (!listening) {
+				return;
+			}
+			// without any response yet the discovery goes on until its timeout
+			long wait = lastResponse == -1 ? QUIET_GAP : lastResponse + QUIET_GAP - System.currentTimeMillis();
+			if (wait > 0) {
+				adaptiveTask = Discovery.getScheduler().schedule(quiescenceCheck, wait, TimeUnit.MILLISECONDS);
+				return;
+			}
+		}
+		stopListening();
+	}
+
+	private static long getResponseWindow(String network) {
+		synchronized (responseWindows) {
+			Long window = responseWindows.get(network);
+			return window == null ? -1 : window.longValue();
+		}
+	}
+
+	/**
+	 * Records the delay of the last new response of a discovery, the window grows at once and shrinks slowly
+	 *
+	 * @param network
+	 *            the network interface name, empty for all the interfaces
+	 * @param delay
+	 *            the delay in ms
+	 */
+	private static void recordResponseWindow(String network, long delay) {
+		synchronized (responseWindows) {
+			Long window = responseWindows.get(network);
+			if (window != null && delay < window.longValue()) {
+				delay = (window.longValue() * 4 + delay) / 5;
+			}
+			responseWindows.put(network, Long.valueOf(delay));
+		}
+	}
+
+	private void deviceFound(String location, UPNPRootDevice device) {
+		boolean enough;
+		synchronized (this) {
+			if (done || devices.containsKey(location)) {
+				return;
+			}
+			if (policy.getMaxResults() > 0 && devices.size() >= policy.getMaxResults()) {
+				// concurrent fetches completed after the last expected device
+				return;
+			}
+			devices.put(location, device);
+			enough = policy.getMaxResults() > 0 && devices.size() >= policy.getMaxResults();
+			if (!enough && policy.getQuietPeriod() > 0) {
+				if (quietTask != null) {
+					quietTask.cancel(false);
+				}
+				quietTask = Discovery.getScheduler().schedule(completion, policy.getQuietPeriod(), TimeUnit.MILLISECONDS);
+			}
+		}
+		if (deviceHandler != null) {
+			try {
+				deviceHandler.discoveredRootDevice(device);
+			} catch (RuntimeException ex) {
+				log.error("Unexpected error during discovered device " + device.getDeviceDefLoc() + " notification", ex);
+			}
+		}
+		if (enough) {
+			complete(false);
+		}
+	}
+
+	/**
+	 * Stops accepting new search responses, the discovery completes once the pending descriptions fetches are done or
+	 * at the latest after FETCH_GRACE ms
+	 */
+	private void stopListening() {
+		boolean last;
+		long window = -1;
+		synchronized (this) {
+			if (!listening) {
+				return;
+			}
+			listening = false;
+			last = fetching.isEmpty();
+			if (lastResponse != -1) {
+				window = lastResponse - startTime;
+			}
+			if (!last) {
+				// slow devices must not hold the discovery much longer than its timeout
+				graceTask = Discovery.getScheduler().schedule(gracePeriodEnd, FETCH_GRACE, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (window >= 0) {
+			recordResponseWindow(network, window);
+		}
+		DiscoveryListener.getInstance().unRegisterResultsHandler(resultsHandler, searchTarget);
+		if (last) {
+			complete(false);
+		}
+	}
+
+	private void complete(boolean cancel) {
+		boolean unRegister;
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			done = true;
+			unRegister = listening;
+			listening = false;
+			cancelled = cancel;
+			if (timeoutTask != null) {
+				timeoutTask.cancel(false);
+			}
+			if (quietTask != null) {
+				quietTask.cancel(false);
+			}
+			if (adaptiveTask != null) {
+				adaptiveTask.cancel(false);
+			}
+			if (graceTask != null) {
+				graceTask.cancel(false);
+			}
+			if (retransmissionTasks != null) {
+				for (int i = 0; i < retransmissionTasks.length; i++) {
+					retransmissionTasks[i].cancel(false);
+				}
+			}
+			notifyAll();
+		}
+		if (unRegister) {
+			DiscoveryListener.getInstance().unRegisterResultsHandler(resultsHandler, searchTarget);
+		}
+	}
+
+	/**
+	 * Stops the discovery before its timeout without waiting for the pending descriptions fetches, the devices
+	 * discovered so far are kept and returned by the get() methods
+	 */
+	public void stop() {
+		complete(false);
+	}
+
+	/**
+	 * The devices discovered so far
+	 *
+	 * @return an array of UPNP Root device or null if nothing has been found yet
+	 */
+	public synchronized UPNPRootDevice[] getDiscoveredDevices() {
+		if (devices.isEmpty()) {
+			return null;
+		}
+		int j = 0;
+		UPNPRootDevice[] rootDevices = new UPNPRootDevice[devices.size()];
+		for (Iterator<UPNPRootDevice> i = devices.values().iterator(); i.hasNext();) {
+			rootDevices[j++] = i.next();
+		}
+		return rootDevices;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+		}
+		complete(true);
+		return true;
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Waits for the discovery completion
+	 *
+	 * @return an array of UPNP Root device or null if nothing has been found
+	 * @throws InterruptedException
+	 *             if the current thread is interrupted while waiting
+	 * @throws CancellationException
+	 *             if the discovery has been cancelled
+	 */
+	public synchronized UPNPRootDevice[] get() throws InterruptedException {
+		while (!done) {
+			wait();
+		}
+		if (cancelled) {
+			throw new CancellationException("Discovery cancelled");
+		}
+		return getDiscoveredDevices();
+	}
+
+	/**
+	 * Waits at most the given time for the discovery completion
+	 *
+	 * @param timeout
+	 *            the maximum time to wait
+	 * @param unit
+	 *            the timeout unit
+	 * @return an array of UPNP Root device or null if nothing has been found
+	 * @throws InterruptedException
+	 *             if the current thread is interrupted while waiting
+	 * @throws TimeoutException
+	 *             if the discovery is still running after the given time
+	 * @throws CancellationException
+	 *             if the discovery has been cancelled
+	 */
+	public synchronized UPNPRootDevice[] get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (!done) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new TimeoutException("Discovery still running");
+			}
+			wait(remaining);
+		}
+		if (cancelled) {
+			throw new CancellationException("Discovery cancelled");
+		}
+		return getDiscoveredDevices();
+	}
+}
@@ -12,15 +12,10 @@
 package net.sbbi.upnp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.channels.DatagramChannel;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -33,7 +28,7 @@ import org.apache.log4j.Logger;
  * @version 1.0
  */
 
-public class DiscoveryListener implements Runnable {
+public class DiscoveryListener {
 	private final static Logger log = Logger.getLogger(DiscoveryListener.class);
 
 	private static boolean MATCH_IP = true;
@@ -44,19 +39,18 @@ public class DiscoveryListener implements Runnable {
 			MATCH_IP = false;
 	}
 
-	private static final int DEFAULT_TIMEOUT = 250;
-
-	private final Map<String, Set<DiscoveryResultsHandler>> registeredHandlers = new HashMap<String, Set<DiscoveryResultsHandler>>();
+	private final HandlerRegistry<DiscoveryResultsHandler> registeredHandlers = new HandlerRegistry<DiscoveryResultsHandler>();
 
 	private final Object REGISTRATION_PROCESS = new Object();
 
 	private final static DiscoveryListener singleton = new DiscoveryListener();
 
 	private boolean inService = false;
-	private boolean daemon = true;
 
-	private java.net.MulticastSocket skt;
-	private DatagramPacket input;
+	private DatagramChannel channel;
+
+	// only used by the SSDP reactor thread
+	private final SSDPMessage msg = new SSDPMessage();
 
 	private DiscoveryListener() {
 	}
@@ -66,13 +60,14 @@ public class DiscoveryListener implements Runnable {
 	}
 
 	/**
-	 * Sets the listener as a daemon thread
+	 * Sets the listener as a daemon thread, the SSDP messages are received by a thread shared with the
+	 * DiscoveryAdvertisement class so this setting applies to both of them
 	 * 
 	 * @param daemon
 	 *            daemon thread
 	 */
 	public void setDaemon(boolean daemon) {
-		this.daemon = daemon;
+		SSDPReactor.getInstance().setDaemon(daemon);
 	}
 
 	/**
@@ -88,13 +83,8 @@ public class DiscoveryListener implements Runnable {
 	public void registerResultsHandler(DiscoveryResultsHandler resultsHandler, String searchTarget) throws IOException {
 		synchronized (REGISTRATION_PROCESS) {
 			if (!inService)
-				startDevicesListenerThread();
-			Set<DiscoveryResultsHandler> handlers = registeredHandlers.get(searchTarget);
-			if (handlers == null) {
-				handlers = new HashSet<DiscoveryResultsHandler>();
-				registeredHandlers.put(searchTarget, handlers);
-			}
-			handlers.add(resultsHandler);
+				startDevicesListener();
+			registeredHandlers.add(searchTarget, resultsHandler);
 		}
 	}
 
@@ -108,105 +98,91 @@ public class DiscoveryListener implements Runnable {
 	 */
 	public void unRegisterResultsHandler(DiscoveryResultsHandler resultsHandler, String searchTarget) {
 		synchronized (REGISTRATION_PROCESS) {
-			Set<DiscoveryResultsHandler> handlers = registeredHandlers.get(searchTarget);
-			if (handlers != null) {
-				handlers.remove(resultsHandler);
-				if (handlers.size() == 0) {
-					registeredHandlers.remove(searchTarget);
-				}
-			}
-			if (registeredHandlers.size() == 0) {
-				stopDevicesListenerThread();
+			registeredHandlers.remove(searchTarget, resultsHandler);
+			if (registeredHandlers.isEmpty()) {
+				stopDevicesListener();
 			}
 		}
 	}
 
-	private void startDevicesListenerThread() throws IOException {
+	private void startDevicesListener() throws IOException {
 		synchronized (singleton) {
 			if (!inService) {
-				this.startMultiCastSocket();
-				Thread deamon = new Thread(this, "DiscoveryListener daemon");
-				deamon.setDaemon(daemon);
-				deamon.start();
-				while (!inService) {
-					// wait for the thread to be started let's wait a few ms
-					try {
-						Thread.sleep(2);
-					} catch (InterruptedException ex) {
-						// don t care
-					}
+				int bindPort = Discovery.DEFAULT_SSDP_SEARCH_PORT;
+				String port = System.getProperty("net.sbbi.upnp.Discovery.bindPort");
+				if (port != null) {
+					bindPort = Integer.parseInt(port);
 				}
+				channel = SSDPReactor.openMulticastChannel(bindPort);
+				SSDPReactor.getInstance().register(channel, new SSDPReactor.DatagramHandler() {
+					public void datagramReceived(byte[] data, int length, InetAddress from) throws IOException {
+						listenBroadCast(data, length, from);
+					}
+				});
+				inService = true;
 			}
 		}
 	}
 
-	private void stopDevicesListenerThread() {
+	private void stopDevicesListener() {
 		synchronized (singleton) {
-			inService = false;
-		}
-	}
-
-	private void startMultiCastSocket() throws IOException {
-		int bindPort = Discovery.DEFAULT_SSDP_SEARCH_PORT;
-		String port = System.getProperty("net.sbbi.upnp.Discovery.bindPort");
-		if (port != null) {
-			bindPort = Integer.parseInt(port);
-		}
-		skt = new java.net.MulticastSocket(null);
-		skt.bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), bindPort));
-		skt.setTimeToLive(Discovery.DEFAULT_TTL);
-		skt.setSoTimeout(DEFAULT_TIMEOUT);
-		skt.joinGroup(InetAddress.getByName(Discovery.SSDP_IP));
-		byte[] buf = new byte[2048];
-		input = new DatagramPacket(buf, buf.length);
-	}
-
-	public void run() {
-		if (!Thread.currentThread().getName().equals("DiscoveryListener daemon")) {
-			throw new RuntimeException("No right to call this method");
-		}
-		inService = true;
-		while (inService) {
-			try {
-				listenBroadCast();
-			} catch (SocketTimeoutException ex) {
-				// ignoring
-			} catch (IOException ioEx) {
-				log.error("IO Exception during UPNP DiscoveryListener messages listening thread", ioEx);
-			} catch (Exception ex) {
-				log.error("Fatal Error during UPNP DiscoveryListener messages listening thread, thread will exit", ex);
+			if (inService) {
+				SSDPReactor.getInstance().unRegister(channel);
+				channel = null;
 				inService = false;
 			}
 		}
-		try {
-			skt.leaveGroup(InetAddress.getByName(Discovery.SSDP_IP));
-			skt.close();
-		} catch (Exception ex) {
-			// ignoring
+	}
+
+	private void dispatch(Set<DiscoveryResultsHandler> handlers, final String usn, final String udn, final String st,
+			final String maxAge, final URL loc, final String server, final String bootId, final String configId) {
+		SSDPEventDispatcher dispatcher = SSDPEventDispatcher.getInstance();
+		for (Iterator<DiscoveryResultsHandler> i = handlers.iterator(); i.hasNext();) {
+			final DiscoveryResultsHandler handler = i.next();
+			dispatcher.dispatch(handler, new Runnable() {
+				public void run() {
+					if (handler instanceof DiscoveryConfigResultsHandler) {
+						((DiscoveryConfigResultsHandler) handler).discoveredDevice(usn, udn, st, maxAge, loc, server, bootId, configId);
+					} else {
+						handler.discoveredDevice(usn, udn, st, maxAge, loc, server);
+					}
+				}
+			});
 		}
 	}
 
-	private void listenBroadCast() throws IOException {
-		skt.receive(input);
-		InetAddress from = input.getAddress();
-		String received = new String(input.getData(), input.getOffset(), input.getLength());
-		HttpResponse msg = null;
-		try {
-			msg = new HttpResponse(received);
-		} catch (IllegalArgumentException ex) {
+	void listenBroadCast(byte[] data, int length, InetAddress from) throws IOException {
+		SSDPStatistics stats = SSDPStatistics.getInstance();
+		if (!msg.parse(data, length)) {
 			// crappy http sent
+			stats.datagramRejected();
 			if (log.isDebugEnabled())
-				log.debug("Skipping non-compliant HTTP message " + received);
+				log.debug("Skipping non-compliant HTTP message " + msg);
 			return;
 		}
-		String header = msg.getHeader();
-		if (header != null && header.startsWith("HTTP/1.1 200 OK") && msg.getHTTPHeaderField("st") != null) {
+		stats.datagramParsed();
+		if (!processMessage(from)) {
+			stats.datagramRejected();
+		}
+	}
+
+	/**
+	 * Processes the last parsed message
+	 * 
+	 * @param from
+	 *            the message sender address
+	 * @return false if the message is not a valid search response
+	 * @throws IOException
+	 *             if some error occurs during the message processing
+	 */
+	private boolean processMessage(InetAddress from) throws IOException {
+		if (msg.isSearchResponse() && msg.hasField(SSDPMessage.ST)) {
 			// probably a search repsonse !
-			String deviceDescrLoc = msg.getHTTPHeaderField("location");
+			String deviceDescrLoc = msg.getField(SSDPMessage.LOCATION);
 			if (deviceDescrLoc == null || deviceDescrLoc.trim().length() == 0) {
 				if (log.isDebugEnabled())
 					log.debug("Skipping SSDP message, missing HTTP header 'location' field");
-				return;
+				return false;
 			}
 			URL loc = new URL(deviceDescrLoc);
 			if (MATCH_IP) {
@@ -216,51 +192,47 @@ public class DiscoveryListener implements Runnable {
 							" does not match device description IP " + locHost +
 							" skipping device, set the net.sbbi.upnp.ddos.matchip system property" +
 							" to false to avoid this check");
-					return;
+					return false;
 				}
 			}
 			if (log.isDebugEnabled())
 				log.debug("Processing " + deviceDescrLoc + " device description location");
-			String st = msg.getHTTPHeaderField("st");
+			String st = msg.getField(SSDPMessage.ST);
 			if (st == null || st.trim().length() == 0) {
 				if (log.isDebugEnabled())
 					log.debug("Skipping SSDP message, missing HTTP header 'st' field");
-				return;
+				return false;
 			}
-			String usn = msg.getHTTPHeaderField("usn");
+			String usn = msg.getField(SSDPMessage.USN);
 			if (usn == null || usn.trim().length() == 0) {
 				if (log.isDebugEnabled())
 					log.debug("Skipping SSDP message, missing HTTP header 'usn' field");
-				return;
+				return false;
 			}
-			String maxAge = msg.getHTTPFieldElement("Cache-Control", "max-age");
+			String maxAge = msg.getMaxAge();
 			if (maxAge == null || maxAge.trim().length() == 0) {
 				if (log.isDebugEnabled())
 					log.debug("Skipping SSDP message, missing HTTP header 'max-age' field");
-				return;
+				return false;
 			}
-			String server = msg.getHTTPHeaderField("server");
+			String server = msg.getField(SSDPMessage.SERVER);
 			if (server == null || server.trim().length() == 0) {
 				if (log.isDebugEnabled())
 					log.debug("Skipping SSDP message, missing HTTP header 'server' field");
-				return;
+				return false;
 			}
 			String udn = usn;
 			int index = udn.indexOf("::");
 			if (index != -1)
 				udn = udn.substring(0, index);
-			synchronized (REGISTRATION_PROCESS) {
-				Set<DiscoveryResultsHandler> handlers = registeredHandlers.get(st);
-				if (handlers != null) {
-					for (Iterator<DiscoveryResultsHandler> i = handlers.iterator(); i.hasNext();) {
-						DiscoveryResultsHandler handler = i.next();
-						handler.discoveredDevice(usn, udn, st, maxAge, loc, server);
-					}
-				}
+			Set<DiscoveryResultsHandler> handlers = registeredHandlers.get(st);
+			if (handlers != null) {
+				dispatch(handlers, usn, udn, st, maxAge, loc, server, msg.getField(SSDPMessage.BOOTID), msg.getField(SSDPMessage.CONFIGID));
 			}
-		} else {
-			if (log.isDebugEnabled())
-				log.debug("Skipping non-compliant HTTP message " + received);
+			return true;
 		}
+		if (log.isDebugEnabled())
+			log.debug("Skipping non-compliant HTTP message " + msg);
+		return false;
 	}
 }
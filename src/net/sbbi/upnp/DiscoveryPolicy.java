@@ -0,0 +1,128 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+/**
+ * Completion policy of an asynchronous discovery started with the Discovery.discoverAsync() methods. A discovery always
+ * ends when its timeout is reached, the policy can make it end earlier when enough devices have been found or when no
+ * new device responded for a while.
+ *
+ * @version 1.0
+ */
+
+public final class DiscoveryPolicy {
+	/**
+	 * Waits for the whole discovery timeout
+	 */
+	public final static DiscoveryPolicy TIMEOUT = new DiscoveryPolicy(0, 0);
+
+	/**
+	 * Ends the discovery once the responses stop coming, according to the response delays observed by the previous
+	 * discoveries on the same network, this is the behaviour of the synchronous Discovery.discover() methods. The discovery
+	 * always leaves the devices time to answer its last search retransmission, and the whole timeout is used as long as
+	 * nothing has been learnt about the network or no device answered.
+	 */
+	public final static DiscoveryPolicy ADAPTIVE = new DiscoveryPolicy(0, 0, true);
+
+	private final int maxResults;
+	private final long quietPeriod;
+	private final boolean adaptive;
+
+	/**
+	 * Creates a new discovery policy
+	 *
+	 * @param maxResults
+	 *            the number of devices after which the discovery is completed, 0 for no limit
+	 * @param quietPeriod
+	 *            the delay in ms without new device after which the discovery is completed, the delay starts with the
+	 *            first device found, 0 to wait for the timeout
+	 */
+	public DiscoveryPolicy(int maxResults, long quietPeriod) {
+		this(maxResults, quietPeriod, false);
+	}
+
+	private DiscoveryPolicy(int maxResults, long quietPeriod, boolean adaptive) {
+		if (maxResults < 0) {
+			throw new IllegalArgumentException("Illegal maxResults " + maxResults);
+		}
+		if (quietPeriod < 0) {
+			throw new IllegalArgumentException("Illegal quietPeriod " + quietPeriod);
+		}
+		this.maxResults = maxResults;
+		this.quietPeriod = quietPeriod;
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * Policy completing the discovery as soon as the first device is found
+	 *
+	 * @return the policy
+	 */
+	public static DiscoveryPolicy firstMatch() {
+		return new DiscoveryPolicy(1, 0);
+	}
+
+	/**
+	 * Policy completing the discovery as soon as a given number of devices is found
+	 *
+	 * @param maxResults
+	 *            the number of devices to find
+	 * @return the policy
+	 */
+	public static DiscoveryPolicy firstResults(int maxResults) {
+		if (maxResults < 1) {
+			throw new IllegalArgumentException("Illegal maxResults " + maxResults);
+		}
+		return new DiscoveryPolicy(maxResults, 0);
+	}
+
+	/**
+	 * Policy completing the discovery when no new device has been found during a given delay
+	 *
+	 * @param quietPeriod
+	 *            the delay in ms without new device, starting with the first device found
+	 * @return the policy
+	 */
+	public static DiscoveryPolicy quietPeriod(long quietPeriod) {
+		if (quietPeriod < 1) {
+			throw new IllegalArgumentException("Illegal quietPeriod " + quietPeriod);
+		}
+		return new DiscoveryPolicy(0, quietPeriod);
+	}
+
+	/**
+	 * The number of devices after which the discovery is completed
+	 *
+	 * @return the number of devices or 0 for no limit
+	 */
+	public int getMaxResults() {
+		return maxResults;
+	}
+
+	/**
+	 * The delay without new device after which the discovery is completed
+	 *
+	 * @return the delay in ms or 0 if not used
+	 */
+	public long getQuietPeriod() {
+		return quietPeriod;
+	}
+
+	/**
+	 * Tells if the discovery ends once the responses stop coming according to the learnt network response delays
+	 *
+	 * @return true if the discovery window is adaptive
+	 */
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+}
@@ -12,7 +12,8 @@
 package net.sbbi.upnp;
 
 /**
- * This interface can be use to register against the DiscoveryListener class to receive SSDP search responses.
+ * This interface can be use to register against the DiscoveryListener class to receive SSDP search responses. The
+ * responses are delivered by the SSDPEventDispatcher.
  * 
  * @author <a href="mailto:superbonbon@sbbi.net">SuperBonBon</a>
  * @version 1.0
@@ -0,0 +1,501 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.jxpath.JXPathException;
+import org.apache.commons.jxpath.xml.DocumentContainer;
+import org.apache.log4j.Logger;
+
+/**
+ * Fetches the devices description and SCPD documents. Each fetch has connect and read timeouts, an overall deadline
+ * checked between the reads so that a device sending a few bytes at a time cannot hold a fetch, a maximum document
+ * size, and the number of fetches running at the same time is bounded process wide. The fetches latency is recorded
+ * per device host. When the SnapshotStore is enabled, the documents it holds are served from it without any network
+ * access and the fetched documents are stored in it.
+ * <br/>
+ * The limits can be set with the net.sbbi.upnp.DocumentFetcher.connectTimeout, net.sbbi.upnp.DocumentFetcher.readTimeout,
+ * net.sbbi.upnp.DocumentFetcher.fetchTimeout (all in ms), net.sbbi.upnp.DocumentFetcher.maxDocumentSize (in bytes) and
+ * net.sbbi.upnp.DocumentFetcher.maxConcurrentFetches system properties.
+ *
+ * @version 1.0
+ */
+
+public class DocumentFetcher {
+	private final static Logger log = Logger.getLogger(DocumentFetcher.class);
+
+	public final static int DEFAULT_CONNECT_TIMEOUT = 5000;
+	public final static int DEFAULT_READ_TIMEOUT = 10000;
+	public final static int DEFAULT_FETCH_TIMEOUT = 15000;
+	public final static int DEFAULT_MAX_DOCUMENT_SIZE = 1024 * 1024;
+	public final static int DEFAULT_MAX_CONCURRENT_FETCHES = 16;
+
+	private final static DocumentFetcher singleton = new DocumentFetcher();
+
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private volatile int fetchTimeout = DEFAULT_FETCH_TIMEOUT;
+	private volatile int maxDocumentSize = DEFAULT_MAX_DOCUMENT_SIZE;
+	private final Semaphore permits;
+
+	private final Map<String, HostStatistics> statistics = new HashMap<String, HostStatistics>();
+
+	private DocumentFetcher() {
+		String prop = System.getProperty("net.sbbi.upnp.DocumentFetcher.connectTimeout");
+		if (prop != null)
+			connectTimeout = Integer.parseInt(prop);
+		prop = System.getProperty("net.sbbi.upnp.DocumentFetcher.readTimeout");
+		if (prop != null)
+			readTimeout = Integer.parseInt(prop);
+		prop = System.getProperty("net.sbbi.upnp.DocumentFetcher.fetchTimeout");
+		if (prop != null)
+			fetchTimeout = Integer.parseInt(prop);
+		prop = System.getProperty("net.sbbi.upnp.DocumentFetcher.maxDocumentSize");
+		if (prop != null)
+			maxDocumentSize = Integer.parseInt(prop);
+		int maxConcurrentFetches = DEFAULT_MAX_CONCURRENT_FETCHES;
+		prop = System.getProperty("net.sbbi.upnp.DocumentFetcher.maxConcurrentFetches");
+		if (prop != null)
+			maxConcurrentFetches = Integer.parseInt(prop);
+		permits = new Semaphore(maxConcurrentFetches);
+	}
+
+	public final static DocumentFetcher getInstance() {
+		return singleton;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Sets the connect timeout of the fetches
+	 *
+	 * @param connectTimeout
+	 *            the timeout in ms, 0 for no timeout
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Sets the read timeout of the fetches
+	 *
+	 * @param readTimeout
+	 *            the timeout in ms, 0 for no timeout
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public int getFetchTimeout() {
+		return fetchTimeout;
+	}
+
+	/**
+	 * Sets the overall deadline of the fetches, from the connection to the last byte read. A read blocked when the
+	 * deadline is passed still waits at most the smallest of the read timeout and this timeout
+	 *
+	 * @param fetchTimeout
+	 *            the timeout in ms, 0 for no deadline
+	 */
+	public void setFetchTimeout(int fetchTimeout) {
+		this.fetchTimeout = fetchTimeout;
+	}
+
+	public int getMaxDocumentSize() {
+		return maxDocumentSize;
+	}
+
+	/**
+	 * Sets the maximum size of the fetched documents, larger documents are rejected
+	 *
+	 * @param maxDocumentSize
+	 *            the maximum size in bytes
+	 */
+	public void setMaxDocumentSize(int maxDocumentSize) {
+		this.maxDocumentSize = maxDocumentSize;
+	}
+
+	/**
+	 * Fetches a document, or takes it from the snapshot store
+	 *
+	 * @param location
+	 *            the document location
+	 * @return the document bytes
+	 * @throws IOException
+	 *             if the document cannot be fetched in time or is too large
+	 */
+	public byte[] fetch(URL location) throws IOException {
+		return fetchResponse(location).data;
+	}
+
+	/**
+	 * Fetches and decodes a document, the 0x0 bytes are replaced with 0x20 bytes
+	 *
+	 * @param location
+	 *            the document location
+	 * @return the decoded document, using the charset of the Content-Type header or UTF-8
+	 * @throws IOException
+	 *             if the document cannot be fetched in time or is too large
+	 */
+	public String fetchDocument(URL location) throws IOException {
+		Response response = fetchResponse(location);
+		return IOUtils.readDocument(new ByteArrayInputStream(response.data), IOUtils.getCharset(response.contentType));
+	}
+
+	/**
+	 * Creates a DOM model JXPath container loading its document through this fetcher on the first access
+	 *
+	 * @param location
+	 *            the document location
+	 * @return the container
+	 */
+	public DocumentContainer createContainer(URL location) {
+		return new FetchedDocumentContainer(location);
+	}
+
+	/**
+	 * The fetches latency statistics, keyed by device host
+	 *
+	 * @return an unmodifiable snapshot of the statistics
+	 */
+	public Map<String, HostStatistics> getHostStatistics() {
+		Map<String, HostStatistics> rtrVal = new HashMap<String, HostStatistics>();
+		synchronized (statistics) {
+			for (Map.Entry<String, HostStatistics> entry : statistics.entrySet()) {
+				rtrVal.put(entry.getKey(), new HostStatistics(entry.getValue()));
+			}
+		}
+		return Collections.unmodifiableMap(rtrVal);
+	}
+
+	/**
+	 * Clears the fetches latency statistics
+	 */
+	public void resetHostStatistics() {
+		synchronized (statistics) {
+			statistics.clear();
+		}
+	}
+
+	/**
+	 * Fetches a document along with its HTTP validators, or takes it from the snapshot store
+	 *
+	 * @param location
+	 *            the document location
+	 * @return the document
+	 * @throws IOException
+	 *             if the document cannot be fetched in time or is too large
+	 */
+	public Response fetchResponse(URL location) throws IOException {
+		SnapshotStore store = SnapshotStore.getInstance();
+		if (store.isEnabled()) {
+			Response response = store.lookup(location);
+			if (response != null) {
+				return response;
+			}
+		}
+		Response response = fetchResponse(location, null, 0);
+		if (store.isEnabled()) {
+			store.store(location, response);
+		}
+		return response;
+	}
+
+	/**
+	 * Fetches a document with a conditional request, the snapshot store is updated when the document changed
+	 *
+	 * @param location
+	 *            the document location
+	 * @param etag
+	 *            the ETag of the known document, or null
+	 * @param lastModified
+	 *            the Last-Modified time of the known document, or 0
+	 * @return the fetched document or null if the device answered that the known document did not change
+	 * @throws IOException
+	 *             if the document cannot be fetched in time or is too large
+	 */
+	public Response fetchIfModified(URL location, String etag, long lastModified) throws IOException {
+		Response response = fetchResponse(location, etag, lastModified);
+		if (response != null) {
+			SnapshotStore store = SnapshotStore.getInstance();
+			if (store.isEnabled()) {
+				store.store(location, response);
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * Fetches a document from the network, conditionally if validators are given
+	 *
+	 * @param location
+	 *            the document location
+	 * @param etag
+	 *            the ETag of the known document, or null
+	 * @param lastModified
+	 *            the Last-Modified time of the known document, or 0
+	 * @return the fetched document or null if the device answered that the known document did not change
+	 * @throws IOException
+	 *             if the document cannot be fetched in time or is too large
+	 */
+	Response fetchResponse(URL location, String etag, long lastModified) throws IOException {
+		try {
+			permits.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to fetch " + location);
+		}
+		long start = System.currentTimeMillis();
+		int timeout = fetchTimeout;
+		long deadline = timeout > 0 ? start + timeout : Long.MAX_VALUE;
+		boolean success = false;
+		try {
+			URLConnection conn = location.openConnection();
+			conn.setConnectTimeout(connectTimeout);
+			conn.setReadTimeout(timeout > 0 && (readTimeout == 0 || timeout < readTimeout) ? timeout : readTimeout);
+			conn.setUseCaches(false);
+			if (etag != null)
+				conn.setRequestProperty("If-None-Match", etag);
+			if (lastModified > 0)
+				conn.setIfModifiedSince(lastModified);
+			if (conn instanceof HttpURLConnection && ((HttpURLConnection) conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				conn.getInputStream().close();
+				success = true;
+				return null;
+			}
+			InputStream in = conn.getInputStream();
+			Response response = new Response(read(location, in, conn.getContentLength(), deadline), conn.getContentType(), conn.getHeaderField("ETag"),
+					conn.getLastModified());
+			success = true;
+			return response;
+		} finally {
+			permits.release();
+			long latency = System.currentTimeMillis() - start;
+			record(location.getHost(), latency, success);
+			if (log.isDebugEnabled())
+				log.debug("Fetched " + location + " in " + latency + " ms" + (success ? "" : " (failed)"));
+		}
+	}
+
+	private byte[] read(URL location, InputStream in, int contentLength, long deadline) throws IOException {
+		int max = maxDocumentSize;
+		byte[] buffer = IOUtils.acquireBuffer();
+		try {
+			if (contentLength > max) {
+				throw new IOException("Document " + location + " too large (" + contentLength + " bytes)");
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream(contentLength > 0 ? contentLength : IOUtils.BUFFER_SIZE);
+			int readen;
+			while ((readen = in.read(buffer)) != -1) {
+				if (out.size() + readen > max) {
+					throw new IOException("Document " + location + " larger than " + max + " bytes");
+				}
+				if (System.currentTimeMillis() >= deadline) {
+					// a device sending a few bytes at a time must not hold the fetch
+					throw new SocketTimeoutException("Document " + location + " not fetched in time");
+				}
+				out.write(buffer, 0, readen);
+			}
+			return out.toByteArray();
+		} finally {
+			IOUtils.releaseBuffer(buffer);
+			in.close();
+		}
+	}
+
+	private void record(String host, long latency, boolean success) {
+		synchronized (statistics) {
+			HostStatistics stats = statistics.get(host);
+			if (stats == null) {
+				stats = new HostStatistics();
+				statistics.put(host, stats);
+			}
+			stats.record(latency, success);
+		}
+	}
+
+	private static class FetchedDocumentContainer extends DocumentContainer {
+		private static final long serialVersionUID = 1L;
+
+		private final URL location;
+		private Object document;
+
+		private FetchedDocumentContainer(URL location) {
+			super(location, DocumentContainer.MODEL_DOM);
+			this.location = location;
+		}
+
+		@Override
+		public synchronized Object getValue() {
+			if (document == null) {
+				try {
+					document = parseXML(new ByteArrayInputStream(singleton.fetch(location)));
+				} catch (IOException ex) {
+					throw new JXPathException("Unable to read XML from: " + location, ex);
+				}
+			}
+			return document;
+		}
+
+		@Override
+		public synchronized void setValue(Object value) {
+			document = value;
+		}
+	}
+
+	/**
+	 * A fetched document and its HTTP validators
+	 */
+	public final static class Response {
+		final byte[] data;
+		final String contentType;
+		final String etag;
+		final long lastModified;
+		private String hash;
+
+		Response(byte[] data, String contentType, String etag, long lastModified) {
+			this.data = data;
+			this.contentType = contentType;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * The document bytes, the returned array must not be modified
+		 *
+		 * @return the document bytes
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * The ETag header value sent with the document
+		 *
+		 * @return the ETag or null if not sent
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		/**
+		 * The Last-Modified header value sent with the document
+		 *
+		 * @return the time in ms or 0 if not sent
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * The SHA-1 hash of the document
+		 *
+		 * @return the hash as an hexadecimal string
+		 */
+		public synchronized String getHash() {
+			if (hash == null) {
+				hash = IOUtils.getHash(data);
+			}
+			return hash;
+		}
+	}
+
+	/**
+	 * Fetches latency statistics of a device host
+	 */
+	public static class HostStatistics {
+		private long fetches;
+		private long failures;
+		private long totalLatency;
+		private long maxLatency;
+		private long lastLatency;
+
+		private HostStatistics() {
+		}
+
+		private HostStatistics(HostStatistics stats) {
+			fetches = stats.fetches;
+			failures = stats.failures;
+			totalLatency = stats.totalLatency;
+			maxLatency = stats.maxLatency;
+			lastLatency = stats.lastLatency;
+		}
+
+		private void record(long latency, boolean success) {
+			fetches++;
+			if (!success)
+				failures++;
+			totalLatency += latency;
+			lastLatency = latency;
+			if (latency > maxLatency)
+				maxLatency = latency;
+		}
+
+		/**
+		 * The number of fetches, failed ones included
+		 *
+		 * @return the fetches count
+		 */
+		public long getFetches() {
+			return fetches;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * The average fetch latency
+		 *
+		 * @return the latency in ms
+		 */
+		public long getAverageLatency() {
+			return fetches > 0 ? totalLatency / fetches : 0;
+		}
+
+		public long getMaxLatency() {
+			return maxLatency;
+		}
+
+		public long getLastLatency() {
+			return lastLatency;
+		}
+
+		@Override
+		public String toString() {
+			return "fetches=" + fetches + " failures=" + failures + " avg=" + getAverageLatency() + "ms max=" + maxLatency + "ms last=" + lastLatency + "ms";
+		}
+	}
+}
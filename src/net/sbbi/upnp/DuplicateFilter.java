@@ -0,0 +1,96 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.net.InetAddress;
+
+/**
+ * Detects the datagrams received several times from the same address within a short window. The datagrams are kept
+ * in a fixed size table indexed by a hash of their bytes, their sender address and their length, where a new datagram
+ * simply replaces an older one with the same slot. A datagram is only a duplicate when the slot holds the same bytes
+ * from the same address, so a replaced entry or a hash collision can only let a duplicate through, never drop a new
+ * datagram. Not thread safe, meant to be used by the SSDP reactor thread.
+ *
+ * @version 1.0
+ */
+
+final class DuplicateFilter {
+	private final static int SLOTS = 1024;
+
+	private final long window;
+	private final long[] keys = new long[SLOTS];
+	private final long[] times = new long[SLOTS];
+	private final byte[][] datagrams = new byte[SLOTS][];
+	private final InetAddress[] senders = new InetAddress[SLOTS];
+
+	/**
+	 * Creates a new filter
+	 *
+	 * @param window
+	 *            the delay in ms during which a datagram repeat is considered as a duplicate
+	 */
+	DuplicateFilter(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * Records a datagram
+	 *
+	 * @param data
+	 *            the datagram data
+	 * @param length
+	 *            the datagram length
+	 * @param from
+	 *            the datagram sender address
+	 * @return true if the same datagram has been received from the same address within the window
+	 */
+	boolean isDuplicate(byte[] data, int length, InetAddress from) {
+		// FNV-1a over the datagram, the address hash and the length fill the other half
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < length; i++) {
+			hash ^= data[i];
+			hash *= 0x01000193;
+		}
+		long key = ((long) hash << 32) | ((from.hashCode() * 31 + length) & 0xffffffffL);
+		if (key == 0) {
+			// 0 marks the empty slots
+			key = 1;
+		}
+		int slot = (int) (key ^ (key >>> 32)) & (SLOTS - 1);
+		long now = System.currentTimeMillis();
+		if (keys[slot] == key && now - times[slot] <= window && from.equals(senders[slot]) && sameBytes(datagrams[slot], data, length)) {
+			return true;
+		}
+		byte[] copy = datagrams[slot];
+		if (copy == null || copy.length != length) {
+			copy = new byte[length];
+			datagrams[slot] = copy;
+		}
+		System.arraycopy(data, 0, copy, 0, length);
+		senders[slot] = from;
+		keys[slot] = key;
+		times[slot] = now;
+		return false;
+	}
+
+	private static boolean sameBytes(byte[] kept, byte[] data, int length) {
+		if (kept == null || kept.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (kept[i] != data[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copy on write registry of handlers grouped by a key ( search target or notification type ). Registrations copy the
+ * handlers table and publish the new one, lookups from the receiving thread never lock and never see a set being
+ * modified.
+ *
+ * @version 1.0
+ */
+
+final class HandlerRegistry<H> {
+	private volatile Map<String, Set<H>> handlers = Collections.emptyMap();
+
+	/**
+	 * The handlers registered for a key
+	 *
+	 * @param key
+	 *            the key
+	 * @return an unmodifiable set or null if no handler is registered for this key
+	 */
+	Set<H> get(String key) {
+		return handlers.get(key);
+	}
+
+	synchronized void add(String key, H handler) {
+		Set<H> current = handlers.get(key);
+		if (current != null && current.contains(handler)) {
+			return;
+		}
+		Set<H> set = current == null ? new LinkedHashSet<H>() : new LinkedHashSet<H>(current);
+		set.add(handler);
+		Map<String, Set<H>> copy = new HashMap<String, Set<H>>(handlers);
+		copy.put(key, Collections.unmodifiableSet(set));
+		handlers = copy;
+	}
+
+	synchronized void remove(String key, H handler) {
+		Set<H> current = handlers.get(key);
+		if (current == null || !current.contains(handler)) {
+			return;
+		}
+		Map<String, Set<H>> copy = new HashMap<String, Set<H>>(handlers);
+		if (current.size() == 1) {
+			copy.remove(key);
+		} else {
+			Set<H> set = new LinkedHashSet<H>(current);
+			set.remove(handler);
+			copy.put(key, Collections.unmodifiableSet(set));
+		}
+		handlers = copy;
+	}
+
+	boolean isEmpty() {
+		return handlers.isEmpty();
+	}
+}
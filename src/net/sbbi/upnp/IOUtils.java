@@ -0,0 +1,223 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Helpers used to read the documents sent by the UPNP devices. The read buffers are taken from a small shared pool,
+ * the 0x0 bytes sent by some buggy devices are replaced with 0x20 bytes while reading and the documents are decoded with
+ * an explicit charset, UTF-8 unless the device says otherwise.
+ *
+ * @version 1.0
+ */
+
+public final class IOUtils {
+	public final static String UTF8 = "UTF-8";
+
+	public final static int BUFFER_SIZE = 8192;
+
+	private final static int POOL_SIZE = 16;
+
+	private final static BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<byte[]>(POOL_SIZE);
+
+	private IOUtils() {
+	}
+
+	/**
+	 * Takes a read buffer of BUFFER_SIZE bytes from the pool, the buffer should be given back with releaseBuffer
+	 *
+	 * @return the buffer
+	 */
+	public static byte[] acquireBuffer() {
+		byte[] buffer = buffers.poll();
+		return buffer != null ? buffer : new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Gives back a buffer to the pool
+	 *
+	 * @param buffer
+	 *            a buffer obtained with acquireBuffer
+	 */
+	public static void releaseBuffer(byte[] buffer) {
+		if (buffer != null && buffer.length == BUFFER_SIZE) {
+			buffers.offer(buffer);
+		}
+	}
+
+	/**
+	 * Reads a stream until its end and closes it
+	 *
+	 * @param in
+	 *            the stream
+	 * @return the stream bytes
+	 * @throws IOException
+	 *             if the stream cannot be read
+	 */
+	public static byte[] readFully(InputStream in) throws IOException {
+		return read(in).toByteArray();
+	}
+
+	/**
+	 * Reads a document until the stream end and closes the stream, the 0x0 bytes are replaced with 0x20 bytes
+	 *
+	 * @param in
+	 *            the document stream
+	 * @param charset
+	 *            the document charset
+	 * @return the decoded document
+	 * @throws IOException
+	 *             if the stream cannot be read or the charset is not supported
+	 */
+	public static String readDocument(InputStream in, String charset) throws IOException {
+		return read(new ZeroByteFilterInputStream(in)).toString(charset);
+	}
+
+	/**
+	 * Replaces the 0x0 bytes of a buffer with 0x20 bytes
+	 *
+	 * @param data
+	 *            the buffer
+	 * @param off
+	 *            the first byte to check
+	 * @param len
+	 *            the number of bytes to check
+	 */
+	public static void replaceZeroBytes(byte[] data, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			if (data[i] == 0) {
+				data[i] = ' ';
+			}
+		}
+	}
+
+	/**
+	 * Extracts the charset of an HTTP Content-Type header value
+	 *
+	 * @param contentType
+	 *            the header value, can be null
+	 * @return the charset parameter value or UTF-8 if not provided
+	 */
+	public static String getCharset(String contentType) {
+		if (contentType == null) {
+			return UTF8;
+		}
+		int idx = contentType.toLowerCase().indexOf("charset=");
+		if (idx == -1) {
+			return UTF8;
+		}
+		String charset = contentType.substring(idx + 8);
+		int end = charset.indexOf(';');
+		if (end != -1) {
+			charset = charset.substring(0, end);
+		}
+		charset = charset.trim();
+		if (charset.length() > 1 && charset.charAt(0) == '"' && charset.charAt(charset.length() - 1) == '"') {
+			charset = charset.substring(1, charset.length() - 1);
+		}
+		return charset.length() > 0 ? charset : UTF8;
+	}
+
+	/**
+	 * Computes the SHA-1 hash of a document
+	 *
+	 * @param data
+	 *            the document bytes
+	 * @return the hash as an hexadecimal string
+	 */
+	public static String getHash(byte[] data) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			// every JRE must provide SHA-1
+			throw new IllegalStateException(ex);
+		}
+		byte[] hash = digest.digest(data);
+		StringBuilder rtrVal = new StringBuilder(hash.length * 2);
+		for (int i = 0; i < hash.length; i++) {
+			rtrVal.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+			rtrVal.append(Character.forDigit(hash[i] & 0xf, 16));
+		}
+		return rtrVal.toString();
+	}
+
+	/**
+	 * Escapes a string to be used as an XML element content
+	 *
+	 * @param value
+	 *            the string, can be null
+	 * @return the escaped string, the same instance when nothing needs escaping or an empty string for a null value
+	 */
+	public static String escapeXML(String value) {
+		if (value == null) {
+			return "";
+		}
+		int len = value.length();
+		int i = 0;
+		while (i < len) {
+			char c = value.charAt(i);
+			if (c == '&' || c == '<' || c == '>' || c == '\r') {
+				break;
+			}
+			i++;
+		}
+		if (i == len) {
+			return value;
+		}
+		StringBuilder rtrVal = new StringBuilder(len + 16);
+		rtrVal.append(value, 0, i);
+		for (; i < len; i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				rtrVal.append("&amp;");
+				break;
+			case '<':
+				rtrVal.append("&lt;");
+				break;
+			case '>':
+				rtrVal.append("&gt;");
+				break;
+			case '\r':
+				// would be normalized to a line feed by the device parser
+				rtrVal.append("&#13;");
+				break;
+			default:
+				rtrVal.append(c);
+			}
+		}
+		return rtrVal.toString();
+	}
+
+	private static ByteArrayOutputStream read(InputStream in) throws IOException {
+		byte[] buffer = acquireBuffer();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+			int readen;
+			while ((readen = in.read(buffer)) != -1) {
+				out.write(buffer, 0, readen);
+			}
+			return out;
+		} finally {
+			releaseBuffer(buffer);
+			in.close();
+		}
+	}
+}
@@ -14,6 +14,7 @@ package net.sbbi.upnp;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 
 import org.apache.commons.jxpath.xml.DOMParser;
 import org.apache.commons.jxpath.xml.XMLParser2;
@@ -21,36 +22,33 @@ import org.apache.log4j.Logger;
 
 /**
  * Parser to use with JXPath, this is used to fix some problems encountered with some UPNP devices returning buggy xml
- * docs... This parser acts like a wrapper and make some chars search and replace such as 0x0 with 0x20 to produce a
- * valid XML doc.
+ * docs... This parser acts like a wrapper and replaces the 0x0 bytes with 0x20 while streaming the document to the DOM
+ * parser to produce a valid XML doc. The document encoding is detected by the DOM parser.
  * 
  * @author <a href="mailto:superbonbon@sbbi.net">SuperBonBon</a>
  * @version 1.0
  */
 public class JXPathParser extends XMLParser2 {
 	private final static Logger log = Logger.getLogger(JXPathParser.class);
-	private final char buggyChar = (char) 0;
-
 	@Override
 	public Object parseXML(InputStream in) {
-		StringBuffer xml = new StringBuffer();
-		try {
-			byte[] buffer = new byte[512];
-			int readen = 0;
-			while ((readen = in.read(buffer)) != -1) {
-				xml.append(new String(buffer, 0, readen));
+		InputStream doc = new ZeroByteFilterInputStream(in);
+		if (log.isDebugEnabled()) {
+			byte[] data;
+			try {
+				data = IOUtils.readFully(doc);
+			} catch (IOException ex) {
+				log.error("IOException occured during XML reception", ex);
+				return null;
 			}
-		} catch (IOException ex) {
-			log.error("IOException occured during XML reception", ex);
-			return null;
-		}
-		String doc = xml.toString();
-		log.debug("Raw xml doc:\n" + doc);
-		if (doc.indexOf(buggyChar) != -1) {
-			doc = doc.replace(buggyChar, ' ');
+			try {
+				log.debug("Raw xml doc:\n" + new String(data, IOUtils.UTF8));
+			} catch (UnsupportedEncodingException ex) {
+				// UTF-8 is always supported
+			}
+			doc = new ByteArrayInputStream(data);
 		}
-		ByteArrayInputStream in2 = new ByteArrayInputStream(doc.getBytes());
 		DOMParser parser = new DOMParser();
-		return parser.parseXML(in2);
+		return parser.parseXML(doc);
 	}
 }
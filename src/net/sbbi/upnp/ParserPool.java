@@ -0,0 +1,174 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Small shared pools of namespace aware, non validating, SAX parsers and DOM builders used to parse the SOAP and GENA
+ * messages. The parser factories are looked up once and the parsers are reset and kept for the next message instead
+ * of being created for each one. Parsers taken while the pool is empty are created on the fly, parsers given back while
+ * the pool is full are dropped.
+ *
+ * @version 1.0
+ */
+
+public final class ParserPool {
+
+	private final static int POOL_SIZE = 16;
+
+	private final static SAXParserFactory saxFactory = SAXParserFactory.newInstance();
+	private final static DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
+
+	private final static BlockingQueue<SAXParser> saxParsers = new ArrayBlockingQueue<SAXParser>(POOL_SIZE);
+	private final static BlockingQueue<DocumentBuilder> domBuilders = new ArrayBlockingQueue<DocumentBuilder>(POOL_SIZE);
+
+	static {
+		saxFactory.setValidating(false);
+		saxFactory.setNamespaceAware(true);
+		domFactory.setValidating(false);
+		domFactory.setNamespaceAware(true);
+	}
+
+	private ParserPool() {
+	}
+
+	/**
+	 * Parses a document with a pooled SAX parser
+	 *
+	 * @param src
+	 *            the document
+	 * @param handler
+	 *            the SAX handler
+	 * @throws SAXException
+	 *             if the document cannot be parsed
+	 * @throws IOException
+	 *             if the document cannot be read
+	 */
+	public static void parse(InputSource src, DefaultHandler handler) throws SAXException, IOException {
+		SAXParser parser = acquireSAXParser();
+		try {
+			parser.parse(src, handler);
+		} finally {
+			releaseSAXParser(parser);
+		}
+	}
+
+	/**
+	 * Parses a document to a DOM with a pooled document builder
+	 *
+	 * @param src
+	 *            the document
+	 * @return the parsed document
+	 * @throws SAXException
+	 *             if the document cannot be parsed
+	 * @throws IOException
+	 *             if the document cannot be read
+	 */
+	public static Document parse(InputSource src) throws SAXException, IOException {
+		DocumentBuilder builder = acquireDocumentBuilder();
+		try {
+			return builder.parse(src);
+		} finally {
+			releaseDocumentBuilder(builder);
+		}
+	}
+
+	/**
+	 * Takes a SAX parser from the pool, the parser should be given back with releaseSAXParser
+	 *
+	 * @return the parser
+	 */
+	public static SAXParser acquireSAXParser() {
+		SAXParser parser = saxParsers.poll();
+		if (parser != null) {
+			return parser;
+		}
+		try {
+			synchronized (saxFactory) {
+				return saxFactory.newSAXParser();
+			}
+		} catch (ParserConfigurationException confEx) {
+			// should never happen
+			// we throw a runtimeException to notify the env problem
+			throw new RuntimeException("ParserConfigurationException during SAX parser creation, please check your env settings:" + confEx.getMessage());
+		} catch (SAXException saxEx) {
+			throw new RuntimeException("SAXException during SAX parser creation, please check your env settings:" + saxEx.getMessage());
+		}
+	}
+
+	/**
+	 * Resets a SAX parser and gives it back to the pool
+	 *
+	 * @param parser
+	 *            a parser obtained with acquireSAXParser
+	 */
+	public static void releaseSAXParser(SAXParser parser) {
+		try {
+			parser.reset();
+		} catch (UnsupportedOperationException ex) {
+			// parser not reusable
+			return;
+		}
+		saxParsers.offer(parser);
+	}
+
+	/**
+	 * Takes a DOM document builder from the pool, the builder should be given back with releaseDocumentBuilder
+	 *
+	 * @return the builder
+	 */
+	public static DocumentBuilder acquireDocumentBuilder() {
+		DocumentBuilder builder = domBuilders.poll();
+		if (builder != null) {
+			return builder;
+		}
+		try {
+			synchronized (domFactory) {
+				return domFactory.newDocumentBuilder();
+			}
+		} catch (ParserConfigurationException confEx) {
+			// should never happen
+			// we throw a runtimeException to notify the env problem
+			throw new RuntimeException("ParserConfigurationException during DOM builder creation, please check your env settings:" + confEx.getMessage());
+		}
+	}
+
+	/**
+	 * Resets a DOM document builder and gives it back to the pool
+	 *
+	 * @param builder
+	 *            a builder obtained with acquireDocumentBuilder
+	 */
+	public static void releaseDocumentBuilder(DocumentBuilder builder) {
+		try {
+			builder.reset();
+		} catch (UnsupportedOperationException ex) {
+			// builder not reusable
+			return;
+		}
+		domBuilders.offer(builder);
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Delivers the SSDP events to the DiscoveryResultsHandler and DiscoveryEventHandler objects. Each handler gets its own
+ * bounded queue of events, drained in order by its own pooled thread, so a slow handler only delays its own events and
+ * never the SSDP reactor thread shared by all the discoveries and advertisement listeners. When a handler queue is
+ * full the new events are dropped by default, or the receiving thread waits for some room. With a queue size of 0 the
+ * handlers are called directly by the SSDP reactor thread, a slow handler then delays the reception of every SSDP
+ * message. The library own handlers never block and are always called directly.
+ * <br/>
+ * The queue size, DEFAULT_QUEUE_SIZE unless changed, can be set with the net.sbbi.upnp.SSDPEventDispatcher.queueSize
+ * system property and the overflow policy with the net.sbbi.upnp.SSDPEventDispatcher.overflow system property set to
+ * drop or block.
+ *
+ * @version 1.0
+ */
+
+public class SSDPEventDispatcher {
+	private final static Logger log = Logger.getLogger(SSDPEventDispatcher.class);
+
+	public final static int OVERFLOW_DROP = 0;
+	public final static int OVERFLOW_BLOCK = 1;
+
+	public final static int DEFAULT_QUEUE_SIZE = 1024;
+
+	private final static SSDPEventDispatcher singleton = new SSDPEventDispatcher();
+
+	private final Map<Object, HandlerQueue> queues = new HashMap<Object, HandlerQueue>();
+	private final Set<Object> inlineHandlers = Collections.newSetFromMap(new WeakHashMap<Object, Boolean>());
+
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private int overflow = OVERFLOW_DROP;
+	private long droppedEvents = 0;
+	private ExecutorService executor;
+
+	private SSDPEventDispatcher() {
+		String prop = System.getProperty("net.sbbi.upnp.SSDPEventDispatcher.queueSize");
+		if (prop != null)
+			queueSize = Integer.parseInt(prop);
+		prop = System.getProperty("net.sbbi.upnp.SSDPEventDispatcher.overflow");
+		if (prop != null && prop.equals("block"))
+			overflow = OVERFLOW_BLOCK;
+	}
+
+	public final static SSDPEventDispatcher getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Sets the size of each handler events queue
+	 *
+	 * @param queueSize
+	 *            the maximum number of pending events per handler, 0 to call the handlers from the SSDP reactor thread
+	 */
+	public void setQueueSize(int queueSize) {
+		if (queueSize < 0) {
+			throw new IllegalArgumentException("Illegal queueSize " + queueSize);
+		}
+		synchronized (queues) {
+			this.queueSize = queueSize;
+			queues.notifyAll();
+		}
+	}
+
+	public int getQueueSize() {
+		synchronized (queues) {
+			return queueSize;
+		}
+	}
+
+	/**
+	 * Sets what happens when a handler queue is full
+	 *
+	 * @param overflow
+	 *            either SSDPEventDispatcher.OVERFLOW_DROP or SSDPEventDispatcher.OVERFLOW_BLOCK
+	 */
+	public void setOverflowPolicy(int overflow) {
+		if (overflow != OVERFLOW_DROP && overflow != OVERFLOW_BLOCK) {
+			throw new IllegalArgumentException("Unknown overflow policy");
+		}
+		synchronized (queues) {
+			this.overflow = overflow;
+			queues.notifyAll();
+		}
+	}
+
+	public int getOverflowPolicy() {
+		synchronized (queues) {
+			return overflow;
+		}
+	}
+
+	/**
+	 * The number of events dropped so far because a handler queue was full
+	 *
+	 * @return the dropped events count
+	 */
+	public long getDroppedEvents() {
+		synchronized (queues) {
+			return droppedEvents;
+		}
+	}
+
+	/**
+	 * Marks a library handler to be always called directly by the receiving thread, the handler must never block
+	 *
+	 * @param handler
+	 *            the handler
+	 */
+	void setInline(Object handler) {
+		synchronized (queues) {
+			inlineHandlers.add(handler);
+		}
+	}
+
+	/**
+	 * Delivers an event to a handler
+	 *
+	 * @param handler
+	 *            the handler, used to select the events queue
+	 * @param event
+	 *            the event delivery
+	 */
+	void dispatch(Object handler, Runnable event) {
+		synchronized (queues) {
+			if (queueSize > 0 && !inlineHandlers.contains(handler)) {
+				enqueue(handler, event);
+				return;
+			}
+		}
+		deliver(event);
+	}
+
+	private void enqueue(Object handler, Runnable event) {
+		while (true) {
+			// the queue is looked up again after waiting since a drained queue leaves the table
+			HandlerQueue queue = queues.get(handler);
+			if (queue == null) {
+				queue = new HandlerQueue(handler);
+				queues.put(handler, queue);
+			}
+			if (queueSize == 0 || queue.events.size() < queueSize) {
+				queue.events.add(event);
+				if (!queue.scheduled) {
+					queue.scheduled = true;
+					getExecutor().execute(queue);
+				}
+				return;
+			}
+			if (overflow == OVERFLOW_DROP) {
+				droppedEvents++;
+				if (log.isDebugEnabled())
+					log.debug("Events queue full, dropping SSDP event for handler " + handler);
+				return;
+			}
+			try {
+				queues.wait();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				droppedEvents++;
+				return;
+			}
+		}
+	}
+
+	private ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private int count = 0;
+
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SSDPEventDispatcher " + (++count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	private static void deliver(Runnable event) {
+		try {
+			event.run();
+		} catch (RuntimeException ex) {
+			log.error("Unexpected error during SSDP event handler notification", ex);
+		}
+	}
+
+	private class HandlerQueue implements Runnable {
+		private final Object handler;
+		private final ArrayDeque<Runnable> events = new ArrayDeque<Runnable>();
+		private boolean scheduled = false;
+
+		private HandlerQueue(Object handler) {
+			this.handler = handler;
+		}
+
+		public void run() {
+			while (true) {
+				Runnable event;
+				synchronized (queues) {
+					event = events.poll();
+					if (event == null) {
+						scheduled = false;
+						queues.remove(handler);
+						return;
+					}
+					queues.notifyAll();
+				}
+				deliver(event);
+			}
+		}
+	}
+}
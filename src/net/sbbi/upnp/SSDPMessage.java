@@ -0,0 +1,254 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.nio.charset.Charset;
+
+/**
+ * View over a received SSDP datagram. Parsing only records the offsets of the start line and of the header fields used
+ * by the SSDP listeners, the header names are matched case-insensitively on the raw bytes and the fields values are
+ * only decoded when asked for. An instance is meant to be reused for every datagram received by a listener, it is not
+ * thread safe.
+ *
+ * @version 1.0
+ */
+
+final class SSDPMessage {
+	final static int ST = 0;
+	final static int NT = 1;
+	final static int NTS = 2;
+	final static int USN = 3;
+	final static int LOCATION = 4;
+	final static int CACHE_CONTROL = 5;
+	final static int SERVER = 6;
+	final static int BOOTID = 7;
+	final static int CONFIGID = 8;
+
+	private final static byte[][] FIELD_NAMES = { ascii("ST"), ascii("NT"), ascii("NTS"), ascii("USN"), ascii("LOCATION"),
+			ascii("CACHE-CONTROL"), ascii("SERVER"), ascii("BOOTID.UPNP.ORG"), ascii("CONFIGID.UPNP.ORG") };
+
+	private final static byte[] SEARCH_RESPONSE = ascii("HTTP/1.1 200 OK");
+	private final static byte[] NOTIFY = ascii("NOTIFY");
+	private final static byte[] MAX_AGE = ascii("MAX-AGE");
+
+	private final static Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	private byte[] data;
+	private int length;
+	private int startLineEnd;
+	private final int[] fieldStarts = new int[FIELD_NAMES.length];
+	private final int[] fieldEnds = new int[FIELD_NAMES.length];
+	private final String[] fieldValues = new String[FIELD_NAMES.length];
+
+	/**
+	 * Parses a datagram, the data array is referenced until the next call
+	 *
+	 * @param data
+	 *            the datagram data
+	 * @param length
+	 *            the datagram length
+	 * @return false if the datagram is not an HTTP like message
+	 */
+	boolean parse(byte[] data, int length) {
+		this.data = data;
+		this.length = length;
+		for (int i = 0; i < FIELD_NAMES.length; i++) {
+			fieldStarts[i] = -1;
+			fieldValues[i] = null;
+		}
+		int lineStart = 0;
+		startLineEnd = -1;
+		while (lineStart < length) {
+			int lineEnd = lineStart;
+			while (lineEnd < length && data[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			int next = lineEnd + 1;
+			if (lineEnd > lineStart && data[lineEnd - 1] == '\r') {
+				lineEnd--;
+			}
+			if (startLineEnd == -1) {
+				if (lineEnd == lineStart) {
+					return false;
+				}
+				startLineEnd = lineEnd;
+			} else if (lineEnd == lineStart) {
+				// end of the headers
+				break;
+			} else {
+				int colon = lineStart;
+				while (colon < lineEnd && data[colon] != ':') {
+					colon++;
+				}
+				if (colon == lineEnd) {
+					return false;
+				}
+				int field = matchField(lineStart, trimEnd(lineStart, colon));
+				if (field != -1) {
+					int valueStart = trimStart(colon + 1, lineEnd);
+					fieldStarts[field] = valueStart;
+					fieldEnds[field] = trimEnd(valueStart, lineEnd);
+				}
+			}
+			lineStart = next;
+		}
+		return startLineEnd != -1;
+	}
+
+	boolean isSearchResponse() {
+		return startsWith(0, startLineEnd, SEARCH_RESPONSE);
+	}
+
+	boolean isNotify() {
+		return startsWith(0, startLineEnd, NOTIFY);
+	}
+
+	/**
+	 * Tells if a header field is present without decoding it
+	 *
+	 * @param field
+	 *            the field index
+	 * @return true if the field is present and not empty
+	 */
+	boolean hasField(int field) {
+		return fieldStarts[field] != -1 && fieldEnds[field] > fieldStarts[field];
+	}
+
+	/**
+	 * Decodes a header field value
+	 *
+	 * @param field
+	 *            the field index
+	 * @return the trimmed field value or null if the field is not present or empty
+	 */
+	String getField(int field) {
+		if (fieldValues[field] == null && hasField(field)) {
+			fieldValues[field] = new String(data, fieldStarts[field], fieldEnds[field] - fieldStarts[field], CHARSET);
+		}
+		return fieldValues[field];
+	}
+
+	/**
+	 * Compares a header field value without decoding it
+	 *
+	 * @param field
+	 *            the field index
+	 * @param value
+	 *            the expected ASCII value
+	 * @return true if the field is present and matches the value
+	 */
+	boolean fieldEquals(int field, String value) {
+		int start = fieldStarts[field];
+		if (start == -1 || fieldEnds[field] - start != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (data[start + i] != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Extracts the max-age element of the CACHE-CONTROL field
+	 *
+	 * @return the max-age value or null if not present
+	 */
+	String getMaxAge() {
+		int start = fieldStarts[CACHE_CONTROL];
+		if (start == -1) {
+			return null;
+		}
+		int end = fieldEnds[CACHE_CONTROL];
+		while (start < end) {
+			int tokenEnd = start;
+			while (tokenEnd < end && data[tokenEnd] != ',') {
+				tokenEnd++;
+			}
+			int tokenStart = trimStart(start, tokenEnd);
+			if (startsWith(tokenStart, tokenEnd, MAX_AGE)) {
+				int equal = tokenStart + MAX_AGE.length;
+				while (equal < tokenEnd && data[equal] != '=') {
+					equal++;
+				}
+				if (equal < tokenEnd) {
+					int valueStart = trimStart(equal + 1, tokenEnd);
+					int valueEnd = trimEnd(valueStart, tokenEnd);
+					if (valueEnd > valueStart) {
+						return new String(data, valueStart, valueEnd - valueStart, CHARSET);
+					}
+				}
+				return null;
+			}
+			start = tokenEnd + 1;
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return data == null ? "" : new String(data, 0, length, CHARSET);
+	}
+
+	private int matchField(int start, int end) {
+		int len = end - start;
+		for (int i = 0; i < FIELD_NAMES.length; i++) {
+			byte[] name = FIELD_NAMES[i];
+			if (name.length == len && startsWith(start, end, name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Case-insensitive ASCII comparison against an upper case prefix
+	 */
+	private boolean startsWith(int start, int end, byte[] prefix) {
+		if (end - start < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			int b = data[start + i];
+			if (b >= 'a' && b <= 'z') {
+				b -= 'a' - 'A';
+			}
+			if (b != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int trimStart(int start, int end) {
+		while (start < end && (data[start] == ' ' || data[start] == '\t')) {
+			start++;
+		}
+		return start;
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\t')) {
+			end--;
+		}
+		return end;
+	}
+
+	private static byte[] ascii(String value) {
+		byte[] bytes = new byte[value.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) value.charAt(i);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Single thread reactor shared by the SSDP listeners ( DiscoveryListener and DiscoveryAdvertisement ). Every SSDP
+ * datagram channel is registered against one selector, the reactor thread only wakes up when a channel has datagrams
+ * waiting and reads at most MAX_DATAGRAMS_PER_PASS of them before moving to the next ready channel, so a flooded channel
+ * cannot starve the others, the datagrams left are read on the next selection. The thread is started with the first
+ * registered channel and exits once the last one has been unregistered.
+ * <br/>
+ * The channels receive buffer size can be set with the net.sbbi.upnp.SSDPReactor.receiveBuffer system property and
+ * the largest accepted datagram with the net.sbbi.upnp.SSDPReactor.maxDatagramSize system property, larger datagrams
+ * are counted and skipped. The reception counters are available from the SSDPStatistics class.
+ *
+ * @version 1.0
+ */
+
+final class SSDPReactor implements Runnable {
+	private final static Logger log = Logger.getLogger(SSDPReactor.class);
+
+	private final static String THREAD_NAME = "SSDPReactor daemon";
+
+	private final static int MAX_DATAGRAMS_PER_PASS = 64;
+
+	public final static int DEFAULT_RECEIVE_BUFFER = 256 * 1024;
+	public final static int DEFAULT_MAX_DATAGRAM_SIZE = 8192;
+
+	private static int receiveBuffer = DEFAULT_RECEIVE_BUFFER;
+	private static int maxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+
+	static {
+		String prop = System.getProperty("net.sbbi.upnp.SSDPReactor.receiveBuffer");
+		if (prop != null)
+			receiveBuffer = Integer.parseInt(prop);
+		prop = System.getProperty("net.sbbi.upnp.SSDPReactor.maxDatagramSize");
+		if (prop != null)
+			maxDatagramSize = Integer.parseInt(prop);
+	}
+
+	private final static SSDPReactor singleton = new SSDPReactor();
+
+	/**
+	 * Callback used by the reactor to hand over a received datagram, the data array is reused by the reactor and is
+	 * only valid during the call
+	 */
+	interface DatagramHandler {
+		/**
+		 * Called by the reactor thread for each datagram received on the channel
+		 *
+		 * @param data
+		 *            the datagram data
+		 * @param length
+		 *            the datagram length
+		 * @param from
+		 *            the datagram sender address
+		 * @throws IOException
+		 *             if some error occurs during the datagram processing
+		 */
+		public void datagramReceived(byte[] data, int length, InetAddress from) throws IOException;
+	}
+
+	private final Object REGISTRATION_PROCESS = new Object();
+	private final List<PendingOperation> pendingOperations = new ArrayList<PendingOperation>();
+
+	private Selector selector;
+	private int registeredChannels = 0;
+	private boolean daemon = true;
+
+	// one extra byte to detect the truncated datagrams
+	private final ByteBuffer input = ByteBuffer.allocate(maxDatagramSize + 1);
+
+	private SSDPReactor() {
+	}
+
+	final static SSDPReactor getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Sets the reactor thread as a daemon thread, only taken into account the next time the thread starts
+	 *
+	 * @param daemon
+	 *            daemon thread
+	 */
+	void setDaemon(boolean daemon) {
+		this.daemon = daemon;
+	}
+
+	/**
+	 * Opens a non blocking datagram channel bound on all the local addresses and joined to the SSDP multicast group on
+	 * every multicast capable network interface
+	 *
+	 * @param port
+	 *            the local port to bind
+	 * @return the channel ready to be registered
+	 * @throws IOException
+	 *             if the channel cannot be bound or cannot join the SSDP group on any interface
+	 */
+	static DatagramChannel openMulticastChannel(int port) throws IOException {
+		DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		try {
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+			configureReceiveBuffer(channel);
+			channel.bind(new InetSocketAddress(port));
+			SSDPStatistics.getInstance().portBound(port);
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, Integer.valueOf(Discovery.DEFAULT_TTL));
+			InetAddress group = InetAddress.getByName(Discovery.SSDP_IP);
+			int joined = 0;
+			for (Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces(); e.hasMoreElements();) {
+				NetworkInterface intf = e.nextElement();
+				if (!intf.isUp() || !intf.supportsMulticast() || intf.isLoopback() || !hasInet4Address(intf)) {
+					continue;
+				}
+				try {
+					channel.join(group, intf);
+					joined++;
+				} catch (IOException ex) {
+					if (log.isDebugEnabled())
+						log.debug("Unable to join SSDP group on interface " + intf.getName(), ex);
+				}
+			}
+			if (joined == 0) {
+				// no usable interface, last chance with the loopback interface
+				NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getByName("127.0.0.1"));
+				if (loopback == null) {
+					throw new IOException("No network interface available to join the SSDP multicast group");
+				}
+				channel.join(group, loopback);
+			}
+			channel.configureBlocking(false);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+		return channel;
+	}
+
+	/**
+	 * Sets the receive buffer size of a channel, should be called before binding the channel
+	 *
+	 * @param channel
+	 *            the channel
+	 * @throws IOException
+	 *             if the option cannot be set
+	 */
+	static void configureReceiveBuffer(DatagramChannel channel) throws IOException {
+		if (receiveBuffer > 0) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(receiveBuffer));
+			if (log.isDebugEnabled())
+				log.debug("SSDP channel receive buffer set to " + channel.getOption(StandardSocketOptions.SO_RCVBUF) + " bytes");
+		}
+	}
+
+	private static boolean hasInet4Address(NetworkInterface intf) {
+		for (Enumeration<InetAddress> adrs = intf.getInetAddresses(); adrs.hasMoreElements();) {
+			if (adrs.nextElement() instanceof Inet4Address) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Registers a channel, the reactor thread is started if required
+	 *
+	 * @param channel
+	 *            a non blocking datagram channel
+	 * @param handler
+	 *            the handler that will receive the channel datagrams
+	 * @throws IOException
+	 *             if the reactor selector cannot be opened
+	 */
+	void register(DatagramChannel channel, DatagramHandler handler) throws IOException {
+		synchronized (REGISTRATION_PROCESS) {
+			if (selector == null) {
+				selector = Selector.open();
+				Thread deamon = new Thread(this, THREAD_NAME);
+				deamon.setDaemon(daemon);
+				deamon.start();
+			}
+			registeredChannels++;
+			pendingOperations.add(new PendingOperation(channel, handler));
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Unregisters and closes a channel, the reactor thread will exit when no more channels are registered
+	 *
+	 * @param channel
+	 *            the channel to close
+	 */
+	void unRegister(DatagramChannel channel) {
+		synchronized (REGISTRATION_PROCESS) {
+			if (selector == null) {
+				try {
+					channel.close();
+				} catch (IOException ex) {
+					// ignoring
+				}
+				return;
+			}
+			registeredChannels--;
+			pendingOperations.add(new PendingOperation(channel, null));
+			selector.wakeup();
+		}
+	}
+
+	public void run() {
+		if (!Thread.currentThread().getName().equals(THREAD_NAME)) {
+			throw new RuntimeException("No right to call this method");
+		}
+		Selector slct;
+		synchronized (REGISTRATION_PROCESS) {
+			slct = selector;
+		}
+		while (true) {
+			synchronized (REGISTRATION_PROCESS) {
+				processPendingOperations(slct);
+				if (registeredChannels == 0) {
+					selector = null;
+					break;
+				}
+			}
+			try {
+				slct.select();
+			} catch (IOException ex) {
+				log.error("Fatal Error during UPNP SSDPReactor selection, thread will exit", ex);
+				synchronized (REGISTRATION_PROCESS) {
+					selector = null;
+					pendingOperations.clear();
+					registeredChannels = 0;
+				}
+				break;
+			}
+			for (Iterator<SelectionKey> i = slct.selectedKeys().iterator(); i.hasNext();) {
+				SelectionKey key = i.next();
+				i.remove();
+				if (key.isValid() && key.isReadable()) {
+					drainChannel((DatagramChannel) key.channel(), (DatagramHandler) key.attachment());
+				}
+			}
+		}
+		for (Iterator<SelectionKey> i = slct.keys().iterator(); i.hasNext();) {
+			try {
+				i.next().channel().close();
+			} catch (IOException ex) {
+				// ignoring
+			}
+		}
+		try {
+			slct.close();
+		} catch (IOException ex) {
+			// ignoring
+		}
+	}
+
+	private void processPendingOperations(Selector slct) {
+		for (Iterator<PendingOperation> i = pendingOperations.iterator(); i.hasNext();) {
+			PendingOperation op = i.next();
+			i.remove();
+			if (op.handler != null) {
+				try {
+					op.channel.register(slct, SelectionKey.OP_READ, op.handler);
+				} catch (IOException ex) {
+					log.error("Unable to register SSDP channel " + op.channel, ex);
+					registeredChannels--;
+				}
+			} else {
+				SelectionKey key = op.channel.keyFor(slct);
+				if (key != null) {
+					key.cancel();
+				}
+				try {
+					op.channel.close();
+				} catch (IOException ex) {
+					// ignoring
+				}
+			}
+		}
+	}
+
+	private void drainChannel(DatagramChannel channel, DatagramHandler handler) {
+		for (int count = 0; count < MAX_DATAGRAMS_PER_PASS; count++) {
+			input.clear();
+			SocketAddress from;
+			try {
+				from = channel.receive(input);
+			} catch (IOException ex) {
+				log.error("IO Exception during UPNP SSDPReactor datagram reception", ex);
+				return;
+			}
+			if (from == null) {
+				// nothing more waiting on this channel
+				return;
+			}
+			SSDPStatistics stats = SSDPStatistics.getInstance();
+			stats.datagramReceived();
+			if (input.position() > maxDatagramSize) {
+				stats.datagramOversize();
+				stats.datagramRejected();
+				if (log.isDebugEnabled())
+					log.debug("Skipping datagram larger than " + maxDatagramSize + " bytes from " + from);
+				continue;
+			}
+			try {
+				handler.datagramReceived(input.array(), input.position(), ((InetSocketAddress) from).getAddress());
+			} catch (IOException ioEx) {
+				log.error("IO Exception during UPNP SSDP message processing", ioEx);
+			} catch (Exception ex) {
+				log.error("Unexpected error during UPNP SSDP message processing", ex);
+			}
+		}
+	}
+
+	private static class PendingOperation {
+		private final DatagramChannel channel;
+		private final DatagramHandler handler;
+
+		private PendingOperation(DatagramChannel channel, DatagramHandler handler) {
+			this.channel = channel;
+			this.handler = handler;
+		}
+	}
+}
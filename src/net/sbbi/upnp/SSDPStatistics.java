@@ -0,0 +1,185 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the datagrams received by the SSDP listeners ( DiscoveryListener and DiscoveryAdvertisement ). The kernel
+ * drops estimate is only available on Linux, it is read from /proc/net/udp for the local SSDP ports and may include
+ * the drops of other processes sockets bound on the same ports.
+ *
+ * @version 1.0
+ */
+
+public final class SSDPStatistics {
+	private final static String PROC_NET_UDP = "/proc/net/udp";
+
+	private final static SSDPStatistics singleton = new SSDPStatistics();
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong parsed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong oversize = new AtomicLong();
+	private final AtomicLong duplicate = new AtomicLong();
+	private final Set<Integer> ports = Collections.synchronizedSet(new HashSet<Integer>());
+
+	private SSDPStatistics() {
+	}
+
+	public final static SSDPStatistics getInstance() {
+		return singleton;
+	}
+
+	void datagramReceived() {
+		received.incrementAndGet();
+	}
+
+	void datagramParsed() {
+		parsed.incrementAndGet();
+	}
+
+	void datagramRejected() {
+		rejected.incrementAndGet();
+	}
+
+	void datagramOversize() {
+		oversize.incrementAndGet();
+	}
+
+	void datagramDuplicate() {
+		duplicate.incrementAndGet();
+	}
+
+	void portBound(int port) {
+		ports.add(Integer.valueOf(port));
+	}
+
+	/**
+	 * The number of datagrams received, oversize ones included
+	 *
+	 * @return the datagrams count
+	 */
+	public long getReceivedDatagrams() {
+		return received.get();
+	}
+
+	/**
+	 * The number of datagrams parsed as HTTP like messages
+	 *
+	 * @return the datagrams count
+	 */
+	public long getParsedDatagrams() {
+		return parsed.get();
+	}
+
+	/**
+	 * The number of datagrams that could not be parsed or were not valid SSDP messages, oversize datagrams included
+	 *
+	 * @return the datagrams count
+	 */
+	public long getRejectedDatagrams() {
+		return rejected.get();
+	}
+
+	/**
+	 * The number of datagrams larger than the net.sbbi.upnp.SSDPReactor.maxDatagramSize system property
+	 *
+	 * @return the datagrams count
+	 */
+	public long getOversizeDatagrams() {
+		return oversize.get();
+	}
+
+	/**
+	 * The number of NOTIFY datagrams dropped before parsing because they repeated a datagram just received
+	 *
+	 * @return the datagrams count
+	 */
+	public long getDuplicateDatagrams() {
+		return duplicate.get();
+	}
+
+	/**
+	 * Estimates the number of datagrams dropped by the kernel on the SSDP ports since their sockets were opened
+	 *
+	 * @return the dropped datagrams count or -1 if not available on this platform
+	 */
+	public long getKernelDrops() {
+		File proc = new File(PROC_NET_UDP);
+		if (!proc.canRead()) {
+			return -1;
+		}
+		long drops = 0;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(proc));
+			// skipping the header line
+			String line = reader.readLine();
+			while ((line = reader.readLine()) != null) {
+				StringTokenizer tokens = new StringTokenizer(line);
+				if (tokens.countTokens() < 13) {
+					continue;
+				}
+				tokens.nextToken();
+				String local = tokens.nextToken();
+				int port = Integer.parseInt(local.substring(local.indexOf(':') + 1), 16);
+				if (!ports.contains(Integer.valueOf(port))) {
+					continue;
+				}
+				String last = null;
+				while (tokens.hasMoreTokens()) {
+					last = tokens.nextToken();
+				}
+				drops += Long.parseLong(last);
+			}
+		} catch (IOException ex) {
+			return -1;
+		} catch (NumberFormatException ex) {
+			return -1;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException ex) {
+					// ignoring
+				}
+			}
+		}
+		return drops;
+	}
+
+	/**
+	 * Resets the counters, the kernel drops estimate is not affected
+	 */
+	public void reset() {
+		received.set(0);
+		parsed.set(0);
+		rejected.set(0);
+		oversize.set(0);
+		duplicate.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "received=" + getReceivedDatagrams() + " parsed=" + getParsedDatagrams() + " rejected=" + getRejectedDatagrams()
+				+ " oversize=" + getOversizeDatagrams() + " duplicate=" + getDuplicateDatagrams() + " kernelDrops=" + getKernelDrops();
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends the M-SEARCH messages. One non blocking datagram channel bound on the search port is kept per local address
+ * and registered with the SSDPReactor, the devices unicast responses sent back to this address are handed over to the
+ * DiscoveryListener. The channels are closed after a while without search. The local addresses table and the search
+ * messages payloads are cached, the table is refreshed periodically or when a send fails.
+ *
+ * @version 1.0
+ */
+
+final class SearchSender {
+	private final static Logger log = Logger.getLogger(SearchSender.class);
+
+	private final static long INTERFACES_REFRESH = 30000;
+	private final static long SENDERS_LINGER = 60000;
+	private final static int MAX_PAYLOADS = 32;
+
+	private final static SearchSender singleton = new SearchSender();
+
+	private final InetSocketAddress ssdpAddress = new InetSocketAddress(Discovery.SSDP_IP, Discovery.SSDP_PORT);
+	private final int bindPort;
+
+	private final Map<String, byte[]> payloads = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+			return size() > MAX_PAYLOADS;
+		}
+	};
+
+	private final Map<InetAddress, Sender> senders = new HashMap<InetAddress, Sender>();
+	private Map<InetAddress, NetworkInterface> interfaces;
+	private long interfacesExpiry;
+	private ScheduledFuture<?> lingerTask;
+
+	private final Runnable closeSenders = new Runnable() {
+		public void run() {
+			closeSenders();
+		}
+	};
+
+	private final SSDPReactor.DatagramHandler responsesHandler = new SSDPReactor.DatagramHandler() {
+		public void datagramReceived(byte[] data, int length, InetAddress from) throws IOException {
+			DiscoveryListener.getInstance().listenBroadCast(data, length, from);
+		}
+	};
+
+	private SearchSender() {
+		int port = Discovery.DEFAULT_SSDP_SEARCH_PORT;
+		String prop = System.getProperty("net.sbbi.upnp.Discovery.bindPort");
+		if (prop != null) {
+			port = Integer.parseInt(prop);
+		}
+		bindPort = port;
+	}
+
+	final static SearchSender getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Sends a search message from every IPv4 address of a network interface
+	 *
+	 * @param ttl
+	 *            the time to live
+	 * @param mx
+	 *            the mx field
+	 * @param searchTarget
+	 *            the search target
+	 * @param ni
+	 *            the network interface to use, null for all the network interfaces
+	 * @throws IOException
+	 *             if the network interfaces cannot be listed
+	 */
+	synchronized void send(int ttl, int mx, String searchTarget, NetworkInterface ni) throws IOException {
+		Map<InetAddress, NetworkInterface> sources;
+		if (ni == null) {
+			sources = getInterfaces();
+		} else {
+			sources = new LinkedHashMap<InetAddress, NetworkInterface>();
+			addSources(ni, sources);
+		}
+		byte[] payload = getPayload(mx, searchTarget);
+		for (Iterator<Map.Entry<InetAddress, NetworkInterface>> i = sources.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<InetAddress, NetworkInterface> source = i.next();
+			try {
+				send(source.getKey(), source.getValue(), ttl, payload);
+			} catch (IOException ioe) {
+				// Probably 'No route to host' so just ignore this interface and keep going...
+				if (log.isDebugEnabled())
+					log.debug("Unable to send search message from " + source.getKey().getHostAddress(), ioe);
+			}
+		}
+	}
+
+	/**
+	 * Sends a search message from a given local address
+	 *
+	 * @param src
+	 *            the local address
+	 * @param ttl
+	 *            the time to live
+	 * @param mx
+	 *            the mx field
+	 * @param searchTarget
+	 *            the search target
+	 * @throws IOException
+	 *             if the message cannot be sent
+	 */
+	synchronized void send(InetAddress src, int ttl, int mx, String searchTarget) throws IOException {
+		NetworkInterface intf = getInterfaces().get(src);
+		if (intf == null) {
+			intf = NetworkInterface.getByInetAddress(src);
+		}
+		send(src, intf, ttl, getPayload(mx, searchTarget));
+	}
+
+	private void send(InetAddress src, NetworkInterface intf, int ttl, byte[] payload) throws IOException {
+		Sender sender = senders.get(src);
+		try {
+			if (sender == null) {
+				sender = new Sender(openChannel(src, intf));
+				senders.put(src, sender);
+			}
+			if (sender.ttl != ttl) {
+				sender.channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, Integer.valueOf(ttl));
+				sender.ttl = ttl;
+			}
+			if (log.isDebugEnabled())
+				log.debug("Sending discovery message on 239.255.255.250:1900 multicast address form ip " + src.getHostAddress() + ":\n" + new String(payload));
+			if (sender.channel.send(ByteBuffer.wrap(payload), ssdpAddress) == 0) {
+				throw new IOException("Send buffer full");
+			}
+		} catch (IOException ex) {
+			// the address may have gone away, the table will be reloaded on next search
+			interfaces = null;
+			if (sender != null) {
+				senders.remove(src);
+				SSDPReactor.getInstance().unRegister(sender.channel);
+			}
+			throw ex;
+		}
+		if (lingerTask != null) {
+			lingerTask.cancel(false);
+		}
+		lingerTask = Discovery.getScheduler().schedule(closeSenders, SENDERS_LINGER, TimeUnit.MILLISECONDS);
+	}
+
+	private DatagramChannel openChannel(InetAddress src, NetworkInterface intf) throws IOException {
+		DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		try {
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+			SSDPReactor.configureReceiveBuffer(channel);
+			channel.bind(new InetSocketAddress(src, bindPort));
+			SSDPStatistics.getInstance().portBound(bindPort);
+			if (intf != null) {
+				channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, intf);
+			}
+			channel.configureBlocking(false);
+			SSDPReactor.getInstance().register(channel, responsesHandler);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+		return channel;
+	}
+
+	private synchronized void closeSenders() {
+		for (Iterator<Sender> i = senders.values().iterator(); i.hasNext();) {
+			SSDPReactor.getInstance().unRegister(i.next().channel);
+			i.remove();
+		}
+		lingerTask = null;
+	}
+
+	private byte[] getPayload(int mx, String searchTarget) {
+		String key = mx + " " + searchTarget;
+		byte[] payload = payloads.get(key);
+		if (payload == null) {
+			StringBuilder packet = new StringBuilder();
+			packet.append("M-SEARCH * HTTP/1.1\r\n");
+			packet.append("HOST: 239.255.255.250:1900\r\n");
+			packet.append("MAN: \"ssdp:discover\"\r\n");
+			packet.append("MX: ").append(mx).append("\r\n");
+			packet.append("ST: ").append(searchTarget).append("\r\n").append("\r\n");
+			payload = packet.toString().getBytes();
+			payloads.put(key, payload);
+		}
+		return payload;
+	}
+
+	private Map<InetAddress, NetworkInterface> getInterfaces() throws IOException {
+		long now = System.currentTimeMillis();
+		if (interfaces == null || now > interfacesExpiry) {
+			Map<InetAddress, NetworkInterface> table = new LinkedHashMap<InetAddress, NetworkInterface>();
+			for (Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces(); e.hasMoreElements();) {
+				addSources(e.nextElement(), table);
+			}
+			interfaces = table;
+			interfacesExpiry = now + INTERFACES_REFRESH;
+		}
+		return interfaces;
+	}
+
+	private static void addSources(NetworkInterface intf, Map<InetAddress, NetworkInterface> table) {
+		for (Enumeration<InetAddress> adrs = intf.getInetAddresses(); adrs.hasMoreElements();) {
+			InetAddress adr = adrs.nextElement();
+			if (adr instanceof Inet4Address && !adr.isLoopbackAddress()) {
+				table.put(adr, intf);
+			}
+		}
+	}
+
+	private static class Sender {
+		private final DatagramChannel channel;
+		private int ttl = -1;
+
+		private Sender(DatagramChannel channel) {
+			this.channel = channel;
+		}
+	}
+}
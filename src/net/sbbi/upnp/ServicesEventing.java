@@ -11,6 +11,7 @@
 
 package net.sbbi.upnp;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -24,9 +25,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
 import net.sbbi.upnp.services.UPNPService;
 
 import org.apache.log4j.Logger;
@@ -152,12 +150,7 @@ public class ServicesEventing implements Runnable {
 			out.flush();
 
 			InputStream in = skt.getInputStream();
-			StringBuffer data = new StringBuffer();
-			int readen = 0;
-			byte[] buffer = new byte[256];
-			while ((readen = in.read(buffer)) != -1) {
-				data.append(new String(buffer, 0, readen));
-			}
+			String data = IOUtils.readDocument(in, IOUtils.UTF8);
 			in.close();
 			out.close();
 			skt.close();
@@ -271,12 +264,7 @@ public class ServicesEventing implements Runnable {
 				out.flush();
 
 				InputStream in = skt.getInputStream();
-				StringBuffer data = new StringBuffer();
-				int readen = 0;
-				byte[] buffer = new byte[256];
-				while ((readen = in.read(buffer)) != -1) {
-					data.append(new String(buffer, 0, readen));
-				}
+				String data = IOUtils.readDocument(in, IOUtils.UTF8);
 				in.close();
 				out.close();
 				skt.close();
@@ -356,25 +344,28 @@ public class ServicesEventing implements Runnable {
 				OutputStream out = client.getOutputStream();
 
 				int readen = 0;
-				StringBuffer data = new StringBuffer();
-				byte[] buffer = new byte[256];
-				boolean EOF = false;
-				while (!EOF && (readen = in.read(buffer)) != -1) {
-					data.append(new String(buffer, 0, readen));
-					// avoid a strange behaviour with some impls.. the -1 is never reached and a sockettimeout occurs
-					// and a 0 byte is sent as the last byte
-					if (data.charAt(data.length() - 1) == (char) 0) {
-						EOF = true;
+				ByteArrayOutputStream data = new ByteArrayOutputStream(IOUtils.BUFFER_SIZE);
+				byte[] buffer = IOUtils.acquireBuffer();
+				try {
+					boolean EOF = false;
+					while (!EOF && (readen = in.read(buffer)) != -1) {
+						// avoid a strange behaviour with some impls.. the -1 is never reached and a sockettimeout occurs
+						// and a 0 byte is sent as the last byte
+						if (buffer[readen - 1] == 0) {
+							EOF = true;
+						}
+						IOUtils.replaceZeroBytes(buffer, 0, readen);
+						data.write(buffer, 0, readen);
 					}
+				} finally {
+					IOUtils.releaseBuffer(buffer);
 				}
-				String packet = data.toString();
+				String packet = data.toString(IOUtils.UTF8);
 				if (log.isDebugEnabled())
 					log.debug("HttpResponse: " + packet);
 
 				if (packet.trim().length() > 0) {
 
-					if (packet.indexOf((char) 0) != -1)
-						packet = packet.replace((char) 0, ' ');
 					HttpResponse resp = new HttpResponse(packet);
 					if (resp.getHeader().startsWith("NOTIFY")) {
 
@@ -408,14 +399,10 @@ public class ServicesEventing implements Runnable {
 
 						if (subscription != null) {
 							// let's parse it
-							SAXParserFactory saxParFact = SAXParserFactory.newInstance();
-							saxParFact.setValidating(false);
-							saxParFact.setNamespaceAware(true);
-							SAXParser parser = saxParFact.newSAXParser();
 							ServiceEventMessageParser msgParser = new ServiceEventMessageParser();
 							StringReader stringReader = new StringReader(resp.getBody());
 							InputSource src = new InputSource(stringReader);
-							parser.parse(src, msgParser);
+							ParserPool.parse(src, msgParser);
 
 							Map<String, String> changedStateVars = msgParser.getChangedStateVars();
 							for (Iterator<String> i = changedStateVars.keySet().iterator(); i.hasNext();) {
@@ -0,0 +1,483 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.sbbi.upnp.devices.UPNPRootDevice;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent snapshot of the discovered root devices and of the description and SCPD documents fetched from them, used
+ * to rebuild the devices at startup without waiting for the network. The snapshot is a compressed binary file holding
+ * the raw documents keyed by location along with their content hash and HTTP validators, and the root devices keyed by
+ * discovery USN along with their BOOTID.UPNP.ORG and CONFIGID.UPNP.ORG values. The devices trees are parsed again from the stored documents, which only takes a few milliseconds.
+ * <br/>
+ * While the store is enabled the DocumentFetcher serves the stored documents without any network access. A document
+ * older than its max-age is still served, but is revalidated in the background with a conditional request. A changed
+ * device description evicts the device from the DeviceRegistry, and a device that cannot be reached anymore is removed
+ * from the snapshot. The snapshot is saved when the JVM exits, or with the save method.
+ * <br/>
+ * The store is enabled with the net.sbbi.upnp.SnapshotStore.file system property set to the snapshot file path, or
+ * with the setFile method.
+ *
+ * @version 1.0
+ */
+
+public class SnapshotStore {
+	private final static Logger log = Logger.getLogger(SnapshotStore.class);
+
+	/**
+	 * The max-age in secs of the documents not fetched from a root device description location
+	 */
+	public final static int DEFAULT_MAX_AGE = 1800;
+
+	private final static int MAGIC = 0x55504e53;
+	private final static int VERSION = 2;
+
+	private final static SnapshotStore singleton = new SnapshotStore();
+
+	private File file;
+	private boolean dirty = false;
+	private boolean hookRegistered = false;
+
+	private final Map<String, Document> documents = new HashMap<String, Document>();
+	private final Map<String, RootEntry> roots = new LinkedHashMap<String, RootEntry>();
+	private final Set<String> revalidating = new HashSet<String>();
+
+	private final ThreadPoolExecutor executor;
+
+	private SnapshotStore() {
+		executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Snapshot revalidator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		String prop = System.getProperty("net.sbbi.upnp.SnapshotStore.file");
+		if (prop != null)
+			setFile(new File(prop));
+	}
+
+	public final static SnapshotStore getInstance() {
+		return singleton;
+	}
+
+	public synchronized boolean isEnabled() {
+		return file != null;
+	}
+
+	public synchronized File getFile() {
+		return file;
+	}
+
+	/**
+	 * Enables the store and loads the snapshot file, or disables the store
+	 *
+	 * @param file
+	 *            the snapshot file, created on first save if missing, or null to disable the store
+	 */
+	public synchronized void setFile(File file) {
+		this.file = file;
+		documents.clear();
+		roots.clear();
+		dirty = false;
+		if (file == null) {
+			return;
+		}
+		try {
+			load();
+		} catch (IOException ex) {
+			log.warn("Unable to load snapshot " + file + ", starting with an empty snapshot", ex);
+			documents.clear();
+			roots.clear();
+		}
+		if (!hookRegistered) {
+			Runtime.getRuntime().addShutdownHook(new Thread("Snapshot store saver") {
+				@Override
+				public void run() {
+					synchronized (SnapshotStore.this) {
+						if (!dirty || SnapshotStore.this.file == null) {
+							return;
+						}
+					}
+					try {
+						save();
+					} catch (IOException ex) {
+						log.error("Unable to save snapshot", ex);
+					}
+				}
+			});
+			hookRegistered = true;
+		}
+	}
+
+	/**
+	 * Rebuilds the root devices stored in the snapshot from the stored documents, the devices are also stored in the
+	 * DeviceRegistry when enabled
+	 *
+	 * @return an array of UPNP Root device or null if the snapshot holds no device
+	 */
+	public UPNPRootDevice[] getRootDevices() {
+		List<RootEntry> entries;
+		synchronized (this) {
+			entries = new ArrayList<RootEntry>(roots.values());
+		}
+		List<UPNPRootDevice> rtrVal = new ArrayList<UPNPRootDevice>(entries.size());
+		for (Iterator<RootEntry> i = entries.iterator(); i.hasNext();) {
+			RootEntry entry = i.next();
+			try {
+				UPNPRootDevice device = new UPNPRootDevice(new URL(entry.location), Integer.toString(entry.maxAge), entry.firmware, entry.usn,
+						entry.udn);
+				device.setDiscoveryIds(entry.bootId, entry.configId);
+				DeviceRegistry.getInstance().register(device);
+				rtrVal.add(device);
+			} catch (Exception ex) {
+				log.warn("Unable to restore device " + entry.usn + " from " + entry.location, ex);
+			}
+		}
+		if (rtrVal.isEmpty()) {
+			return null;
+		}
+		return rtrVal.toArray(new UPNPRootDevice[rtrVal.size()]);
+	}
+
+	/**
+	 * Adds a root device to the snapshot, its description document must have been fetched while the store was enabled
+	 *
+	 * @param device
+	 *            the device
+	 */
+	public synchronized void register(UPNPRootDevice device) {
+		if (file == null) {
+			return;
+		}
+		RootEntry entry = new RootEntry();
+		entry.location = device.getDeviceDefLoc().toExternalForm();
+		entry.usn = device.getDiscoveryUSN() != null ? device.getDiscoveryUSN() : device.getUDN() + "::upnp:rootdevice";
+		entry.udn = device.getDiscoveryUDN() != null ? device.getDiscoveryUDN() : device.getUDN();
+		entry.firmware = device.getVendorFirmware();
+		entry.bootId = device.getBootId();
+		entry.configId = device.getConfigId();
+		entry.maxAge = (int) Math.max(1, device.getValidityTime() / 1000);
+		roots.put(entry.usn, entry);
+		Document doc = documents.get(entry.location);
+		if (doc != null) {
+			doc.maxAge = entry.maxAge;
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Removes all the devices and documents of the snapshot
+	 */
+	public synchronized void clear() {
+		documents.clear();
+		roots.clear();
+		dirty = true;
+	}
+
+	/**
+	 * Writes the snapshot file
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public synchronized void save() throws IOException {
+		if (file == null) {
+			throw new IllegalStateException("Snapshot store not enabled");
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(roots.size());
+			for (Iterator<RootEntry> i = roots.values().iterator(); i.hasNext();) {
+				RootEntry entry = i.next();
+				out.writeUTF(entry.location);
+				out.writeUTF(entry.usn);
+				out.writeUTF(entry.udn);
+				writeString(out, entry.firmware);
+				writeString(out, entry.bootId);
+				writeString(out, entry.configId);
+				out.writeInt(entry.maxAge);
+			}
+			out.writeInt(documents.size());
+			for (Iterator<Map.Entry<String, Document>> i = documents.entrySet().iterator(); i.hasNext();) {
+				Map.Entry<String, Document> entry = i.next();
+				Document doc = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeUTF(doc.hash);
+				writeString(out, doc.response.contentType);
+				writeString(out, doc.response.etag);
+				out.writeLong(doc.response.lastModified);
+				out.writeLong(doc.fetchTime);
+				out.writeInt(doc.maxAge);
+				out.writeInt(doc.response.data.length);
+				out.write(doc.response.data);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Unable to replace snapshot " + file);
+			}
+		}
+		dirty = false;
+		if (log.isDebugEnabled())
+			log.debug("Saved " + roots.size() + " devices and " + documents.size() + " documents to " + file);
+	}
+
+	/**
+	 * Looks for a stored document, a document older than its max-age is revalidated in the background
+	 *
+	 * @param location
+	 *            the document location
+	 * @return the stored document or null if unknown
+	 */
+	DocumentFetcher.Response lookup(URL location) {
+		String key = location.toExternalForm();
+		DocumentFetcher.Response response;
+		boolean stale;
+		synchronized (this) {
+			Document doc = documents.get(key);
+			if (doc == null) {
+				return null;
+			}
+			response = doc.response;
+			stale = System.currentTimeMillis() - doc.fetchTime > doc.maxAge * 1000L;
+		}
+		if (stale) {
+			revalidate(key, location);
+		}
+		return response;
+	}
+
+	/**
+	 * Stores a document fetched from the network
+	 *
+	 * @param location
+	 *            the document location
+	 * @param response
+	 *            the fetched document
+	 */
+	synchronized void store(URL location, DocumentFetcher.Response response) {
+		if (file == null) {
+			return;
+		}
+		documents.put(location.toExternalForm(), new Document(response, response.getHash(), System.currentTimeMillis(), DEFAULT_MAX_AGE));
+		dirty = true;
+	}
+
+	private void revalidate(final String key, final URL location) {
+		synchronized (this) {
+			if (!revalidating.add(key)) {
+				return;
+			}
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					revalidateDocument(key, location);
+				} catch (RuntimeException ex) {
+					log.error("Unexpected error during " + location + " revalidation", ex);
+				} finally {
+					synchronized (SnapshotStore.this) {
+						revalidating.remove(key);
+					}
+				}
+			}
+		});
+	}
+
+	private void revalidateDocument(String key, URL location) {
+		Document doc;
+		synchronized (this) {
+			doc = documents.get(key);
+		}
+		if (doc == null) {
+			return;
+		}
+		DocumentFetcher.Response response;
+		try {
+			response = DocumentFetcher.getInstance().fetchResponse(location, doc.response.etag, doc.response.lastModified);
+		} catch (IOException ex) {
+			if (log.isDebugEnabled())
+				log.debug("Unable to revalidate " + location + ", removing it from the snapshot: " + ex.getMessage());
+			remove(key);
+			return;
+		}
+		synchronized (this) {
+			if (documents.get(key) != doc) {
+				// stored again or removed meanwhile
+				return;
+			}
+			dirty = true;
+			doc.fetchTime = System.currentTimeMillis();
+			if (response == null) {
+				return;
+			}
+			String hash = response.getHash();
+			doc.response = response;
+			if (hash.equals(doc.hash)) {
+				return;
+			}
+			doc.hash = hash;
+		}
+		if (log.isDebugEnabled())
+			log.debug("Document " + location + " changed");
+		evictDevices(key);
+	}
+
+	private void remove(String key) {
+		synchronized (this) {
+			documents.remove(key);
+			for (Iterator<RootEntry> i = roots.values().iterator(); i.hasNext();) {
+				if (i.next().location.equals(key)) {
+					i.remove();
+				}
+			}
+			dirty = true;
+		}
+		evictDevices(key);
+	}
+
+	private void evictDevices(String location) {
+		List<String> udns = new ArrayList<String>();
+		synchronized (this) {
+			for (Iterator<RootEntry> i = roots.values().iterator(); i.hasNext();) {
+				RootEntry entry = i.next();
+				if (entry.location.equals(location)) {
+					udns.add(entry.udn);
+				}
+			}
+		}
+		for (Iterator<String> i = udns.iterator(); i.hasNext();) {
+			DeviceRegistry.getInstance().remove(i.next());
+		}
+	}
+
+	private void load() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Unsupported snapshot format");
+			}
+			int version = in.readInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Unsupported snapshot format");
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				RootEntry entry = new RootEntry();
+				entry.location = in.readUTF();
+				entry.usn = in.readUTF();
+				entry.udn = in.readUTF();
+				entry.firmware = readString(in);
+				if (version >= 2) {
+					// the ids are unknown for the devices saved by the first format
+					entry.bootId = readString(in);
+					entry.configId = readString(in);
+				}
+				entry.maxAge = in.readInt();
+				roots.put(entry.usn, entry);
+			}
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String location = in.readUTF();
+				String hash = in.readUTF();
+				String contentType = readString(in);
+				String etag = readString(in);
+				long lastModified = in.readLong();
+				long fetchTime = in.readLong();
+				int maxAge = in.readInt();
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				if (!hash.equals(IOUtils.getHash(data))) {
+					log.warn("Corrupted document " + location + " in snapshot " + file + ", skipping it");
+					continue;
+				}
+				documents.put(location, new Document(new DocumentFetcher.Response(data, contentType, etag, lastModified), hash, fetchTime, maxAge));
+			}
+		} finally {
+			in.close();
+		}
+		if (log.isDebugEnabled())
+			log.debug("Loaded " + roots.size() + " devices and " + documents.size() + " documents from " + file);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static class RootEntry {
+		private String location;
+		private String usn;
+		private String udn;
+		private String firmware;
+		private String bootId;
+		private String configId;
+		private int maxAge;
+	}
+
+	private static class Document {
+		private DocumentFetcher.Response response;
+		private String hash;
+		private long fetchTime;
+		private int maxAge;
+
+		private Document(DocumentFetcher.Response response, String hash, long fetchTime, int maxAge) {
+			this.response = response;
+			this.hash = hash;
+			this.fetchTime = fetchTime;
+			this.maxAge = maxAge;
+		}
+	}
+}
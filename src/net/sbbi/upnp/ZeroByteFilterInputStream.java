@@ -0,0 +1,45 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream replacing the 0x0 bytes sent by some buggy UPNP devices with 0x20 bytes, so that the XML documents can
+ * be streamed to a parser without being buffered and fixed first as JXPathParser does.
+ *
+ * @version 1.0
+ */
+
+public class ZeroByteFilterInputStream extends FilterInputStream {
+
+	public ZeroByteFilterInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		return b == 0 ? ' ' : b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int readen = super.read(b, off, len);
+		if (readen > 0) {
+			IOUtils.replaceZeroBytes(b, off, readen);
+		}
+		return readen;
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp.devices;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.sbbi.upnp.ZeroByteFilterInputStream;
+
+/**
+ * Reads a device description document in a single forward pass with a StAX parser. The document is turned into a
+ * light tree of raw string fields, URLs are resolved afterwards by the UPNPRootDevice class since the URLBase element
+ * may come after the devices elements. Only the elements of the "urn:schemas-upnp-org:device-1-0" namespace are read,
+ * vendor extensions are skipped.
+ *
+ * @version 1.0
+ */
+
+final class DeviceDescriptionReader {
+	final static String DEVICE_NAMESPACE = "urn:schemas-upnp-org:device-1-0";
+
+	private final static XMLInputFactory factory = XMLInputFactory.newInstance();
+
+	static {
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	}
+
+	/**
+	 * Raw content of a device element
+	 */
+	final static class DeviceElement {
+		final Map<String, String> fields = new HashMap<String, String>();
+		final List<Map<String, String>> services = new ArrayList<Map<String, String>>();
+		List<Map<String, String>> icons;
+		List<DeviceElement> childDevices;
+	}
+
+	String specVersionMajor;
+	String specVersionMinor;
+	String URLBase;
+	DeviceElement device;
+
+	private XMLStreamReader reader;
+
+	/**
+	 * Reads a description document
+	 *
+	 * @param in
+	 *            the document stream, closed by this method
+	 * @throws IOException
+	 *             if the document cannot be read or parsed
+	 * @throws IllegalStateException
+	 *             if the document has no root or no root device element
+	 */
+	void read(InputStream in) throws IOException, IllegalStateException {
+		try {
+			reader = factory.createXMLStreamReader(new ZeroByteFilterInputStream(in));
+			try {
+				readDocument();
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException ex) {
+			IOException ioEx = new IOException("Unable to parse device description: " + ex.getMessage());
+			ioEx.initCause(ex);
+			throw ioEx;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void readDocument() throws XMLStreamException {
+		while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+			// skipping the prolog
+		}
+		if (!reader.isStartElement() || !isDeviceElement("root")) {
+			throw new IllegalStateException("Unsupported device; no 'UPNPDevice/upnp:root' element");
+		}
+		while (nextChild()) {
+			if (isDeviceElement("specVersion")) {
+				Map<String, String> version = readFields();
+				specVersionMajor = version.get("major");
+				specVersionMinor = version.get("minor");
+			} else if (isDeviceElement("URLBase")) {
+				URLBase = readText();
+			} else if (device == null && isDeviceElement("device")) {
+				device = readDevice();
+			} else {
+				skipElement();
+			}
+		}
+		if (device == null) {
+			throw new IllegalStateException("Unsupported device; no 'UPNPDevice/upnp:root/upnp:device' element");
+		}
+	}
+
+	private DeviceElement readDevice() throws XMLStreamException {
+		DeviceElement element = new DeviceElement();
+		while (nextChild()) {
+			if (!DEVICE_NAMESPACE.equals(reader.getNamespaceURI())) {
+				skipElement();
+			} else if (isDeviceElement("serviceList")) {
+				readList("service", element.services);
+			} else if (isDeviceElement("iconList")) {
+				element.icons = new ArrayList<Map<String, String>>();
+				readList("icon", element.icons);
+			} else if (isDeviceElement("deviceList")) {
+				element.childDevices = new ArrayList<DeviceElement>();
+				while (nextChild()) {
+					if (isDeviceElement("device")) {
+						element.childDevices.add(readDevice());
+					} else {
+						skipElement();
+					}
+				}
+			} else {
+				element.fields.put(reader.getLocalName(), readText());
+			}
+		}
+		return element;
+	}
+
+	private void readList(String itemName, List<Map<String, String>> items) throws XMLStreamException {
+		while (nextChild()) {
+			if (isDeviceElement(itemName)) {
+				items.add(readFields());
+			} else {
+				skipElement();
+			}
+		}
+	}
+
+	private Map<String, String> readFields() throws XMLStreamException {
+		Map<String, String> fields = new HashMap<String, String>();
+		while (nextChild()) {
+			if (DEVICE_NAMESPACE.equals(reader.getNamespaceURI())) {
+				fields.put(reader.getLocalName(), readText());
+			} else {
+				skipElement();
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * Moves to the next child element of the current element
+	 *
+	 * @return true if positioned on a child start element, false if the current element end has been reached
+	 */
+	private boolean nextChild() throws XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				return true;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the text of the current element, the nested elements text is ignored
+	 *
+	 * @return the trimmed text
+	 */
+	private String readText() throws XMLStreamException {
+		StringBuilder text = new StringBuilder();
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			} else if (depth == 1 && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+				text.append(reader.getText());
+			}
+		}
+		return text.toString().trim();
+	}
+
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	private boolean isDeviceElement(String name) {
+		return name.equals(reader.getLocalName()) && DEVICE_NAMESPACE.equals(reader.getNamespaceURI());
+	}
+}
@@ -13,8 +13,11 @@ package net.sbbi.upnp.devices;
 
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import net.sbbi.upnp.services.UPNPService;
 
@@ -51,6 +54,8 @@ public class UPNPDevice {
 
 	protected UPNPDevice parent;
 
+	private volatile DeviceIndex index;
+
 	public URL getManufacturerURL() {
 		return manufacturerURL;
 	}
@@ -122,40 +127,43 @@ public class UPNPDevice {
 	}
 
 	/**
-	 * Generates a list of all the child ( not only top level, full childrens hierarchy included ) UPNPDevice objects
-	 * for this device.
-	 * 
-	 * @return the generated list or null if no child devices bound
+	 * Builds the lookup tables of this device and of its child devices, must be called once the devices tree is
+	 * complete. The tables are built on first use otherwise.
 	 */
-	public List<UPNPDevice> getChildDevices() {
-		if (childDevices == null)
-			return null;
-		List<UPNPDevice> rtrVal = new ArrayList<UPNPDevice>();
-		for (Iterator<UPNPDevice> itr = childDevices.iterator(); itr.hasNext();) {
-			UPNPDevice device = itr.next();
-			rtrVal.add(device);
-			List<UPNPDevice> found = device.getChildDevices();
-			if (found != null) {
-				rtrVal.addAll(found);
+	protected void buildIndex() {
+		if (childDevices != null) {
+			for (Iterator<UPNPDevice> itr = childDevices.iterator(); itr.hasNext();) {
+				itr.next().buildIndex();
 			}
 		}
+		index = new DeviceIndex(this);
+	}
+
+	private DeviceIndex getIndex() {
+		DeviceIndex rtrVal = index;
+		if (rtrVal == null) {
+			rtrVal = new DeviceIndex(this);
+			index = rtrVal;
+		}
 		return rtrVal;
 	}
 
 	/**
-	 * Generates a list of all the child ( only top level ) UPNPDevice objects for this device.
+	 * Lists all the child ( not only top level, full childrens hierarchy included ) UPNPDevice objects for this device.
+	 * 
+	 * @return an unmodifiable list or null if no child devices bound
+	 */
+	public List<UPNPDevice> getChildDevices() {
+		return getIndex().allChildDevices;
+	}
+
+	/**
+	 * Lists all the child ( only top level ) UPNPDevice objects for this device.
 	 * 
-	 * @return the generated list or null if no child devices bound
+	 * @return an unmodifiable list or null if no child devices bound
 	 */
 	public List<UPNPDevice> getTopLevelChildDevices() {
-		if (childDevices == null)
-			return null;
-		List<UPNPDevice> rtrVal = new ArrayList<UPNPDevice>();
-		for (Iterator<UPNPDevice> itr = childDevices.iterator(); itr.hasNext();) {
-			UPNPDevice device = itr.next();
-			rtrVal.add(device);
-		}
-		return rtrVal;
+		return getIndex().topLevelChildDevices;
 	}
 
 	/**
@@ -178,31 +186,16 @@ public class UPNPDevice {
 	public UPNPDevice getChildDevice(String deviceURI) {
 		if (log.isDebugEnabled())
 			log.debug("searching for device URI:" + deviceURI);
-		if (getDeviceType().equals(deviceURI))
-			return this;
-		if (childDevices == null)
-			return null;
-		for (Iterator<UPNPDevice> itr = childDevices.iterator(); itr.hasNext();) {
-			UPNPDevice device = itr.next();
-			UPNPDevice found = device.getChildDevice(deviceURI);
-			if (found != null) {
-				return found;
-			}
-		}
-		return null;
+		return getIndex().devicesByType.get(deviceURI);
 	}
 
 	/**
 	 * Looks for all UPNP device service definitions objects
 	 * 
-	 * @return A list of all device services
+	 * @return An unmodifiable list of all device services
 	 */
 	public List<UPNPService> getServices() {
-		if (services == null)
-			return null;
-		List<UPNPService> rtrVal = new ArrayList<UPNPService>();
-		rtrVal.addAll(services);
-		return rtrVal;
+		return getIndex().services;
 	}
 
 	/**
@@ -213,17 +206,10 @@ public class UPNPDevice {
 	 * @return A matching UPNPService object or null
 	 */
 	public UPNPService getService(String serviceURI) {
-		if (services == null)
-			return null;
 		if (log.isDebugEnabled())
 			log.debug("searching for service URI:" + serviceURI);
-		for (Iterator<UPNPService> itr = services.iterator(); itr.hasNext();) {
-			UPNPService service = itr.next();
-			if (service.getServiceType().equals(serviceURI)) {
-				return service;
-			}
-		}
-		return null;
+		List<UPNPService> found = getIndex().servicesByType.get(serviceURI);
+		return found != null ? found.get(0) : null;
 	}
 
 	/**
@@ -234,17 +220,9 @@ public class UPNPDevice {
 	 * @return A matching UPNPService object or null
 	 */
 	public UPNPService getServiceByID(String serviceID) {
-		if (services == null)
-			return null;
 		if (log.isDebugEnabled())
 			log.debug("searching for service ID:" + serviceID);
-		for (Iterator<UPNPService> itr = services.iterator(); itr.hasNext();) {
-			UPNPService service = itr.next();
-			if (service.getServiceId().equals(serviceID)) {
-				return service;
-			}
-		}
-		return null;
+		return getIndex().servicesById.get(serviceID);
 	}
 
 	/**
@@ -253,24 +231,12 @@ public class UPNPDevice {
 	 * 
 	 * @param serviceURI
 	 *            the URI of the service
-	 * @return A matching List of UPNPService objects or null
+	 * @return A matching unmodifiable List of UPNPService objects or null
 	 */
 	public List<UPNPService> getServices(String serviceURI) {
-		if (services == null)
-			return null;
-		List<UPNPService> rtrVal = new ArrayList<UPNPService>();
 		if (log.isDebugEnabled())
 			log.debug("searching for services URI:" + serviceURI);
-		for (Iterator<UPNPService> itr = services.iterator(); itr.hasNext();) {
-			UPNPService service = itr.next();
-			if (service.getServiceType().equals(serviceURI)) {
-				rtrVal.add(service);
-			}
-		}
-		if (rtrVal.isEmpty()) {
-			return null;
-		}
-		return rtrVal;
+		return getIndex().servicesByType.get(serviceURI);
 	}
 
 	/**
@@ -282,4 +248,64 @@ public class UPNPDevice {
 	public String toString() {
 		return getDeviceType();
 	}
+
+	/**
+	 * Lookup tables of a device, the first device or service found in the tree order wins when several ones match
+	 */
+	private final static class DeviceIndex {
+		private final List<UPNPDevice> allChildDevices;
+		private final List<UPNPDevice> topLevelChildDevices;
+		private final Map<String, UPNPDevice> devicesByType = new HashMap<String, UPNPDevice>();
+		private final List<UPNPService> services;
+		private final Map<String, List<UPNPService>> servicesByType = new HashMap<String, List<UPNPService>>();
+		private final Map<String, UPNPService> servicesById = new HashMap<String, UPNPService>();
+
+		private DeviceIndex(UPNPDevice device) {
+			devicesByType.put(device.deviceType, device);
+			if (device.childDevices == null) {
+				allChildDevices = null;
+				topLevelChildDevices = null;
+			} else {
+				List<UPNPDevice> all = new ArrayList<UPNPDevice>();
+				for (Iterator<UPNPDevice> itr = device.childDevices.iterator(); itr.hasNext();) {
+					UPNPDevice child = itr.next();
+					all.add(child);
+					List<UPNPDevice> found = child.getChildDevices();
+					if (found != null) {
+						all.addAll(found);
+					}
+				}
+				for (Iterator<UPNPDevice> itr = all.iterator(); itr.hasNext();) {
+					UPNPDevice child = itr.next();
+					if (!devicesByType.containsKey(child.deviceType)) {
+						devicesByType.put(child.deviceType, child);
+					}
+				}
+				allChildDevices = Collections.unmodifiableList(all);
+				topLevelChildDevices = Collections.unmodifiableList(new ArrayList<UPNPDevice>(device.childDevices));
+			}
+			if (device.services == null) {
+				services = null;
+			} else {
+				services = Collections.unmodifiableList(new ArrayList<UPNPService>(device.services));
+				Map<String, List<UPNPService>> byType = new HashMap<String, List<UPNPService>>();
+				for (Iterator<UPNPService> itr = services.iterator(); itr.hasNext();) {
+					UPNPService service = itr.next();
+					List<UPNPService> sameType = byType.get(service.getServiceType());
+					if (sameType == null) {
+						sameType = new ArrayList<UPNPService>(1);
+						byType.put(service.getServiceType(), sameType);
+					}
+					sameType.add(service);
+					if (!servicesById.containsKey(service.getServiceId())) {
+						servicesById.put(service.getServiceId(), service);
+					}
+				}
+				for (Iterator<Map.Entry<String, List<UPNPService>>> itr = byType.entrySet().iterator(); itr.hasNext();) {
+					Map.Entry<String, List<UPNPService>> entry = itr.next();
+					servicesByType.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+				}
+			}
+		}
+	}
 }
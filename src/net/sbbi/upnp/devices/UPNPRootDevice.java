@@ -11,24 +11,36 @@
 
 package net.sbbi.upnp.devices;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
+import net.sbbi.upnp.DocumentFetcher;
 import net.sbbi.upnp.JXPathParser;
 import net.sbbi.upnp.services.UPNPService;
 
 import org.apache.commons.jxpath.Container;
-import org.apache.commons.jxpath.JXPathContext;
-import org.apache.commons.jxpath.JXPathException;
-import org.apache.commons.jxpath.Pointer;
 import org.apache.commons.jxpath.xml.DocumentContainer;
 import org.apache.log4j.Logger;
 
 /**
  * Root UPNP device that is contained in a device definition file. Slightly differs from a simple UPNPDevice object.
  * This object will contains all the child devices, this is the top objet in the UPNP device devices hierarchy.
+ * <br/>
+ * In compact model mode, set with the net.sbbi.upnp.devices.UPNPRootDevice.compactModel system property or the
+ * setCompactModel method, the devices tree is built with interned type and model strings and unmodifiable lists, and
+ * neither the JXPath containers nor the raw description documents are retained: they are loaded again on each request.
+ * This mode is meant for processes tracking a large number of devices.
+ * <br/>
+ * When SCPD prefetching is enabled, with the net.sbbi.upnp.devices.UPNPRootDevice.prefetchSCPD system property or the
+ * setPrefetchSCPD method, the services SCPD documents are fetched in the background as soon as the device is created.
  * 
  * @author <a href="mailto:superbonbon@sbbi.net">SuperBonBon</a>
  * @version 1.0
@@ -40,15 +52,28 @@ public class UPNPRootDevice extends UPNPDevice {
 	private final int specVersionMajor;
 	private final int specVersionMinor;
 	private URL URLBase;
-	private long validityTime;
-	private long creationTime;
+	private volatile long validityTime;
+	private volatile long creationTime;
 	private final URL deviceDefLoc;
 	private String deviceDefLocData;
 	private String vendorFirmware;
 	private String discoveryUSN;
 	private String discoveryUDN;
+	private final String descriptionETag;
+	private final long descriptionLastModified;
+	private final String descriptionHash;
+	private volatile String bootId;
+	private volatile String configId;
 
-	private final DocumentContainer UPNPDevice;
+	private DocumentContainer UPNPDevice;
+
+	private static boolean parserRegistered = false;
+
+	private static volatile boolean compactModel = "true".equals(System.getProperty("net.sbbi.upnp.devices.UPNPRootDevice.compactModel"));
+
+	private static volatile boolean prefetchSCPD = "true".equals(System.getProperty("net.sbbi.upnp.devices.UPNPRootDevice.prefetchSCPD"));
+
+	private final boolean compact;
 
 	/**
 	 * Constructor for the root device, constructs itself from An xml device definition file provided by the UPNP device
@@ -76,6 +101,34 @@ public class UPNPRootDevice extends UPNPDevice {
 		this.discoveryUDN = discoveryUDN;
 	}
 
+	/**
+	 * Constructor for the root device, constructs itself from an already fetched xml device definition file.
+	 * 
+	 * @param deviceDefLoc
+	 *            the location of the XML device definition file using "the urn:schemas-upnp-org:device-1-0" namespace
+	 * @param maxAge
+	 *            the maximum age of this UPNP device in secs before considered to be outdated
+	 * @param vendorFirmware
+	 *            the vendor firmware
+	 * @param discoveryUSN
+	 *            the discovery USN used to find and create this device
+	 * @param discoveryUDN
+	 *            the discovery UDN used to find and create this device
+	 * @param description
+	 *            the device definition file fetched from deviceDefLoc
+	 * @throws MalformedURLException
+	 *             if the location URL is invalid and cannot be used to populate this root object and its child devices
+	 *             IllegalStateException if the device has an unsupported version, currently only version 1.0 is
+	 *             supported
+	 */
+	public UPNPRootDevice(URL deviceDefLoc, String maxAge, String vendorFirmware, String discoveryUSN, String discoveryUDN,
+			DocumentFetcher.Response description) throws MalformedURLException, IllegalStateException {
+		this(deviceDefLoc, maxAge, description);
+		this.vendorFirmware = vendorFirmware;
+		this.discoveryUSN = discoveryUSN;
+		this.discoveryUDN = discoveryUDN;
+	}
+
 	/**
 	 * Constructor for the root device, constructs itself from An xml device definition file provided by the UPNP device
 	 * via http normally.
@@ -110,42 +163,47 @@ public class UPNPRootDevice extends UPNPDevice {
 	 *             supported
 	 */
 	public UPNPRootDevice(URL deviceDefLoc, String maxAge) throws MalformedURLException, IllegalStateException {
+		this(deviceDefLoc, maxAge, fetchDescription(deviceDefLoc));
+	}
+
+	private UPNPRootDevice(URL deviceDefLoc, String maxAge, DocumentFetcher.Response description) throws MalformedURLException,
+			IllegalStateException {
 		this.deviceDefLoc = deviceDefLoc;
-		DocumentContainer.registerXMLParser(DocumentContainer.MODEL_DOM, new JXPathParser());
-		UPNPDevice = new DocumentContainer(deviceDefLoc, DocumentContainer.MODEL_DOM);
+		compact = compactModel;
 		validityTime = Integer.parseInt(maxAge) * 1000;
 		creationTime = System.currentTimeMillis();
+		descriptionETag = description.getETag();
+		descriptionLastModified = description.getLastModified();
+		descriptionHash = description.getHash();
 
-		JXPathContext context = JXPathContext.newContext(this);
-		context.registerNamespace("upnp", "urn:schemas-upnp-org:device-1-0");
-		Pointer rootPtr = null;
+		DeviceDescriptionReader reader = new DeviceDescriptionReader();
 		try {
-			rootPtr = context.getPointer("UPNPDevice/upnp:root");
-		} catch (Exception ex) {
-			// handled below as rootPtr will be null
+			reader.read(new ByteArrayInputStream(description.getData()));
+		} catch (IOException ex) {
+			IllegalStateException stateEx = new IllegalStateException("Unable to read device description at " + deviceDefLoc + ": " + ex.getMessage());
+			stateEx.initCause(ex);
+			throw stateEx;
 		}
-		if (rootPtr == null)
-			throw new IllegalStateException("Unsupported device; no 'UPNPDevice/upnp:root' element");
-		JXPathContext rootCtx = context.getRelativeContext(rootPtr);
 
-		specVersionMajor = Integer.parseInt((String) rootCtx.getValue("upnp:specVersion/upnp:major"));
-		specVersionMinor = Integer.parseInt((String) rootCtx.getValue("upnp:specVersion/upnp:minor"));
+		try {
+			specVersionMajor = Integer.parseInt(reader.specVersionMajor);
+			specVersionMinor = Integer.parseInt(reader.specVersionMinor);
+		} catch (NumberFormatException ex) {
+			throw new IllegalStateException("Unsupported device version (" + reader.specVersionMajor + "." + reader.specVersionMinor + ")");
+		}
 
 		if (!(specVersionMajor == 1 && specVersionMinor == 0)) {
 			throw new IllegalStateException("Unsupported device version (" + specVersionMajor + "." + specVersionMinor + ")");
 		}
 		boolean buildURLBase = true;
-		String base = null;
+		String base = reader.URLBase;
 		try {
-			base = (String) rootCtx.getValue("upnp:URLBase");
-			if (base != null && base.trim().length() > 0) {
+			if (base != null && base.length() > 0) {
 				URLBase = new URL(base);
 				if (log.isDebugEnabled())
 					log.debug("device URLBase " + URLBase);
 				buildURLBase = false;
 			}
-		} catch (JXPathException ex) {
-			// URLBase is not mandatory we assume we use the URL of the device
 		} catch (MalformedURLException malformedEx) {
 			// crappy urlbase provided
 			log.warn("Error occured during device baseURL " + base + " parsing, building it from device default location", malformedEx);
@@ -161,10 +219,83 @@ public class UPNPRootDevice extends UPNPDevice {
 			}
 			URLBase = new URL(URL);
 		}
-		Pointer devicePtr = rootCtx.getPointer("upnp:device");
-		JXPathContext deviceCtx = rootCtx.getRelativeContext(devicePtr);
+		fillUPNPDevice(this, null, reader.device, URLBase);
+		buildIndex();
+		if (prefetchSCPD) {
+			prefetchSCPDs();
+		}
+	}
+
+	private static DocumentFetcher.Response fetchDescription(URL deviceDefLoc) throws IllegalStateException {
+		try {
+			return DocumentFetcher.getInstance().fetchResponse(deviceDefLoc);
+		} catch (IOException ex) {
+			IllegalStateException stateEx = new IllegalStateException("Unable to read device description at " + deviceDefLoc + ": " + ex.getMessage());
+			stateEx.initCause(ex);
+			throw stateEx;
+		}
+	}
+
+	/**
+	 * Enables or disables the compact model mode for the devices created afterwards
+	 * 
+	 * @param compactModel
+	 *            true to build compact and unmodifiable devices trees without retaining any document
+	 */
+	public static void setCompactModel(boolean compactModel) {
+		UPNPRootDevice.compactModel = compactModel;
+	}
+
+	public static boolean isCompactModel() {
+		return compactModel;
+	}
+
+	/**
+	 * Tells if this device tree has been built in compact model mode, whatever the current mode
+	 * 
+	 * @return true if the devices tree is compact and unmodifiable
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * Enables or disables the background SCPD prefetching for the devices created afterwards
+	 * 
+	 * @param prefetchSCPD
+	 *            true to start fetching the services SCPD documents as soon as a device is created
+	 */
+	public static void setPrefetchSCPD(boolean prefetchSCPD) {
+		UPNPRootDevice.prefetchSCPD = prefetchSCPD;
+	}
+
+	public static boolean isPrefetchSCPD() {
+		return prefetchSCPD;
+	}
+
+	/**
+	 * Starts fetching in the background the SCPD documents of all the services of this device and its child devices
+	 * 
+	 * @return the services futures, done once each service SCPD is parsed
+	 */
+	public List<Future<UPNPService>> prefetchSCPDs() {
+		List<Future<UPNPService>> rtrVal = new ArrayList<Future<UPNPService>>();
+		prefetchSCPDs(this, rtrVal);
+		List<UPNPDevice> children = getChildDevices();
+		if (children != null) {
+			for (Iterator<UPNPDevice> i = children.iterator(); i.hasNext();) {
+				prefetchSCPDs(i.next(), rtrVal);
+			}
+		}
+		return rtrVal;
+	}
 
-		fillUPNPDevice(this, null, deviceCtx, URLBase);
+	private static void prefetchSCPDs(UPNPDevice device, List<Future<UPNPService>> futures) {
+		if (device.services == null)
+			return;
+		for (Iterator<UPNPService> i = device.services.iterator(); i.hasNext();) {
+			futures.add(i.next().prefetchSCPD());
+		}
 	}
 
 	/**
@@ -219,6 +350,65 @@ public class UPNPRootDevice extends UPNPDevice {
 		return discoveryUDN;
 	}
 
+	/**
+	 * The ETag header value sent with the device description
+	 * 
+	 * @return the ETag or null if not sent
+	 */
+	public String getDescriptionETag() {
+		return descriptionETag;
+	}
+
+	/**
+	 * The Last-Modified header value sent with the device description
+	 * 
+	 * @return the time in ms or 0 if not sent
+	 */
+	public long getDescriptionLastModified() {
+		return descriptionLastModified;
+	}
+
+	/**
+	 * The SHA-1 hash of the device description this device has been built from
+	 * 
+	 * @return the hash as an hexadecimal string
+	 */
+	public String getDescriptionHash() {
+		return descriptionHash;
+	}
+
+	/**
+	 * The last BOOTID.UPNP.ORG value known for this device
+	 * 
+	 * @return the boot id or null if unknown
+	 */
+	public String getBootId() {
+		return bootId;
+	}
+
+	/**
+	 * The last CONFIGID.UPNP.ORG value known for this device
+	 * 
+	 * @return the config id or null if unknown
+	 */
+	public String getConfigId() {
+		return configId;
+	}
+
+	/**
+	 * Records the BOOTID.UPNP.ORG and CONFIGID.UPNP.ORG values announced for the description this device has been built
+	 * from
+	 * 
+	 * @param bootId
+	 *            the boot id or null if unknown
+	 * @param configId
+	 *            the config id or null if unknown
+	 */
+	public void setDiscoveryIds(String bootId, String configId) {
+		this.bootId = bootId;
+		this.configId = configId;
+	}
+
 	/**
 	 * URL base acces
 	 * 
@@ -229,26 +419,27 @@ public class UPNPRootDevice extends UPNPDevice {
 	}
 
 	/**
-	 * Parsing an UPNPdevice description element (<device>) in the description XML file
+	 * Populates an UPNPdevice from a description element (<device>) read from the description XML file
 	 * 
 	 * @param device
 	 *            the device object that will be populated
 	 * @param parent
 	 *            the device parent object
-	 * @param deviceCtx
-	 *            an XPath context for object population
+	 * @param element
+	 *            the device element read from the description file
 	 * @param baseURL
 	 *            the base URL of the UPNP device
 	 * @throws MalformedURLException
 	 *             if some URL provided in the description file is invalid
 	 */
-	private void fillUPNPDevice(UPNPDevice device, UPNPDevice parent, JXPathContext deviceCtx, URL baseURL) throws MalformedURLException {
-		device.deviceType = getMandatoryData(deviceCtx, "upnp:deviceType");
+	private void fillUPNPDevice(UPNPDevice device, UPNPDevice parent, DeviceDescriptionReader.DeviceElement element, URL baseURL) throws MalformedURLException {
+		Map<String, String> fields = element.fields;
+		device.deviceType = compact(getMandatoryData(fields, "deviceType"));
 		if (log.isDebugEnabled())
 			log.debug("parsing device " + device.deviceType);
-		device.friendlyName = getMandatoryData(deviceCtx, "upnp:friendlyName");
-		device.manufacturer = getNonMandatoryData(deviceCtx, "upnp:manufacturer");
-		String base = getNonMandatoryData(deviceCtx, "upnp:manufacturerURL");
+		device.friendlyName = getMandatoryData(fields, "friendlyName");
+		device.manufacturer = compact(getNonMandatoryData(fields, "manufacturer"));
+		String base = getNonMandatoryData(fields, "manufacturerURL");
 		try {
 			if (base != null)
 				device.manufacturerURL = new URL(base);
@@ -256,18 +447,18 @@ public class UPNPRootDevice extends UPNPDevice {
 			// crappy data provided, keep the field null
 		}
 		try {
-			device.presentationURL = getURL(getNonMandatoryData(deviceCtx, "upnp:presentationURL"), URLBase);
+			device.presentationURL = getURL(getNonMandatoryData(fields, "presentationURL"), URLBase);
 		} catch (java.net.MalformedURLException ex) {
 			// crappy data provided, keep the field null
 		}
-		device.modelDescription = getNonMandatoryData(deviceCtx, "upnp:modelDescription");
-		device.modelName = getMandatoryData(deviceCtx, "upnp:modelName");
-		device.modelNumber = getNonMandatoryData(deviceCtx, "upnp:modelNumber");
-		device.modelURL = getNonMandatoryData(deviceCtx, "upnp:modelURL");
-		device.serialNumber = getNonMandatoryData(deviceCtx, "upnp:serialNumber");
-		device.UDN = getMandatoryData(deviceCtx, "upnp:UDN");
-		device.USN = UDN.concat("::").concat(deviceType);
-		String tmp = getNonMandatoryData(deviceCtx, "upnp:UPC");
+		device.modelDescription = compact(getNonMandatoryData(fields, "modelDescription"));
+		device.modelName = compact(getMandatoryData(fields, "modelName"));
+		device.modelNumber = compact(getNonMandatoryData(fields, "modelNumber"));
+		device.modelURL = compact(getNonMandatoryData(fields, "modelURL"));
+		device.serialNumber = getNonMandatoryData(fields, "serialNumber");
+		device.UDN = getMandatoryData(fields, "UDN");
+		device.USN = device.UDN.concat("::").concat(device.deviceType);
+		String tmp = getNonMandatoryData(fields, "UPC");
 		if (tmp != null) {
 			try {
 				device.UPC = Long.parseLong(tmp);
@@ -277,126 +468,113 @@ public class UPNPRootDevice extends UPNPDevice {
 		}
 		device.parent = parent;
 
-		fillUPNPServicesList(device, deviceCtx);
-		fillUPNPDeviceIconsList(device, deviceCtx, URLBase);
+		fillUPNPServicesList(device, element);
+		fillUPNPDeviceIconsList(device, element, URLBase);
 
-		Pointer deviceListPtr;
-		try {
-			deviceListPtr = deviceCtx.getPointer("upnp:deviceList");
-		} catch (JXPathException ex) {
-			// no pointers for this device list, this can happen
-			// if the device has no child devices, simply return
+		if (element.childDevices == null) {
+			// the device has no child devices
 			return;
 		}
-		JXPathContext deviceListCtx = deviceCtx.getRelativeContext(deviceListPtr);
-		Double arraySize = (Double) deviceListCtx.getValue("count( upnp:device )");
 		if (log.isDebugEnabled())
-			log.debug("child devices count is " + arraySize);
+			log.debug("child devices count is " + element.childDevices.size());
 
-		device.childDevices = new ArrayList<UPNPDevice>(arraySize.intValue());
-		for (int idx = 1; idx <= arraySize.intValue(); idx++) {
-			Pointer devicePtr = deviceListCtx.getPointer("upnp:device[" + idx + "]");
-			JXPathContext childDeviceCtx = deviceListCtx.getRelativeContext(devicePtr);
+		device.childDevices = new ArrayList<UPNPDevice>(element.childDevices.size());
+		for (Iterator<DeviceDescriptionReader.DeviceElement> i = element.childDevices.iterator(); i.hasNext();) {
 			UPNPDevice childDevice = new UPNPDevice();
-			fillUPNPDevice(childDevice, device, childDeviceCtx, baseURL);
+			fillUPNPDevice(childDevice, device, i.next(), baseURL);
 			if (log.isDebugEnabled())
 				log.debug("adding child device " + childDevice.getDeviceType());
 			device.childDevices.add(childDevice);
 		}
+		device.childDevices = compact(device.childDevices);
 	}
 
-	private String getMandatoryData(JXPathContext ctx, String ctxFieldName) {
-		String value = (String) ctx.getValue(ctxFieldName);
-		if (value != null && value.length() == 0) {
-			throw new JXPathException("Mandatory field " + ctxFieldName + " not provided, uncompliant UPNP device !!");
+	private String compact(String value) {
+		return compact && value != null ? value.intern() : value;
+	}
+
+	private <T> List<T> compact(List<T> values) {
+		if (!compact) {
+			return values;
+		}
+		return values.isEmpty() ? Collections.<T> emptyList() : Collections.unmodifiableList(values);
+	}
+
+	private String getMandatoryData(Map<String, String> fields, String fieldName) {
+		String value = fields.get(fieldName);
+		if (value == null || value.length() == 0) {
+			throw new IllegalStateException("Mandatory field " + fieldName + " not provided, uncompliant UPNP device !!");
 		}
 		return value;
 	}
 
-	private String getNonMandatoryData(JXPathContext ctx, String ctxFieldName) {
-		String value = null;
-		try {
-			value = (String) ctx.getValue(ctxFieldName);
-			if (value != null && value.length() == 0) {
-				value = null;
-			}
-		} catch (JXPathException ex) {
+	private String getNonMandatoryData(Map<String, String> fields, String fieldName) {
+		String value = fields.get(fieldName);
+		if (value != null && value.length() == 0) {
 			value = null;
 		}
 		return value;
 	}
 
 	/**
-	 * Parsing an UPNPdevice services list element (<device/serviceList>) in the description XML file
+	 * Populates an UPNPdevice services list from the services list element (<device/serviceList>) read from the
+	 * description XML file
 	 * 
 	 * @param device
 	 *            the device object that will store the services list (UPNPService) objects
-	 * @param deviceCtx
-	 *            an XPath context for object population
+	 * @param element
+	 *            the device element read from the description file
 	 * @throws MalformedURLException
 	 *             if some URL provided in the description file for a service entry is invalid
 	 */
-	private void fillUPNPServicesList(UPNPDevice device, JXPathContext deviceCtx) throws MalformedURLException {
-		Pointer serviceListPtr = deviceCtx.getPointer("upnp:serviceList");
-		JXPathContext serviceListCtx = deviceCtx.getRelativeContext(serviceListPtr);
-		Double arraySize = (Double) serviceListCtx.getValue("count( upnp:service )");
+	private void fillUPNPServicesList(UPNPDevice device, DeviceDescriptionReader.DeviceElement element) throws MalformedURLException {
 		if (log.isDebugEnabled())
-			log.debug("device services count is " + arraySize);
+			log.debug("device services count is " + element.services.size());
 
-		device.services = new ArrayList<UPNPService>(arraySize.intValue());
-		for (int idx = 1; idx <= arraySize.intValue(); idx++) {
-			Pointer servicePtr = serviceListCtx.getPointer("upnp:service[" + idx + "]");
-			JXPathContext serviceCtx = serviceListCtx.getRelativeContext(servicePtr);
+		device.services = new ArrayList<UPNPService>(element.services.size());
+		for (Iterator<Map<String, String>> i = element.services.iterator(); i.hasNext();) {
+			Map<String, String> fields = i.next();
 			// TODO possibility of bugs if deviceDefLoc contains a file name
 			URL base = URLBase != null ? URLBase : deviceDefLoc;
-			UPNPService service = new UPNPService(serviceCtx, base, this);
+			UPNPService service = new UPNPService(compact(fields.get("serviceType")), compact(fields.get("serviceId")), fields.get("SCPDURL"),
+					fields.get("controlURL"), fields.get("eventSubURL"), base, this);
 			device.services.add(service);
 		}
+		device.services = compact(device.services);
 	}
 
 	/**
-	 * Parsing an UPNPdevice icons list element (<device/iconList>) in the description XML file. This list can be null.
+	 * Populates an UPNPdevice icons list from the icons list element (<device/iconList>) read from the description XML
+	 * file. This list can be null.
 	 * 
 	 * @param device
 	 *            the device object that will store the icons list (DeviceIcon) objects
-	 * @param deviceCtx
-	 *            an XPath context for object population
+	 * @param element
+	 *            the device element read from the description file
 	 * @throws MalformedURLException
 	 *             if some URL provided in the description file for an icon URL
 	 */
-	private void fillUPNPDeviceIconsList(UPNPDevice device, JXPathContext deviceCtx, URL baseURL) throws MalformedURLException {
-		Pointer iconListPtr;
-		try {
-			iconListPtr = deviceCtx.getPointer("upnp:iconList");
-		} catch (JXPathException ex) {
-			// no pointers for icons list, this can happen; simply return
+	private void fillUPNPDeviceIconsList(UPNPDevice device, DeviceDescriptionReader.DeviceElement element, URL baseURL) throws MalformedURLException {
+		if (element.icons == null) {
+			// no icons list, this can happen
 			return;
 		}
-		JXPathContext iconListCtx = deviceCtx.getRelativeContext(iconListPtr);
-		Double arraySize = (Double) iconListCtx.getValue("count( upnp:icon )");
 		if (log.isDebugEnabled())
-			log.debug("device icons count is " + arraySize);
-		device.deviceIcons = new ArrayList<DeviceIcon>();
-		for (int idx = 1; idx <= arraySize.intValue(); idx++) {
+			log.debug("device icons count is " + element.icons.size());
+		device.deviceIcons = new ArrayList<DeviceIcon>(element.icons.size());
+		for (Iterator<Map<String, String>> i = element.icons.iterator(); i.hasNext();) {
+			Map<String, String> fields = i.next();
 			DeviceIcon ico = new DeviceIcon();
-			if (true) {
-				JXPathContext elemCtx = deviceCtx.getRelativeContext(iconListCtx.getPointer("upnp:icon[" + idx + "]"));
-				ico.mimeType = (String) elemCtx.getValue("upnp:mimetype");
-				ico.width = Integer.parseInt((String) elemCtx.getValue("upnp:width"));
-				ico.height = Integer.parseInt((String) elemCtx.getValue("upnp:height"));
-				ico.depth = Integer.parseInt((String) elemCtx.getValue("upnp:depth"));
-				ico.url = getURL((String) elemCtx.getValue("upnp:url"), baseURL);
-//			} else {
-//				ico.mimeType = (String) iconListCtx.getValue("upnp:icon[" + i + "]/upnp:mimetype");
-//				ico.width = Integer.parseInt((String) iconListCtx.getValue("upnp:icon[" + i + "]/upnp:width"));
-//				ico.height = Integer.parseInt((String) iconListCtx.getValue("upnp:icon[" + i + "]/upnp:height"));
-//				ico.depth = Integer.parseInt((String) iconListCtx.getValue("upnp:icon[" + i + "]/upnp:depth"));
-//				ico.url = getURL((String) iconListCtx.getValue("upnp:icon[" + i + "]/upnp:url"), baseURL);
-			}
+			ico.mimeType = compact(fields.get("mimetype"));
+			ico.width = Integer.parseInt(fields.get("width"));
+			ico.height = Integer.parseInt(fields.get("height"));
+			ico.depth = Integer.parseInt(fields.get("depth"));
+			ico.url = getURL(fields.get("url"), baseURL);
 			if (log.isDebugEnabled())
 				log.debug("icon URL is " + ico.url);
 			device.deviceIcons.add(ico);
 		}
+		device.deviceIcons = compact(device.deviceIcons);
 	}
 
 	/**
@@ -441,35 +619,47 @@ public class UPNPRootDevice extends UPNPDevice {
 	}
 
 	/**
-	 * Retrieves the device definition XML data
+	 * Retrieves the device definition XML data, the data is not kept by the device in compact model mode
 	 * 
 	 * @return the device definition XML data as a String
 	 */
 	public String getDeviceDefLocData() {
-		if (deviceDefLocData == null) {
+		String data = deviceDefLocData;
+		if (data == null) {
 			try {
-				java.io.InputStream in = deviceDefLoc.openConnection().getInputStream();
-				int readen = 0;
-				byte[] buff = new byte[512];
-				StringBuffer strBuff = new StringBuffer();
-				while ((readen = in.read(buff)) != -1) {
-					strBuff.append(new String(buff, 0, readen));
-				}
-				in.close();
-				deviceDefLocData = strBuff.toString();
+				data = DocumentFetcher.getInstance().fetchDocument(deviceDefLoc);
 			} catch (IOException ioEx) {
 				return null;
 			}
+			if (!compact) {
+				deviceDefLocData = data;
+			}
 		}
-		return deviceDefLocData;
+		return data;
 	}
 
 	/**
-	 * Used for JXPath parsing, do not use this method
+	 * Used for JXPath parsing, do not use this method. The device is built without JXPath, the container is only
+	 * created on the first call and loads the description file again. In compact model mode the container is not kept.
 	 * 
 	 * @return a Container object for Xpath parsing capabilities
 	 */
-	public Container getUPNPDevice() {
+	public synchronized Container getUPNPDevice() {
+		if (UPNPDevice == null) {
+			registerXMLParser();
+			DocumentContainer container = DocumentFetcher.getInstance().createContainer(deviceDefLoc);
+			if (compact) {
+				return container;
+			}
+			UPNPDevice = container;
+		}
 		return UPNPDevice;
 	}
+
+	private static synchronized void registerXMLParser() {
+		if (!parserRegistered) {
+			DocumentContainer.registerXMLParser(DocumentContainer.MODEL_DOM, new JXPathParser());
+			parserRegistered = true;
+		}
+	}
 }
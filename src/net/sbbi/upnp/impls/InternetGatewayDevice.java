@@ -20,6 +20,8 @@ import java.util.Iterator;
 import java.util.Set;
 
 import net.sbbi.upnp.Discovery;
+import net.sbbi.upnp.DiscoveryFuture;
+import net.sbbi.upnp.DiscoveryPolicy;
 import net.sbbi.upnp.devices.UPNPDevice;
 import net.sbbi.upnp.devices.UPNPRootDevice;
 import net.sbbi.upnp.messages.ActionMessage;
@@ -158,7 +160,24 @@ public class InternetGatewayDevice {
 	 *             if some IO Exception occurs during discovery
 	 */
 	public static InternetGatewayDevice[] getDevices(int timeout) throws IOException {
-		return lookupDeviceDevices(timeout, Discovery.DEFAULT_TTL, Discovery.DEFAULT_MX, true, true, null);
+		return lookupDeviceDevices(timeout, Discovery.DEFAULT_TTL, Discovery.DEFAULT_MX, true, true, null, null);
+	}
+
+	/**
+	 * Lookup the IGD (IP or PPP) devices on the network, the lookup ends as soon as the given discovery policy is
+	 * satisfied instead of waiting for the whole timeout. Use DiscoveryPolicy.firstMatch() to stop on the first
+	 * responding device. If a device implements both IP and PPP, the active service will be used for nat mappings.
+	 * 
+	 * @param timeout
+	 *            the maximum time in ms to listen for devices response, -1 for default value
+	 * @param policy
+	 *            the discovery completion policy
+	 * @return an array of devices to play with or null if nothing found.
+	 * @throws IOException
+	 *             if some IO Exception occurs during discovery
+	 */
+	public static InternetGatewayDevice[] getDevices(int timeout, DiscoveryPolicy policy) throws IOException {
+		return lookupDeviceDevices(timeout, Discovery.DEFAULT_TTL, Discovery.DEFAULT_MX, true, true, null, policy);
 	}
 
 	/**
@@ -179,7 +198,7 @@ public class InternetGatewayDevice {
 	 *             if some IO Exception occurs during discovery
 	 */
 	public static InternetGatewayDevice[] getDevices(int timeout, int ttl, int mx, NetworkInterface ni) throws IOException {
-		return lookupDeviceDevices(timeout, ttl, mx, true, true, ni);
+		return lookupDeviceDevices(timeout, ttl, mx, true, true, ni, null);
 	}
 
 	/**
@@ -195,7 +214,7 @@ public class InternetGatewayDevice {
 	 */
 	@Deprecated
 	public static InternetGatewayDevice[] getIPDevices(int timeout) throws IOException {
-		return lookupDeviceDevices(timeout, Discovery.DEFAULT_TTL, Discovery.DEFAULT_MX, true, false, null);
+		return lookupDeviceDevices(timeout, Discovery.DEFAULT_TTL, Discovery.DEFAULT_MX, true, false, null, null);
 	}
 
 	/**
@@ -211,16 +230,22 @@ public class InternetGatewayDevice {
 	 */
 	@Deprecated
 	public static InternetGatewayDevice[] getPPPDevices(int timeout) throws IOException {
-		return lookupDeviceDevices(timeout, Discovery.DEFAULT_TTL, Discovery.DEFAULT_MX, false, true, null);
+		return lookupDeviceDevices(timeout, Discovery.DEFAULT_TTL, Discovery.DEFAULT_MX, false, true, null, null);
 	}
 
-	private static InternetGatewayDevice[] lookupDeviceDevices(int timeout, int ttl, int mx, boolean WANIPConnection, boolean WANPPPConnection, NetworkInterface ni) throws IOException {
+	private static InternetGatewayDevice[] lookupDeviceDevices(int timeout, int ttl, int mx, boolean WANIPConnection, boolean WANPPPConnection, NetworkInterface ni, DiscoveryPolicy policy) throws IOException {
 		UPNPRootDevice[] devices = null;
 		InternetGatewayDevice[] rtrVal = null;
 		if (timeout == -1) {
-			devices = Discovery.discover(Discovery.DEFAULT_TIMEOUT, ttl, mx, "urn:schemas-upnp-org:device:InternetGatewayDevice:1", ni);
-		} else {
-			devices = Discovery.discover(timeout, ttl, mx, "urn:schemas-upnp-org:device:InternetGatewayDevice:1", ni);
+			timeout = Discovery.DEFAULT_TIMEOUT;
+		}
+		DiscoveryFuture future = Discovery.discoverAsync(timeout, ttl, mx, "urn:schemas-upnp-org:device:InternetGatewayDevice:1", ni, policy, null);
+		try {
+			devices = future.get();
+		} catch (InterruptedException ex) {
+			// don't care
+			future.stop();
+			devices = future.getDiscoveredDevices();
 		}
 		if (devices != null) {
 			Set<InternetGatewayDevice> valid = new HashSet<InternetGatewayDevice>();
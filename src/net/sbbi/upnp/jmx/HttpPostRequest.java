@@ -22,8 +22,8 @@ import javax.management.MBeanInfo;
 import javax.management.MBeanOperationInfo;
 import javax.management.MBeanParameterInfo;
 import javax.management.ReflectionException;
-import javax.xml.parsers.DocumentBuilderFactory;
 
+import net.sbbi.upnp.ParserPool;
 import net.sbbi.upnp.messages.UPNPResponseException;
 import net.sbbi.upnp.services.ServiceStateVariable;
 
@@ -45,10 +45,7 @@ public class HttpPostRequest implements HttpRequestHandler {
 
 	private static final String STATE_VAR_ACTION_URN = "urn:schemas-upnp-org:control-1-0#QueryStateVariable";
 
-	private final DocumentBuilderFactory builder = DocumentBuilderFactory.newInstance();
-
 	private HttpPostRequest() {
-		builder.setNamespaceAware(true);
 	}
 
 	public static HttpRequestHandler getInstance() {
@@ -250,10 +247,7 @@ public class HttpPostRequest implements HttpRequestHandler {
 		String[] rtrVal = null;
 		ByteArrayInputStream in = new ByteArrayInputStream(xmlRequest.getBytes());
 		InputSource src = new InputSource(in);
-		Document doc = null;
-		synchronized (builder) {
-			doc = builder.newDocumentBuilder().parse(src);
-		}
+		Document doc = ParserPool.parse(src);
 		Element root = doc.getDocumentElement();
 		Element body = (Element) root.getElementsByTagNameNS("http://schemas.xmlsoap.org/soap/envelope/", "Body").item(0);
 		if (body == null) {
@@ -289,10 +283,7 @@ public class HttpPostRequest implements HttpRequestHandler {
 
 		ByteArrayInputStream in = new ByteArrayInputStream(xmlRequest.getBytes());
 		InputSource src = new InputSource(in);
-		Document doc = null;
-		synchronized (builder) {
-			doc = builder.newDocumentBuilder().parse(src);
-		}
+		Document doc = ParserPool.parse(src);
 		Element root = doc.getDocumentElement();
 
 		Element body = (Element) root.getElementsByTagNameNS("http://schemas.xmlsoap.org/soap/envelope/", "Body").item(0);
@@ -11,21 +11,20 @@
 
 package net.sbbi.upnp.messages;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.StringReader;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
+import net.sbbi.upnp.IOUtils;
+import net.sbbi.upnp.ParserPool;
 import net.sbbi.upnp.services.ISO8601Date;
 import net.sbbi.upnp.services.ServiceAction;
 import net.sbbi.upnp.services.ServiceActionArgument;
@@ -33,7 +32,6 @@ import net.sbbi.upnp.services.ServiceStateVariable;
 import net.sbbi.upnp.services.UPNPService;
 
 import org.apache.log4j.Logger;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
@@ -84,9 +82,37 @@ public class ActionMessage {
 	 *             detailErrorCode = 899, detailErrorDescription = SAXException message )
 	 */
 	public ActionResponse service() throws IOException, UPNPResponseException {
-		ActionResponse rtrVal = null;
-		UPNPResponseException upnpEx = null;
-		IOException ioEx = null;
+		return parseResponse(serviceAction, ControlClient.getInstance().post(service.getControlURL(), getSOAPAction(), getRequestBody()));
+	}
+
+	/**
+	 * Executes the message without blocking the calling thread, the message is sent with the current input parameters
+	 * values and the returned future is completed once the UPNP device response has been received and parsed. No thread
+	 * is held while waiting for the device, so any number of messages can be outstanding at the same time.
+	 * 
+	 * @return a future completed with the response object containing the UPNP parsed response, or exceptionally with
+	 *         the IOException or UPNPResponseException that service() would have thrown
+	 */
+	public CompletableFuture<ActionResponse> serviceAsync() {
+		ControlClient client = ControlClient.getInstance();
+		return client.postAsync(service.getControlURL(), getSOAPAction(), getRequestBody()).thenApplyAsync(new Function<ControlClient.Response, ActionResponse>() {
+			public ActionResponse apply(ControlClient.Response response) {
+				try {
+					return parseResponse(serviceAction, response);
+				} catch (IOException ex) {
+					throw new CompletionException(ex);
+				} catch (UPNPResponseException ex) {
+					throw new CompletionException(ex);
+				}
+			}
+		}, client.getExecutor());
+	}
+
+	private String getSOAPAction() {
+		return "\"" + service.getServiceType() + "#" + serviceAction.getName() + "\"";
+	}
+
+	private byte[] getRequestBody() {
 		StringBuffer body = new StringBuffer(256);
 
 		body.append("<?xml version=\"1.0\"?>\r\n");
@@ -99,7 +125,7 @@ public class ActionMessage {
 			// this action requires params so we just set them...
 			for (Iterator<InputParamContainer> itr = inputParameters.iterator(); itr.hasNext();) {
 				InputParamContainer container = itr.next();
-				body.append("<").append(container.name).append(">").append(container.value);
+				body.append("<").append(container.name).append(">").append(IOUtils.escapeXML(container.value));
 				body.append("</").append(container.name).append(">");
 			}
 		}
@@ -107,82 +133,48 @@ public class ActionMessage {
 		body.append("</s:Body>");
 		body.append("</s:Envelope>");
 
-		if (log.isDebugEnabled())
+		if (log.isDebugEnabled()) {
 			log.debug("POST prepared for URL " + service.getControlURL());
-		URL url = new URL(service.getControlURL().toString());
-		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-		conn.setDoInput(true);
-		conn.setDoOutput(true);
-		conn.setUseCaches(false);
-		conn.setRequestMethod("POST");
-		HttpURLConnection.setFollowRedirects(false);
-		//conn.setConnectTimeout( 30000 );
-		conn.setRequestProperty("HOST", url.getHost() + ":" + url.getPort());
-		conn.setRequestProperty("CONTENT-TYPE", "text/xml; charset=\"utf-8\"");
-		conn.setRequestProperty("CONTENT-LENGTH", Integer.toString(body.length()));
-		conn.setRequestProperty("SOAPACTION", "\"" + service.getServiceType() + "#" + serviceAction.getName() + "\"");
-		OutputStream out = conn.getOutputStream();
-		out.write(body.toString().getBytes());
-		out.flush();
-		out.close();
-		conn.connect();
-		InputStream input = null;
+			log.debug("executing query :\n" + body);
+		}
+		return body.toString().getBytes(StandardCharsets.UTF_8);
+	}
 
+	/**
+	 * Parses an action response
+	 * 
+	 * @param serviceAction
+	 *            the action invoked
+	 * @param response
+	 *            the device response
+	 * @return the parsed response
+	 * @throws IOException
+	 *             if the response is not a SOAP response
+	 * @throws UPNPResponseException
+	 *             if the response is an UPNP error message or cannot be parsed
+	 */
+	static ActionResponse parseResponse(ServiceAction serviceAction, ControlClient.Response response) throws IOException, UPNPResponseException {
+		ActionResponse rtrVal = null;
+		UPNPResponseException upnpEx = null;
+		IOException ioEx = null;
 		if (log.isDebugEnabled())
-			log.debug("executing query :\n" + body);
+			log.debug("received response :\n" + IOUtils.readDocument(new ByteArrayInputStream(response.getBody()), IOUtils.getCharset(response.getContentType())).trim());
+		ActionMessageResponseParser msgParser = new ActionMessageResponseParser(serviceAction);
 		try {
-			input = conn.getInputStream();
-		} catch (IOException ex) {
-			// java can throw an exception if he error code is 500 or 404 or something else than 200
-			// but the device sends 500 error message with content that is required
-			// this content is accessible with the getErrorStream
-			input = conn.getErrorStream();
+			ParserPool.parse(response.getInputSource(), msgParser);
+		} catch (SAXException saxEx) {
+			// kind of tricky but better than nothing..
+			upnpEx = new UPNPResponseException(899, saxEx.getMessage());
 		}
-
-		if (input != null) {
-			int response = conn.getResponseCode();
-			String responseBody = getResponseBody(input);
-			if (log.isDebugEnabled())
-				log.debug("received response :\n" + responseBody);
-			SAXParserFactory saxParFact = SAXParserFactory.newInstance();
-			saxParFact.setValidating(false);
-			saxParFact.setNamespaceAware(true);
-			ActionMessageResponseParser msgParser = new ActionMessageResponseParser(serviceAction);
-			StringReader stringReader = new StringReader(responseBody);
-			InputSource src = new InputSource(stringReader);
-			try {
-				SAXParser parser = saxParFact.newSAXParser();
-				parser.parse(src, msgParser);
-			} catch (ParserConfigurationException confEx) {
-				// should never happen
-				// we throw a runtimeException to notify the env problem
-				throw new RuntimeException("ParserConfigurationException during SAX parser creation, please check your env settings:" + confEx.getMessage());
-			} catch (SAXException saxEx) {
-				// kind of tricky but better than nothing..
-				upnpEx = new UPNPResponseException(899, saxEx.getMessage());
-			} finally {
-				try {
-					input.close();
-				} catch (IOException ex) {
-					// ignore
-				}
-			}
-			if (upnpEx == null) {
-				if (response == HttpURLConnection.HTTP_OK) {
-					rtrVal = msgParser.getActionResponse();
-				} else if (response == HttpURLConnection.HTTP_INTERNAL_ERROR) {
-					upnpEx = msgParser.getUPNPResponseException();
-				} else {
-					ioEx = new IOException("Unexpected server HTTP response:" + response);
-				}
+		if (upnpEx == null) {
+			if (response.getCode() == HttpURLConnection.HTTP_OK) {
+				rtrVal = msgParser.getActionResponse();
+			} else if (response.getCode() == HttpURLConnection.HTTP_INTERNAL_ERROR) {
+				upnpEx = msgParser.getUPNPResponseException();
+			} else {
+				ioEx = new IOException("Unexpected server HTTP response:" + response.getCode());
 			}
 		}
-		try {
-			out.close();
-		} catch (IOException ex) {
-			// ignore
-		}
-		conn.disconnect();
 		if (upnpEx != null) {
 			throw upnpEx;
 		}
@@ -195,23 +187,6 @@ public class ActionMessage {
 		return rtrVal;
 	}
 
-	private String getResponseBody(InputStream in) throws IOException {
-		byte[] buffer = new byte[256];
-		int readen = 0;
-		StringBuffer content = new StringBuffer(256);
-		while ((readen = in.read(buffer)) != -1) {
-			content.append(new String(buffer, 0, readen));
-		}
-		// some devices add \0 chars at XML message end
-		// which causes XML parsing errors...
-		int len = content.length();
-		while (content.charAt(len - 1) == '\0') {
-			len--;
-			content.setLength(len);
-		}
-		return content.toString().trim();
-	}
-
 	/**
 	 * The list of input parameters that should be accepted by the device service for this message
 	 * 
@@ -276,13 +251,16 @@ public class ActionMessage {
 	 * @param parameterName
 	 *            the parameter name
 	 * @param parameterValue
-	 *            the string parameter value
+	 *            the string parameter value, null for an empty value
 	 * @return the current ActionMessage object instance
 	 * @throws IllegalArgumentException
 	 *             if the provided parameterName is not valid for this message or if no input parameters are required
 	 *             for this message
 	 */
 	public ActionMessage setInputParameter(String parameterName, String parameterValue) throws IllegalArgumentException {
+		if (parameterValue == null) {
+			parameterValue = "";
+		}
 		if (serviceAction.getInputActionArguments() == null)
 			throw new IllegalArgumentException("No input parameters required for this message");
 		ServiceActionArgument arg = serviceAction.getInputActionArgument(parameterName);
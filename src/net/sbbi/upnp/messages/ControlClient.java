@@ -0,0 +1,1035 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.sbbi.upnp.DocumentFetcher;
+import net.sbbi.upnp.IOUtils;
+import net.sbbi.upnp.ZeroByteFilterInputStream;
+
+import org.apache.log4j.Logger;
+import org.xml.sax.InputSource;
+
+/**
+ * Non blocking HTTP/1.1 client used to post the SOAP control messages. All the connections are handled by a single
+ * reactor thread, so any number of messages can be outstanding at the same time, the callers either wait for the
+ * response or get a future completed once it has been received. The connections to each device (host, port) are kept
+ * alive and reused by the following messages. The number of connections opened to a device is capped, a message waits
+ * for a free connection at most the connect timeout, and the connections left idle longer than the idle timeout are
+ * closed. A message sent on a reused connection closed meanwhile by the device is sent again once on a new connection.
+ * The reactor thread is started with the first message and exits once all the connections have been closed. The
+ * messages to a non http control URL, such as https, are posted with an HttpURLConnection instead, without any of
+ * those features, synchronous messages in the calling thread and asynchronous ones by the worker threads.
+ * <br/>
+ * The client can be set with the net.sbbi.upnp.messages.ControlClient.maxConnectionsPerHost,
+ * net.sbbi.upnp.messages.ControlClient.idleTimeout, net.sbbi.upnp.messages.ControlClient.connectTimeout and
+ * net.sbbi.upnp.messages.ControlClient.readTimeout (all timeouts in ms) system properties. The responses of the
+ * asynchronous messages are parsed by a small pool of worker threads, sized with the
+ * net.sbbi.upnp.messages.ControlClient.workerThreads system property.
+ *
+ * @version 1.0
+ */
+
+public class ControlClient {
+	private final static Logger log = Logger.getLogger(ControlClient.class);
+
+	public final static int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
+	public final static int DEFAULT_IDLE_TIMEOUT = 30000;
+	public final static int DEFAULT_CONNECT_TIMEOUT = 5000;
+	public final static int DEFAULT_READ_TIMEOUT = 30000;
+	public final static int DEFAULT_WORKER_THREADS = 2;
+
+	private final static String THREAD_NAME = "Control client reactor";
+
+	private final static int MAX_HEADER_SIZE = 16384;
+	private final static long TIMEOUT_CHECK_PERIOD = 250;
+	private final static long STALE_CLOSE_DELAY = 1000;
+
+	private final static ControlClient singleton = new ControlClient();
+
+	private volatile int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+	private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private int workerThreads = DEFAULT_WORKER_THREADS;
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private Selector selector;
+	private Thread reactor;
+	private ThreadPoolExecutor workers;
+
+	// only used by the reactor thread
+	private final Map<String, HostPool> pools = new HashMap<String, HostPool>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(16384);
+
+	private ControlClient() {
+		String prop = System.getProperty("net.sbbi.upnp.messages.ControlClient.maxConnectionsPerHost");
+		if (prop != null)
+			maxConnectionsPerHost = Integer.parseInt(prop);
+		prop = System.getProperty("net.sbbi.upnp.messages.ControlClient.idleTimeout");
+		if (prop != null)
+			idleTimeout = Integer.parseInt(prop);
+		prop = System.getProperty("net.sbbi.upnp.messages.ControlClient.connectTimeout");
+		if (prop != null)
+			connectTimeout = Integer.parseInt(prop);
+		prop = System.getProperty("net.sbbi.upnp.messages.ControlClient.readTimeout");
+		if (prop != null)
+			readTimeout = Integer.parseInt(prop);
+		prop = System.getProperty("net.sbbi.upnp.messages.ControlClient.workerThreads");
+		if (prop != null)
+			workerThreads = Math.max(1, Integer.parseInt(prop));
+	}
+
+	public final static ControlClient getInstance() {
+		return singleton;
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	/**
+	 * Sets the maximum number of connections opened to a device
+	 *
+	 * @param maxConnectionsPerHost
+	 *            the maximum number of connections per (host, port)
+	 */
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		if (maxConnectionsPerHost < 1) {
+			throw new IllegalArgumentException("Illegal maxConnectionsPerHost " + maxConnectionsPerHost);
+		}
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets the delay after which an unused connection is closed
+	 *
+	 * @param idleTimeout
+	 *            the delay in ms
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Sets the connect timeout, also used as the maximum wait for a free connection
+	 *
+	 * @param connectTimeout
+	 *            the timeout in ms, 0 for no timeout
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Sets the read timeout of the responses
+	 *
+	 * @param readTimeout
+	 *            the timeout in ms, 0 for no timeout
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Closes all the idle connections
+	 */
+	public void closeIdleConnections() {
+		synchronized (tasks) {
+			if (reactor == null) {
+				return;
+			}
+		}
+		try {
+			execute(new Runnable() {
+				public void run() {
+					for (Iterator<HostPool> i = pools.values().iterator(); i.hasNext();) {
+						i.next().evict(0);
+					}
+				}
+			});
+		} catch (IOException ex) {
+			log.error("Unable to close the idle connections", ex);
+		}
+	}
+
+	/**
+	 * Posts a SOAP message and waits for the response
+	 *
+	 * @param url
+	 *            the service control URL
+	 * @param soapAction
+	 *            the SOAPACTION header value
+	 * @param body
+	 *            the UTF-8 encoded message
+	 * @return the device response
+	 * @throws IOException
+	 *             if the message cannot be sent or the response received
+	 */
+	Response post(URL url, String soapAction, byte[] body) throws IOException {
+		ByteBuffer[] request = new ByteBuffer[] { ByteBuffer.wrap(getRequestHeader(url, soapAction)), ByteBuffer.wrap(getContentLengthHeader(body.length)), ByteBuffer.wrap(body) };
+		return post(url, request);
+	}
+
+	/**
+	 * Posts an HTTP request and waits for the response
+	 *
+	 * @param url
+	 *            the service control URL
+	 * @param request
+	 *            the request header and body, written to the connection in sequence
+	 * @return the device response
+	 * @throws IOException
+	 *             if the request cannot be sent or the response received
+	 */
+	Response post(URL url, ByteBuffer[] request) throws IOException {
+		if (!isHttp(url)) {
+			return postWithURLConnection(url, request);
+		}
+		return await(postAsync(url, request), url);
+	}
+
+	/**
+	 * Posts a SOAP message without waiting for the response
+	 *
+	 * @param url
+	 *            the service control URL
+	 * @param soapAction
+	 *            the SOAPACTION header value
+	 * @param body
+	 *            the UTF-8 encoded message
+	 * @return a future completed by the reactor thread with the device response, or exceptionally with an IOException
+	 *         if the message cannot be sent or the response received
+	 */
+	CompletableFuture<Response> postAsync(URL url, String soapAction, byte[] body) {
+		ByteBuffer[] request = new ByteBuffer[] { ByteBuffer.wrap(getRequestHeader(url, soapAction)), ByteBuffer.wrap(getContentLengthHeader(body.length)), ByteBuffer.wrap(body) };
+		return postAsync(url, request);
+	}
+
+	/**
+	 * Posts an HTTP request without waiting for the response, the request buffers are written with a single gathering
+	 * write so that the static parts of a message can be shared between requests
+	 *
+	 * @param url
+	 *            the service control URL
+	 * @param request
+	 *            the request header and body, written to the connection in sequence, the buffers positions are not
+	 *            modified
+	 * @return a future completed by the reactor thread with the device response, or exceptionally with an IOException
+	 *         if the request cannot be sent or the response received
+	 */
+	CompletableFuture<Response> postAsync(final URL url, final ByteBuffer[] request) {
+		final CompletableFuture<Response> rtrVal = new CompletableFuture<Response>();
+		if (!isHttp(url)) {
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						rtrVal.complete(postWithURLConnection(url, request));
+					} catch (IOException ex) {
+						rtrVal.completeExceptionally(ex);
+					} catch (RuntimeException ex) {
+						rtrVal.completeExceptionally(ex);
+					}
+				}
+			});
+			return rtrVal;
+		}
+		String host = url.getHost();
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		final Exchange exchange = new Exchange(host, port, request, rtrVal);
+		try {
+			execute(new Runnable() {
+				public void run() {
+					submit(exchange);
+				}
+			});
+		} catch (IOException ex) {
+			rtrVal.completeExceptionally(ex);
+		}
+		return rtrVal;
+	}
+
+	/**
+	 * Builds the static part of a SOAP message HTTP header, to be followed by the getContentLengthHeader() bytes
+	 *
+	 * @param url
+	 *            the service control URL
+	 * @param soapAction
+	 *            the SOAPACTION header value
+	 * @return the header bytes
+	 */
+	static byte[] getRequestHeader(URL url, String soapAction) {
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		String path = url.getFile();
+		if (path.length() == 0) {
+			path = "/";
+		}
+		StringBuilder header = new StringBuilder(256);
+		header.append("POST ").append(path).append(" HTTP/1.1\r\n");
+		header.append("HOST: ").append(url.getHost()).append(':').append(port).append("\r\n");
+		header.append("CONTENT-TYPE: text/xml; charset=\"utf-8\"\r\n");
+		header.append("SOAPACTION: ").append(soapAction).append("\r\n");
+		return header.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Builds the last line of a SOAP message HTTP header
+	 *
+	 * @param contentLength
+	 *            the message body length
+	 * @return the header line bytes, including the empty line ending the header
+	 */
+	static byte[] getContentLengthHeader(int contentLength) {
+		return ("CONTENT-LENGTH: " + contentLength + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static boolean isHttp(URL url) {
+		return "http".equalsIgnoreCase(url.getProtocol());
+	}
+
+	/**
+	 * Posts a request with an HttpURLConnection, used for the control URLs the reactor cannot handle such as https
+	 * ones. The request header built for the reactor is split again into request properties
+	 */
+	private Response postWithURLConnection(URL url, ByteBuffer[] request) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int i = 0; i < request.length; i++) {
+			ByteBuffer buffer = request[i].duplicate();
+			byte[] data = new byte[buffer.remaining()];
+			buffer.get(data);
+			bytes.write(data);
+		}
+		byte[] raw = bytes.toByteArray();
+		int end = 0;
+		while (end + 3 < raw.length && !(raw[end] == '\r' && raw[end + 1] == '\n' && raw[end + 2] == '\r' && raw[end + 3] == '\n')) {
+			end++;
+		}
+		String[] lines = new String(raw, 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+		byte[] body = Arrays.copyOfRange(raw, Math.min(end + 4, raw.length), raw.length);
+
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setConnectTimeout(connectTimeout);
+		conn.setReadTimeout(readTimeout);
+		conn.setDoOutput(true);
+		conn.setUseCaches(false);
+		conn.setInstanceFollowRedirects(false);
+		conn.setRequestMethod("POST");
+		// the first line is the request line, the host and length are set by the connection
+		for (int i = 1; i < lines.length; i++) {
+			int idx = lines[i].indexOf(':');
+			if (idx == -1) {
+				continue;
+			}
+			String name = lines[i].substring(0, idx).trim();
+			if (!name.equalsIgnoreCase("HOST") && !name.equalsIgnoreCase("CONTENT-LENGTH")) {
+				conn.setRequestProperty(name, lines[i].substring(idx + 1).trim());
+			}
+		}
+		conn.setFixedLengthStreamingMode(body.length);
+		OutputStream out = conn.getOutputStream();
+		out.write(body);
+		out.close();
+		int code = conn.getResponseCode();
+		// the SOAP faults come with an error code, their content is in the error stream
+		InputStream in = code >= HttpURLConnection.HTTP_BAD_REQUEST ? conn.getErrorStream() : conn.getInputStream();
+		byte[] data = in != null ? IOUtils.readFully(in) : new byte[0];
+		return new Response(code, conn.getContentType(), data, false);
+	}
+
+	private Response await(CompletableFuture<Response> future, URL url) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the response of " + url);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			IOException ioEx = new IOException("Unable to post the message to " + url);
+			ioEx.initCause(cause);
+			throw ioEx;
+		}
+	}
+
+	/**
+	 * The executor used to parse the responses of the asynchronous messages, so that the reactor thread only deals with
+	 * the connections
+	 *
+	 * @return the executor
+	 */
+	Executor getExecutor() {
+		synchronized (tasks) {
+			if (workers == null) {
+				workers = new ThreadPoolExecutor(workerThreads, workerThreads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private int count = 0;
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Control client worker " + ++count);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				workers.allowCoreThreadTimeOut(true);
+			}
+			return workers;
+		}
+	}
+
+	private void execute(Runnable task) throws IOException {
+		synchronized (tasks) {
+			if (selector == null) {
+				selector = Selector.open();
+			}
+			tasks.add(task);
+			if (reactor == null) {
+				reactor = new Thread(new Reactor(), THREAD_NAME);
+				reactor.setDaemon(true);
+				reactor.start();
+			} else {
+				selector.wakeup();
+			}
+		}
+	}
+
+	private void submit(Exchange exchange) {
+		if (exchange.future.isDone()) {
+			// cancelled by the caller
+			return;
+		}
+		String key = exchange.host + ':' + exchange.port;
+		HostPool pool = pools.get(key);
+		if (pool == null) {
+			pool = new HostPool(exchange.host, exchange.port);
+			pools.put(key, pool);
+		}
+		exchange.deadline = connectTimeout == 0 ? 0 : System.currentTimeMillis() + connectTimeout;
+		pool.waiting.addLast(exchange);
+		pool.dispatch();
+	}
+
+	private void checkTimeouts(long now) {
+		List<SelectionKey> keys = new ArrayList<SelectionKey>(selector.keys());
+		for (Iterator<SelectionKey> i = keys.iterator(); i.hasNext();) {
+			SelectionKey key = i.next();
+			if (!key.isValid()) {
+				continue;
+			}
+			Connection conn = (Connection) key.attachment();
+			if (conn.exchange != null) {
+				if (conn.deadline != 0 && now >= conn.deadline) {
+					conn.fail(new SocketTimeoutException((conn.connected ? "Read" : "Connect") + " timed out on " + conn.pool.host + ":" + conn.pool.port));
+				}
+			} else if (now - conn.lastUse >= idleTimeout) {
+				conn.pool.idle.remove(conn);
+				conn.close();
+			}
+		}
+		for (Iterator<HostPool> i = pools.values().iterator(); i.hasNext();) {
+			HostPool pool = i.next();
+			for (Iterator<Exchange> j = pool.waiting.iterator(); j.hasNext();) {
+				Exchange exchange = j.next();
+				if (exchange.future.isDone()) {
+					j.remove();
+				} else if (exchange.deadline != 0 && now >= exchange.deadline) {
+					j.remove();
+					exchange.future.completeExceptionally(new IOException("No connection available to " + pool.host + ":" + pool.port + " after " + connectTimeout + " ms"));
+				}
+			}
+			if (pool.open == 0 && pool.waiting.isEmpty()) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * The reactor loop, runs the submitted tasks and the connections I/O
+	 */
+	private final class Reactor implements Runnable {
+		public void run() {
+			long nextCheck = 0;
+			while (true) {
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException ex) {
+						log.error("Unexpected error in control client task", ex);
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now >= nextCheck) {
+					checkTimeouts(now);
+					nextCheck = now + TIMEOUT_CHECK_PERIOD;
+				}
+				if (selector.keys().isEmpty() && pools.isEmpty()) {
+					synchronized (tasks) {
+						if (tasks.isEmpty()) {
+							reactor = null;
+							if (log.isDebugEnabled())
+								log.debug(THREAD_NAME + " stopped");
+							return;
+						}
+					}
+					continue;
+				}
+				try {
+					selector.select(Math.max(1, nextCheck - now));
+				} catch (IOException ex) {
+					log.error("Control client selector failure", ex);
+					continue;
+				}
+				for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+					SelectionKey key = i.next();
+					i.remove();
+					Connection conn = (Connection) key.attachment();
+					try {
+						if (key.isConnectable()) {
+							conn.finishConnect();
+						} else if (key.isWritable()) {
+							conn.write();
+						} else if (key.isReadable()) {
+							conn.read();
+						}
+					} catch (CancelledKeyException ex) {
+						// connection closed meanwhile
+					} catch (IOException ex) {
+						conn.fail(ex);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The connections to a device and the messages waiting for one of them, idle connections are reused last in first
+	 * out
+	 */
+	private final class HostPool {
+		private final String host;
+		private final int port;
+		private final Deque<Connection> idle = new ArrayDeque<Connection>();
+		private final Deque<Exchange> waiting = new ArrayDeque<Exchange>();
+		private int open = 0;
+
+		private HostPool(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		/**
+		 * Hands the waiting messages to the idle connections, opening new ones while allowed
+		 */
+		private void dispatch() {
+			Exchange exchange;
+			while ((exchange = waiting.peekFirst()) != null) {
+				if (exchange.future.isDone()) {
+					waiting.pollFirst();
+					continue;
+				}
+				Connection conn = idle.pollLast();
+				if (conn != null) {
+					waiting.pollFirst();
+					conn.start(exchange, true);
+				} else if (open < maxConnectionsPerHost) {
+					waiting.pollFirst();
+					conn = new Connection(this);
+					try {
+						conn.connect();
+					} catch (IOException ex) {
+						conn.close();
+						exchange.future.completeExceptionally(ex);
+						continue;
+					}
+					conn.start(exchange, false);
+				} else {
+					break;
+				}
+			}
+		}
+
+		private void evict(long timeout) {
+			long now = System.currentTimeMillis();
+			for (Iterator<Connection> i = idle.iterator(); i.hasNext();) {
+				Connection conn = i.next();
+				if (now - conn.lastUse >= timeout) {
+					i.remove();
+					conn.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A message waiting for its response
+	 */
+	private final static class Exchange {
+		private final String host;
+		private final int port;
+		private final ByteBuffer[] request;
+		private final CompletableFuture<Response> future;
+		private long deadline;
+		private boolean retried = false;
+
+		private Exchange(String host, int port, ByteBuffer[] request, CompletableFuture<Response> future) {
+			this.host = host;
+			this.port = port;
+			this.request = request;
+			this.future = future;
+		}
+	}
+
+	private final class Connection {
+		private final HostPool pool;
+		private SocketChannel channel;
+		private SelectionKey key;
+		private boolean connected = false;
+		private boolean closed = false;
+		private long lastUse;
+		private long deadline;
+
+		private Exchange exchange;
+		private boolean reused;
+		private ByteBuffer[] out;
+		private byte[] in = new byte[4096];
+		private int count;
+		private int scanned;
+		private boolean responseStarted;
+		private long sent;
+
+		private int headerEnd;
+		private int code;
+		private String contentType;
+		private long contentLength;
+		private boolean chunked;
+		private boolean keepAlive;
+
+		private Connection(HostPool pool) {
+			this.pool = pool;
+			pool.open++;
+		}
+
+		private void connect() throws IOException {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+			connected = channel.connect(new InetSocketAddress(pool.host, pool.port));
+			key = channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+			if (connected && log.isDebugEnabled())
+				log.debug("Opened control connection to " + pool.host + ":" + pool.port);
+		}
+
+		private void finishConnect() throws IOException {
+			if (channel.finishConnect()) {
+				connected = true;
+				if (log.isDebugEnabled())
+					log.debug("Opened control connection to " + pool.host + ":" + pool.port);
+				deadline = readTimeout == 0 ? 0 : System.currentTimeMillis() + readTimeout;
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void start(Exchange exchange, boolean reused) {
+			this.exchange = exchange;
+			this.reused = reused;
+			out = new ByteBuffer[exchange.request.length];
+			for (int i = 0; i < out.length; i++) {
+				out[i] = exchange.request[i].duplicate();
+			}
+			count = 0;
+			scanned = 0;
+			responseStarted = false;
+			headerEnd = -1;
+			if (connected) {
+				deadline = readTimeout == 0 ? 0 : System.currentTimeMillis() + readTimeout;
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else {
+				deadline = connectTimeout == 0 ? 0 : System.currentTimeMillis() + connectTimeout;
+			}
+		}
+
+		private void write() throws IOException {
+			channel.write(out);
+			for (int i = 0; i < out.length; i++) {
+				if (out[i].hasRemaining()) {
+					return;
+				}
+			}
+			out = null;
+			sent = System.currentTimeMillis();
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		private void read() throws IOException {
+			if (exchange == null) {
+				// idle connection closed by the device, or unexpected data
+				pool.idle.remove(this);
+				close();
+				return;
+			}
+			readBuffer.clear();
+			int readen = channel.read(readBuffer);
+			boolean eof = readen == -1;
+			if (readen > 0) {
+				int max = DocumentFetcher.getInstance().getMaxDocumentSize() + MAX_HEADER_SIZE;
+				if (count + readen > max) {
+					throw new IOException("Response larger than " + max + " bytes");
+				}
+				if (count + readen > in.length) {
+					in = Arrays.copyOf(in, Math.min(max, Math.max(in.length * 2, count + readen)));
+				}
+				readBuffer.flip();
+				readBuffer.get(in, count, readen);
+				count += readen;
+				responseStarted = true;
+				if (readTimeout != 0) {
+					deadline = System.currentTimeMillis() + readTimeout;
+				}
+			}
+			Response response = parse(eof);
+			if (response != null) {
+				Exchange done = exchange;
+				exchange = null;
+				if (response.keepAlive && !eof) {
+					lastUse = System.currentTimeMillis();
+					deadline = 0;
+					in = count > 4096 ? new byte[4096] : in;
+					pool.idle.addLast(this);
+				} else {
+					close();
+				}
+				done.future.complete(response);
+				pool.dispatch();
+			} else if (eof) {
+				throw new EOFException("Connection closed by the device");
+			}
+		}
+
+		/**
+		 * Parses the bytes received so far
+		 *
+		 * @param eof
+		 *            true if the device closed the connection
+		 * @return the response or null if incomplete
+		 * @throws IOException
+		 *             if the response is invalid
+		 */
+		private Response parse(boolean eof) throws IOException {
+			while (headerEnd == -1) {
+				int end = findHeaderEnd();
+				if (end == -1) {
+					if (count > MAX_HEADER_SIZE) {
+						throw new IOException("HTTP header too long");
+					}
+					return null;
+				}
+				parseHeader(end);
+				if (code / 100 == 1) {
+					// interim response, skipped
+					System.arraycopy(in, end, in, 0, count - end);
+					count -= end;
+					scanned = 0;
+					continue;
+				}
+				headerEnd = end;
+			}
+			int max = DocumentFetcher.getInstance().getMaxDocumentSize();
+			byte[] body;
+			if (chunked) {
+				body = decodeChunked(max);
+			} else if (contentLength >= 0) {
+				if (contentLength > max) {
+					throw new IOException("Response too large (" + contentLength + " bytes)");
+				}
+				body = count - headerEnd >= contentLength ? Arrays.copyOfRange(in, headerEnd, headerEnd + (int) contentLength) : null;
+			} else {
+				// body delimited by the connection end
+				keepAlive = false;
+				if (count - headerEnd > max) {
+					throw new IOException("Response larger than " + max + " bytes");
+				}
+				body = eof ? Arrays.copyOfRange(in, headerEnd, count) : null;
+			}
+			return body == null ? null : new Response(code, contentType, body, keepAlive);
+		}
+
+		private int findHeaderEnd() {
+			for (int i = Math.max(1, scanned); i < count; i++) {
+				if (in[i] == '\n' && (in[i - 1] == '\n' || (i > 1 && in[i - 1] == '\r' && in[i - 2] == '\n'))) {
+					return i + 1;
+				}
+			}
+			scanned = count;
+			return -1;
+		}
+
+		private void parseHeader(int end) throws IOException {
+			String[] lines = new String(in, 0, end, StandardCharsets.ISO_8859_1).split("\r?\n");
+			String statusLine = lines[0];
+			int start = statusLine.indexOf(' ');
+			if (!statusLine.startsWith("HTTP/") || start == -1) {
+				throw new IOException("Invalid HTTP status line " + statusLine);
+			}
+			int codeEnd = statusLine.indexOf(' ', start + 1);
+			try {
+				code = Integer.parseInt(statusLine.substring(start + 1, codeEnd == -1 ? statusLine.length() : codeEnd));
+			} catch (NumberFormatException ex) {
+				throw new IOException("Invalid HTTP status line " + statusLine);
+			}
+			keepAlive = !statusLine.startsWith("HTTP/1.0");
+			chunked = false;
+			contentLength = -1;
+			contentType = null;
+			for (int i = 1; i < lines.length; i++) {
+				String line = lines[i];
+				if (line.length() == 0) {
+					break;
+				}
+				int colon = line.indexOf(':');
+				if (colon == -1) {
+					throw new IOException("Invalid HTTP header " + line);
+				}
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					try {
+						contentLength = Long.parseLong(value);
+					} catch (NumberFormatException ex) {
+						throw new IOException("Invalid Content-Length " + value);
+					}
+				} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+					chunked = value.toLowerCase().indexOf("chunked") != -1;
+				} else if (name.equalsIgnoreCase("Connection")) {
+					if (value.equalsIgnoreCase("close")) {
+						keepAlive = false;
+					} else if (value.equalsIgnoreCase("keep-alive")) {
+						keepAlive = true;
+					}
+				} else if (name.equalsIgnoreCase("Content-Type")) {
+					contentType = value;
+				}
+			}
+		}
+
+		/**
+		 * Decodes a chunked body
+		 *
+		 * @param max
+		 *            the maximum body size
+		 * @return the body or null if not entirely received
+		 * @throws IOException
+		 *             if the body is invalid or too large
+		 */
+		private byte[] decodeChunked(int max) throws IOException {
+			ByteArrayOutputStream rtrVal = new ByteArrayOutputStream(1024);
+			int pos = headerEnd;
+			while (true) {
+				int lineEnd = indexOf('\n', pos);
+				if (lineEnd == -1) {
+					return null;
+				}
+				String line = new String(in, pos, lineEnd - pos, StandardCharsets.ISO_8859_1).trim();
+				pos = lineEnd + 1;
+				int ext = line.indexOf(';');
+				int size;
+				try {
+					size = Integer.parseInt((ext == -1 ? line : line.substring(0, ext)).trim(), 16);
+				} catch (NumberFormatException ex) {
+					throw new IOException("Invalid chunk size " + line);
+				}
+				if (size == 0) {
+					// trailers
+					while (true) {
+						lineEnd = indexOf('\n', pos);
+						if (lineEnd == -1) {
+							return null;
+						}
+						boolean empty = lineEnd == pos || (lineEnd == pos + 1 && in[pos] == '\r');
+						pos = lineEnd + 1;
+						if (empty) {
+							return rtrVal.toByteArray();
+						}
+					}
+				}
+				if (rtrVal.size() + size > max) {
+					throw new IOException("Response larger than " + max + " bytes");
+				}
+				if (count < pos + size) {
+					return null;
+				}
+				rtrVal.write(in, pos, size);
+				lineEnd = indexOf('\n', pos + size);
+				if (lineEnd == -1) {
+					return null;
+				}
+				pos = lineEnd + 1;
+			}
+		}
+
+		private int indexOf(int b, int from) {
+			for (int i = from; i < count; i++) {
+				if (in[i] == b) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private void fail(IOException ex) {
+			Exchange failed = exchange;
+			exchange = null;
+			close();
+			if (failed != null) {
+				if (!failed.retried && isStale(ex)) {
+					// the device closed the idle connection before receiving the message, probably all the others too
+					if (log.isDebugEnabled())
+						log.debug("Stale connection to " + pool.host + ":" + pool.port + ", sending the message again: " + ex.getMessage());
+					failed.retried = true;
+					pool.evict(0);
+					pool.waiting.addFirst(failed);
+				} else {
+					failed.future.completeExceptionally(ex);
+				}
+			}
+			pool.dispatch();
+		}
+
+		/**
+		 * Tells if a failure is a reused connection closed by the device before it received the message, the message can
+		 * then be sent again. A device that received the message may be processing it, so timeouts and failures coming
+		 * late after the message was sent are never retried.
+		 *
+		 * @param ex
+		 *            the failure
+		 * @return true if the message can be sent again
+		 */
+		private boolean isStale(IOException ex) {
+			if (!reused || responseStarted || ex instanceof SocketTimeoutException) {
+				return false;
+			}
+			// end of stream or connection reset while writing the message or right after
+			return out != null || System.currentTimeMillis() - sent < STALE_CLOSE_DELAY;
+		}
+
+		private void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			pool.open--;
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ex) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * A device response
+	 */
+	final static class Response {
+		private final int code;
+		private final String contentType;
+		private final byte[] body;
+		private final boolean keepAlive;
+
+		private Response(int code, String contentType, byte[] body, boolean keepAlive) {
+			this.code = code;
+			this.contentType = contentType;
+			this.body = body;
+			this.keepAlive = keepAlive;
+		}
+
+		int getCode() {
+			return code;
+		}
+
+		String getContentType() {
+			return contentType;
+		}
+
+		byte[] getBody() {
+			return body;
+		}
+
+		/**
+		 * The body as a parser input, read in place through the 0x0 bytes filter and decoded with the Content-Type
+		 * charset, the leading blanks are skipped
+		 *
+		 * @return the parser input
+		 */
+		InputSource getInputSource() {
+			int off = 0;
+			while (off < body.length && (body[off] == ' ' || body[off] == '\t' || body[off] == '\r' || body[off] == '\n' || body[off] == 0)) {
+				off++;
+			}
+			InputSource rtrVal = new InputSource(new ZeroByteFilterInputStream(new ByteArrayInputStream(body, off, body.length - off)));
+			rtrVal.setEncoding(IOUtils.getCharset(contentType));
+			return rtrVal;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp.messages;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import net.sbbi.upnp.IOUtils;
+import net.sbbi.upnp.services.ServiceAction;
+import net.sbbi.upnp.services.ServiceActionArgument;
+import net.sbbi.upnp.services.UPNPService;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reusable message for an UPNP action invoked repeatedly. The HTTP header and the SOAP envelope around the input
+ * parameters values are built once, the values are bound by index ( the input parameters order of the service
+ * description ) and kept encoded between the calls, so invoking the action again only builds the content length
+ * header. The request is written to the connection directly from those parts. The values are XML escaped, the
+ * parameters never set are sent empty.
+ * <br/>
+ * A PreparedAction is not thread safe, the parameters of a call are captured when service() or serviceAsync() is
+ * called and can be changed as soon as it returns.
+ *
+ * @version 1.0
+ */
+
+public class PreparedAction {
+	private final static Logger log = Logger.getLogger(PreparedAction.class);
+
+	private final static byte[] EMPTY = new byte[0];
+
+	private final ServiceAction serviceAction;
+	private final URL controlURL;
+	private final List<String> inputParameterNames;
+	private final byte[] header;
+	private final byte[][] bodyParts;
+	private final byte[][] values;
+	private final int partsLength;
+	private final byte[] request;
+
+	/**
+	 * Protected constuctor so that only messages factories can build it
+	 *
+	 * @param service
+	 *            the service of the action
+	 * @param serviceAction
+	 *            the action
+	 */
+	protected PreparedAction(UPNPService service, ServiceAction serviceAction) {
+		this.serviceAction = serviceAction;
+		controlURL = service.getControlURL();
+		header = ControlClient.getRequestHeader(controlURL, "\"" + service.getServiceType() + "#" + serviceAction.getName() + "\"");
+
+		List<ServiceActionArgument> args = serviceAction.getInputActionArguments();
+		List<String> names = new ArrayList<String>();
+		if (args != null) {
+			for (int i = 0; i < args.size(); i++) {
+				names.add(args.get(i).getName());
+			}
+		}
+		inputParameterNames = Collections.unmodifiableList(names);
+		values = new byte[names.size()][];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = EMPTY;
+		}
+
+		// the envelope parts between the parameters values
+		bodyParts = new byte[names.size() + 1][];
+		StringBuilder part = new StringBuilder(256);
+		part.append("<?xml version=\"1.0\"?>\r\n");
+		part.append("<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"");
+		part.append(" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">");
+		part.append("<s:Body>");
+		part.append("<u:").append(serviceAction.getName()).append(" xmlns:u=\"").append(service.getServiceType()).append("\">");
+		for (int i = 0; i < names.size(); i++) {
+			if (i > 0) {
+				part.append("</").append(names.get(i - 1)).append(">");
+			}
+			part.append("<").append(names.get(i)).append(">");
+			bodyParts[i] = part.toString().getBytes(StandardCharsets.UTF_8);
+			part.setLength(0);
+		}
+		if (names.size() > 0) {
+			part.append("</").append(names.get(names.size() - 1)).append(">");
+		}
+		part.append("</u:").append(serviceAction.getName()).append(">");
+		part.append("</s:Body>");
+		part.append("</s:Envelope>");
+		bodyParts[names.size()] = part.toString().getBytes(StandardCharsets.UTF_8);
+		int length = 0;
+		for (int i = 0; i < bodyParts.length; i++) {
+			length += bodyParts[i].length;
+		}
+		partsLength = length;
+
+		if (names.size() == 0) {
+			// nothing to bind, the whole request is static
+			byte[] contentLength = ControlClient.getContentLengthHeader(partsLength);
+			request = new byte[header.length + contentLength.length + partsLength];
+			System.arraycopy(header, 0, request, 0, header.length);
+			System.arraycopy(contentLength, 0, request, header.length, contentLength.length);
+			System.arraycopy(bodyParts[0], 0, request, header.length + contentLength.length, partsLength);
+		} else {
+			request = null;
+		}
+	}
+
+	/**
+	 * The input parameters names, in the order expected by the setInputParameter() methods indexes
+	 *
+	 * @return the input parameters names, empty if the action has no input parameter
+	 */
+	public List<String> getInputParameterNames() {
+		return inputParameterNames;
+	}
+
+	/**
+	 * The list of output parameters that should be returned by the device service
+	 *
+	 * @return a list of output parameters names or null if the action has no output parameter
+	 */
+	public List<String> getOutputParameterNames() {
+		return serviceAction.getOutputActionArgumentsNames();
+	}
+
+	/**
+	 * Finds the index of an input parameter
+	 *
+	 * @param parameterName
+	 *            the parameter name
+	 * @return the parameter index
+	 * @throws IllegalArgumentException
+	 *             if the provided parameterName is not an input parameter of this action
+	 */
+	public int getInputParameterIndex(String parameterName) throws IllegalArgumentException {
+		int rtrVal = inputParameterNames.indexOf(parameterName);
+		if (rtrVal == -1)
+			throw new IllegalArgumentException("Wrong input argument name for this action:" + parameterName + " available parameters are : " + inputParameterNames);
+		return rtrVal;
+	}
+
+	/**
+	 * Resets all the input parameters values to empty values
+	 */
+	public void clearInputParameters() {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = EMPTY;
+		}
+	}
+
+	/**
+	 * Set the value of an input parameter before a message service call
+	 *
+	 * @param index
+	 *            the parameter index
+	 * @param parameterValue
+	 *            the string parameter value, null for an empty value
+	 * @return the current PreparedAction object instance
+	 * @throws IllegalArgumentException
+	 *             if the provided index is not valid for this action
+	 */
+	public PreparedAction setInputParameter(int index, String parameterValue) throws IllegalArgumentException {
+		if (index < 0 || index >= values.length)
+			throw new IllegalArgumentException("Wrong input argument index for this action:" + index + " available parameters are : " + inputParameterNames);
+		values[index] = parameterValue == null || parameterValue.length() == 0 ? EMPTY : IOUtils.escapeXML(parameterValue).getBytes(StandardCharsets.UTF_8);
+		return this;
+	}
+
+	/**
+	 * Set the value of an input parameter before a message service call
+	 *
+	 * @param index
+	 *            the parameter index
+	 * @param parameterValue
+	 *            the boolean parameter value
+	 * @return the current PreparedAction object instance
+	 * @throws IllegalArgumentException
+	 *             if the provided index is not valid for this action
+	 */
+	public PreparedAction setInputParameter(int index, boolean parameterValue) throws IllegalArgumentException {
+		return setInputParameter(index, parameterValue ? "1" : "0");
+	}
+
+	/**
+	 * Set the value of an input parameter before a message service call
+	 *
+	 * @param index
+	 *            the parameter index
+	 * @param parameterValue
+	 *            the integer parameter value
+	 * @return the current PreparedAction object instance
+	 * @throws IllegalArgumentException
+	 *             if the provided index is not valid for this action
+	 */
+	public PreparedAction setInputParameter(int index, int parameterValue) throws IllegalArgumentException {
+		return setInputParameter(index, Integer.toString(parameterValue));
+	}
+
+	/**
+	 * Set the value of an input parameter before a message service call
+	 *
+	 * @param index
+	 *            the parameter index
+	 * @param parameterValue
+	 *            the long parameter value
+	 * @return the current PreparedAction object instance
+	 * @throws IllegalArgumentException
+	 *             if the provided index is not valid for this action
+	 */
+	public PreparedAction setInputParameter(int index, long parameterValue) throws IllegalArgumentException {
+		return setInputParameter(index, Long.toString(parameterValue));
+	}
+
+	/**
+	 * Executes the action with the current input parameters values and retuns the UPNP device response, according to
+	 * the UPNP specs, this method could take up to 30 secs to process ( time allowed for a device to respond to a
+	 * request )
+	 *
+	 * @return a response object containing the UPNP parsed response
+	 * @throws IOException
+	 *             if some IOException occurs during message send and reception process
+	 * @throws UPNPResponseException
+	 *             if an UPNP error message is returned from the server or if some parsing exception occurs (
+	 *             detailErrorCode = 899, detailErrorDescription = SAXException message )
+	 */
+	public ActionResponse service() throws IOException, UPNPResponseException {
+		return ActionMessage.parseResponse(serviceAction, ControlClient.getInstance().post(controlURL, getRequest()));
+	}
+
+	/**
+	 * Executes the action with the current input parameters values without blocking the calling thread
+	 *
+	 * @return a future completed with the response object containing the UPNP parsed response, or exceptionally with
+	 *         the IOException or UPNPResponseException that service() would have thrown
+	 */
+	public CompletableFuture<ActionResponse> serviceAsync() {
+		ControlClient client = ControlClient.getInstance();
+		return client.postAsync(controlURL, getRequest()).thenApplyAsync(new Function<ControlClient.Response, ActionResponse>() {
+			public ActionResponse apply(ControlClient.Response response) {
+				try {
+					return ActionMessage.parseResponse(serviceAction, response);
+				} catch (IOException ex) {
+					throw new CompletionException(ex);
+				} catch (UPNPResponseException ex) {
+					throw new CompletionException(ex);
+				}
+			}
+		}, client.getExecutor());
+	}
+
+	private ByteBuffer[] getRequest() {
+		if (log.isDebugEnabled()) {
+			StringBuilder body = new StringBuilder(partsLength + 64);
+			for (int i = 0; i < values.length; i++) {
+				body.append(new String(bodyParts[i], StandardCharsets.UTF_8)).append(new String(values[i], StandardCharsets.UTF_8));
+			}
+			body.append(new String(bodyParts[values.length], StandardCharsets.UTF_8));
+			log.debug("POST prepared for URL " + controlURL);
+			log.debug("executing query :\n" + body);
+		}
+		if (request != null) {
+			return new ByteBuffer[] { ByteBuffer.wrap(request) };
+		}
+		ByteBuffer[] rtrVal = new ByteBuffer[values.length * 2 + 3];
+		int length = partsLength;
+		rtrVal[0] = ByteBuffer.wrap(header);
+		for (int i = 0; i < values.length; i++) {
+			rtrVal[i * 2 + 2] = ByteBuffer.wrap(bodyParts[i]);
+			rtrVal[i * 2 + 3] = ByteBuffer.wrap(values[i]);
+			length += values[i].length;
+		}
+		rtrVal[values.length * 2 + 2] = ByteBuffer.wrap(bodyParts[values.length]);
+		rtrVal[1] = ByteBuffer.wrap(ControlClient.getContentLengthHeader(length));
+		return rtrVal;
+	}
+}
@@ -11,22 +11,20 @@
 
 package net.sbbi.upnp.messages;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.StringReader;
 import java.net.HttpURLConnection;
-import java.net.URL;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
+import net.sbbi.upnp.IOUtils;
+import net.sbbi.upnp.ParserPool;
 import net.sbbi.upnp.services.ServiceStateVariable;
 import net.sbbi.upnp.services.UPNPService;
 
 import org.apache.log4j.Logger;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
@@ -39,6 +37,8 @@ import org.xml.sax.SAXException;
 public class StateVariableMessage {
 	private final static Logger log = Logger.getLogger(StateVariableMessage.class);
 
+	private final static String SOAP_ACTION = "\"urn:schemas-upnp-org:control-1-0#QueryStateVariable\"";
+
 	private final UPNPService service;
 	private final ServiceStateVariable serviceStateVar;
 
@@ -59,9 +59,32 @@ public class StateVariableMessage {
 	 *             detailErrorCode = 899, detailErrorDescription = SAXException message )
 	 */
 	public StateVariableResponse service() throws IOException, UPNPResponseException {
-		StateVariableResponse rtrVal = null;
-		UPNPResponseException upnpEx = null;
-		IOException ioEx = null;
+		return parseResponse(ControlClient.getInstance().post(service.getControlURL(), SOAP_ACTION, getRequestBody()));
+	}
+
+	/**
+	 * Executes the state variable query without blocking the calling thread, the returned future is completed once the
+	 * UPNP device response has been received and parsed
+	 * 
+	 * @return a future completed with the state variable response object containing the variable value, or
+	 *         exceptionally with the IOException or UPNPResponseException that service() would have thrown
+	 */
+	public CompletableFuture<StateVariableResponse> serviceAsync() {
+		ControlClient client = ControlClient.getInstance();
+		return client.postAsync(service.getControlURL(), SOAP_ACTION, getRequestBody()).thenApplyAsync(new Function<ControlClient.Response, StateVariableResponse>() {
+			public StateVariableResponse apply(ControlClient.Response response) {
+				try {
+					return parseResponse(response);
+				} catch (IOException ex) {
+					throw new CompletionException(ex);
+				} catch (UPNPResponseException ex) {
+					throw new CompletionException(ex);
+				}
+			}
+		}, client.getExecutor());
+	}
+
+	private byte[] getRequestBody() {
 		StringBuffer body = new StringBuffer(256);
 
 		body.append("<?xml version=\"1.0\"?>\r\n");
@@ -74,81 +97,35 @@ public class StateVariableMessage {
 		body.append("</s:Body>");
 		body.append("</s:Envelope>");
 
-		if (log.isDebugEnabled())
+		if (log.isDebugEnabled()) {
 			log.debug("POST prepared for URL " + service.getControlURL());
-		URL url = new URL(service.getControlURL().toString());
-		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-		conn.setDoInput(true);
-		conn.setDoOutput(true);
-		conn.setUseCaches(false);
-		conn.setRequestMethod("POST");
-		HttpURLConnection.setFollowRedirects(false);
-		//conn.setConnectTimeout( 30000 );
-		conn.setRequestProperty("HOST", url.getHost() + ":" + url.getPort());
-		conn.setRequestProperty("SOAPACTION", "\"urn:schemas-upnp-org:control-1-0#QueryStateVariable\"");
-		conn.setRequestProperty("CONTENT-TYPE", "text/xml; charset=\"utf-8\"");
-		conn.setRequestProperty("CONTENT-LENGTH", Integer.toString(body.length()));
-		OutputStream out = conn.getOutputStream();
-		out.write(body.toString().getBytes());
-		out.flush();
-		conn.connect();
-		InputStream input = null;
+			log.debug("executing query :\n" + body);
+		}
+		return body.toString().getBytes(StandardCharsets.UTF_8);
+	}
 
+	private StateVariableResponse parseResponse(ControlClient.Response response) throws IOException, UPNPResponseException {
+		StateVariableResponse rtrVal = null;
+		UPNPResponseException upnpEx = null;
+		IOException ioEx = null;
 		if (log.isDebugEnabled())
-			log.debug("executing query :\n" + body);
+			log.debug("received response :\n" + IOUtils.readDocument(new ByteArrayInputStream(response.getBody()), IOUtils.getCharset(response.getContentType())).trim());
+		StateVariableResponseParser msgParser = new StateVariableResponseParser(serviceStateVar);
 		try {
-			input = conn.getInputStream();
-		} catch (IOException ex) {
-			// java can throw an exception if he error code is 500 or 404 or something else than 200
-			// but the device sends 500 error message with content that is required
-			// this content is accessible with the getErrorStream
-			input = conn.getErrorStream();
+			ParserPool.parse(response.getInputSource(), msgParser);
+		} catch (SAXException saxEx) {
+			// kind of tricky but better than nothing..
+			upnpEx = new UPNPResponseException(899, saxEx.getMessage());
 		}
-
-		if (input != null) {
-			int response = conn.getResponseCode();
-			String responseBody = getResponseBody(input);
-			if (log.isDebugEnabled())
-				log.debug("received response :\n" + responseBody);
-			SAXParserFactory saxParFact = SAXParserFactory.newInstance();
-			saxParFact.setValidating(false);
-			saxParFact.setNamespaceAware(true);
-			StateVariableResponseParser msgParser = new StateVariableResponseParser(serviceStateVar);
-			StringReader stringReader = new StringReader(responseBody);
-			InputSource src = new InputSource(stringReader);
-			try {
-				SAXParser parser = saxParFact.newSAXParser();
-				parser.parse(src, msgParser);
-			} catch (ParserConfigurationException confEx) {
-				// should never happen
-				// we throw a runtimeException to notify the env problem
-				throw new RuntimeException("ParserConfigurationException during SAX parser creation, please check your env settings:" + confEx.getMessage());
-			} catch (SAXException saxEx) {
-				// kind of tricky but better than nothing..
-				upnpEx = new UPNPResponseException(899, saxEx.getMessage());
-			} finally {
-				try {
-					input.close();
-				} catch (IOException ex) {
-					// ignoring
-				}
-			}
-			if (upnpEx == null) {
-				if (response == HttpURLConnection.HTTP_OK) {
-					rtrVal = msgParser.getStateVariableResponse();
-				} else if (response == HttpURLConnection.HTTP_INTERNAL_ERROR) {
-					upnpEx = msgParser.getUPNPResponseException();
-				} else {
-					ioEx = new IOException("Unexpected server HTTP response:" + response);
-				}
+		if (upnpEx == null) {
+			if (response.getCode() == HttpURLConnection.HTTP_OK) {
+				rtrVal = msgParser.getStateVariableResponse();
+			} else if (response.getCode() == HttpURLConnection.HTTP_INTERNAL_ERROR) {
+				upnpEx = msgParser.getUPNPResponseException();
+			} else {
+				ioEx = new IOException("Unexpected server HTTP response:" + response.getCode());
 			}
 		}
-		try {
-			out.close();
-		} catch (IOException ex) {
-			// ignore
-		}
-		conn.disconnect();
 		if (upnpEx != null) {
 			throw upnpEx;
 		}
@@ -160,21 +137,4 @@ public class StateVariableMessage {
 		}
 		return rtrVal;
 	}
-
-	private String getResponseBody(InputStream in) throws IOException {
-		byte[] buffer = new byte[256];
-		int readen = 0;
-		StringBuffer content = new StringBuffer(256);
-		while ((readen = in.read(buffer)) != -1) {
-			content.append(new String(buffer, 0, readen));
-		}
-		// some devices add \0 chars at XML message end
-		// which causes XML parsing errors...
-		int len = content.length();
-		while (content.charAt(len - 1) == '\0') {
-			len--;
-			content.setLength(len);
-		}
-		return content.toString().trim();
-	}
 }
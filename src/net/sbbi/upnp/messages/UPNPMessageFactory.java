@@ -62,6 +62,22 @@ public class UPNPMessageFactory {
 		return null;
 	}
 
+	/**
+	 * Creation of a new PreparedAction, to invoke repeatedly an action of the UPNP device
+	 *
+	 * @param serviceActionName
+	 *            the name of a service action, this name is case sensitive and matches exactly the name provided by the
+	 *            UPNP device in the XML definition file
+	 * @return a PreparedAction object or null if the action is unknown for this service messages factory
+	 */
+	public PreparedAction getPreparedAction(String serviceActionName) {
+		ServiceAction serviceAction = service.getUPNPServiceAction(serviceActionName);
+		if (serviceAction != null) {
+			return new PreparedAction(service, serviceAction);
+		}
+		return null;
+	}
+
 	/**
 	 * Creation of a new StateVariableMessage to communicate with the UPNP device, for a service state variable query
 	 * 
@@ -11,6 +11,7 @@
 
 package net.sbbi.upnp.samples;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -44,8 +45,9 @@ public class IGDAccessSample {
 				UPNPRootDevice rootDevice = rootDevices[0];
 				System.out.println("Plugged to device " + rootDevice.getDeviceType() + ", manufactured by " + rootDevice.getManufacturer() + " model " + rootDevice.getModelName());
 				// let's list all the available devices first
-				List<UPNPDevice> devices = rootDevice.getChildDevices();
-				if (devices != null) {
+				List<UPNPDevice> childDevices = rootDevice.getChildDevices();
+				if (childDevices != null) {
+					List<UPNPDevice> devices = new ArrayList<UPNPDevice>(childDevices);
 					devices.add(rootDevice);
 					for (Iterator<UPNPDevice> i = devices.iterator(); i.hasNext();) {
 						UPNPDevice device = i.next();
@@ -0,0 +1,358 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import net.sbbi.upnp.DocumentFetcher;
+import net.sbbi.upnp.IOUtils;
+import net.sbbi.upnp.devices.UPNPDevice;
+import net.sbbi.upnp.devices.UPNPRootDevice;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process wide cache of the parsed SCPD documents, shared by the services of identical devices. The parsed documents
+ * are keyed by the SHA-1 hash of their content, so the services of fetched SCPD documents only share a document when
+ * their devices served the same bytes. A service reuses the document already parsed for another service without
+ * fetching it when both devices have the same manufacturer, model name, model number and announced firmware, and the
+ * services the same type and SCPD path. Only one fetch is made when several of those services are initialized at the
+ * same time.
+ * <br/>
+ * The first reuse of a document for such a model is checked in the background by fetching the reusing service SCPD
+ * and comparing its hash. When the documents differ the model services stop sharing documents, fetch their own SCPD
+ * and the services which reused the document meanwhile load their own on their next call.
+ * <br/>
+ * Each service gets its own ServiceAction, ServiceActionArgument and ServiceStateVariable objects, bound to it through
+ * their parent field, the names and allowed values sets are shared. The cache size can be set with the
+ * net.sbbi.upnp.services.SCPDCache.maxSize system property, 0 disables the cache.
+ *
+ * @version 1.0
+ */
+
+final class SCPDCache {
+	private final static Logger log = Logger.getLogger(SCPDCache.class);
+
+	final static int DEFAULT_MAX_SIZE = 64;
+
+	private final static SCPDCache singleton = new SCPDCache();
+
+	private int maxSize = DEFAULT_MAX_SIZE;
+
+	private final Map<String, Template> templates = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	private final Map<String, Hint> hints = new LinkedHashMap<String, Hint>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Hint> eldest) {
+			return size() > maxSize * 4;
+		}
+	};
+
+	private final Map<String, FutureTask<Template>> loading = new HashMap<String, FutureTask<Template>>();
+
+	private SCPDCache() {
+		String prop = System.getProperty("net.sbbi.upnp.services.SCPDCache.maxSize");
+		if (prop != null)
+			maxSize = Integer.parseInt(prop);
+	}
+
+	final static SCPDCache getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Retrieves the parsed SCPD document of a service, fetching and parsing it if needed
+	 *
+	 * @param service
+	 *            the service
+	 * @return the parsed document, to be bound to the service with the Template copy methods
+	 * @throws IOException
+	 *             if the document cannot be fetched or parsed
+	 */
+	Template get(final UPNPService service) throws IOException {
+		final String hint = getHint(service);
+		final String key;
+		FutureTask<Template> task;
+		boolean owner = false;
+		synchronized (this) {
+			Hint known = hints.get(hint);
+			if (known != null && known.shared) {
+				Template template = templates.get(known.hash);
+				if (template != null) {
+					if (log.isDebugEnabled())
+						log.debug("Reusing SCPD " + known.hash + " for " + service.getSCPDURL());
+					if (!known.verified) {
+						known.reusers.add(service);
+						if (!known.verifying) {
+							known.verifying = true;
+							verify(service, hint, known);
+						}
+					}
+					return template;
+				}
+			}
+			// the services of a model with different documents only share the fetches of a same location
+			key = known != null && !known.shared ? service.getSCPDURL().toExternalForm() : hint;
+			task = loading.get(key);
+			if (task == null) {
+				task = new FutureTask<Template>(new Callable<Template>() {
+					public Template call() throws Exception {
+						return load(service, hint);
+					}
+				});
+				loading.put(key, task);
+				owner = true;
+			}
+		}
+		if (owner) {
+			try {
+				task.run();
+			} finally {
+				synchronized (this) {
+					loading.remove(key);
+				}
+			}
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for SCPD " + service.getSCPDURL());
+		} catch (ExecutionException ex) {
+			if (!owner) {
+				// another device of the same model failed, this one may work
+				return load(service, hint);
+			}
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			IOException ioEx = new IOException("Unable to load SCPD " + service.getSCPDURL());
+			ioEx.initCause(cause);
+			throw ioEx;
+		}
+	}
+
+	/**
+	 * Removes all the cached documents
+	 */
+	synchronized void clear() {
+		templates.clear();
+		hints.clear();
+	}
+
+	private Template load(UPNPService service, String hint) throws IOException {
+		URL location = service.getSCPDURL();
+		byte[] data = DocumentFetcher.getInstance().fetch(location);
+		String hash = IOUtils.getHash(data);
+		synchronized (this) {
+			Template template = templates.get(hash);
+			if (template != null) {
+				if (log.isDebugEnabled())
+					log.debug("Reusing SCPD " + hash + " for " + location);
+				record(hint, hash);
+				return template;
+			}
+		}
+		ServiceDescriptionReader reader = new ServiceDescriptionReader(service.getServiceId());
+		reader.read(new ByteArrayInputStream(data));
+		Template template = new Template(reader);
+		synchronized (this) {
+			if (maxSize > 0) {
+				templates.put(hash, template);
+				record(hint, hash);
+			}
+		}
+		return template;
+	}
+
+	/**
+	 * Records the document loaded for a model service, a model whose services served different documents stops
+	 * sharing them
+	 */
+	private void record(String hint, String hash) {
+		Hint known = hints.get(hint);
+		if (known == null) {
+			hints.put(hint, new Hint(hash));
+		} else if (!known.hash.equals(hash)) {
+			known.shared = false;
+		}
+	}
+
+	/**
+	 * Checks in the background that a reused document matches the service SCPD
+	 */
+	private void verify(final UPNPService service, final String hint, final Hint known) {
+		SCPDPrefetcher.getInstance().prefetch(new Runnable() {
+			public void run() {
+				String hash;
+				try {
+					hash = IOUtils.getHash(DocumentFetcher.getInstance().fetch(service.getSCPDURL()));
+				} catch (IOException ex) {
+					if (log.isDebugEnabled())
+						log.debug("Unable to check reused SCPD " + known.hash + " against " + service.getSCPDURL() + ": " + ex.getMessage());
+					synchronized (SCPDCache.this) {
+						// the next reuse will check again
+						known.verifying = false;
+					}
+					return;
+				}
+				List<UPNPService> reusers;
+				synchronized (SCPDCache.this) {
+					known.verifying = false;
+					known.verified = true;
+					reusers = known.reusers;
+					known.reusers = Collections.emptyList();
+					if (hash.equals(known.hash)) {
+						return;
+					}
+					known.shared = false;
+				}
+				log.warn("SCPD at " + service.getSCPDURL() + " differs from the one of the same model services " + hint + ", the documents are no longer shared");
+				for (Iterator<UPNPService> i = reusers.iterator(); i.hasNext();) {
+					i.next().resetSCPD();
+				}
+			}
+		});
+	}
+
+	private static String getHint(UPNPService service) {
+		UPNPDevice owner = service.getServiceOwnerDevice();
+		UPNPRootDevice root = service.getRootDevice();
+		String firmware = root != null ? root.getVendorFirmware() : null;
+		return owner.getManufacturer() + '|' + owner.getModelName() + '|' + owner.getModelNumber() + '|' + firmware + '|' + service.getServiceType() + '|'
+				+ service.getSCPDURL().getPath();
+	}
+
+	/**
+	 * The document known for the services of a model
+	 */
+	private final static class Hint {
+		private final String hash;
+		private boolean shared = true;
+		private boolean verified = false;
+		private boolean verifying = false;
+		private List<UPNPService> reusers = new ArrayList<UPNPService>();
+
+		private Hint(String hash) {
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * A parsed SCPD document, its objects are never handed out to the services, only copied
+	 */
+	final static class Template {
+		final String specVersionMajor;
+		final String specVersionMinor;
+		private final Map<String, ServiceAction> actions;
+		private final Map<String, ServiceStateVariable> stateVariables;
+
+		private Template(ServiceDescriptionReader reader) {
+			specVersionMajor = reader.specVersionMajor;
+			specVersionMinor = reader.specVersionMinor;
+			actions = reader.actions;
+			stateVariables = reader.stateVariables;
+			for (Iterator<ServiceStateVariable> i = stateVariables.values().iterator(); i.hasNext();) {
+				ServiceStateVariable srvStateVar = i.next();
+				if (srvStateVar.allowedvalues != null) {
+					srvStateVar.allowedvalues = Collections.unmodifiableSet(srvStateVar.allowedvalues);
+				}
+			}
+		}
+
+		/**
+		 * Copies the state variables for a service
+		 *
+		 * @param service
+		 *            the service owning the copies
+		 * @return the state variables copies keyed by name
+		 */
+		Map<String, ServiceStateVariable> copyStateVariables(UPNPService service) {
+			Map<String, ServiceStateVariable> rtrVal = new HashMap<String, ServiceStateVariable>(stateVariables.size() * 4 / 3 + 1);
+			for (Iterator<ServiceStateVariable> i = stateVariables.values().iterator(); i.hasNext();) {
+				ServiceStateVariable srvStateVar = i.next();
+				ServiceStateVariable copy = new ServiceStateVariable();
+				copy.name = srvStateVar.name;
+				copy.sendEvents = srvStateVar.sendEvents;
+				copy.dataType = srvStateVar.dataType;
+				copy.defaultValue = srvStateVar.defaultValue;
+				copy.minimumRangeValue = srvStateVar.minimumRangeValue;
+				copy.maximumRangeValue = srvStateVar.maximumRangeValue;
+				copy.stepRangeValue = srvStateVar.stepRangeValue;
+				copy.allowedvalues = srvStateVar.allowedvalues;
+				copy.parent = service;
+				rtrVal.put(copy.name, copy);
+			}
+			return rtrVal;
+		}
+
+		/**
+		 * Copies the actions for a service
+		 *
+		 * @param service
+		 *            the service owning the copies
+		 * @param serviceStateVariables
+		 *            the service state variables copies, linked to the arguments copies
+		 * @return the actions copies keyed by name
+		 */
+		Map<String, ServiceAction> copyActions(UPNPService service, Map<String, ServiceStateVariable> serviceStateVariables) {
+			Map<String, ServiceAction> rtrVal = new HashMap<String, ServiceAction>(actions.size() * 4 / 3 + 1);
+			for (Iterator<ServiceAction> i = actions.values().iterator(); i.hasNext();) {
+				ServiceAction action = i.next();
+				ServiceAction copy = new ServiceAction();
+				copy.name = action.name;
+				copy.parent = service;
+				List<ServiceActionArgument> args = action.getActionArguments();
+				if (args != null) {
+					List<ServiceActionArgument> argsCopy = new ArrayList<ServiceActionArgument>(args.size());
+					for (Iterator<ServiceActionArgument> j = args.iterator(); j.hasNext();) {
+						ServiceActionArgument arg = j.next();
+						ServiceActionArgument argCopy = new ServiceActionArgument();
+						argCopy.name = arg.name;
+						argCopy.direction = arg.direction;
+						argCopy.relatedStateVariable = serviceStateVariables.get(arg.relatedStateVariable.name);
+						argsCopy.add(argCopy);
+					}
+					copy.setActionArguments(argsCopy);
+				}
+				rtrVal.put(copy.name, copy);
+			}
+			return rtrVal;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp.services;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of threads fetching and parsing the services SCPD documents in the background.
+ * <br/>
+ * The number of prefetching threads can be set with the net.sbbi.upnp.services.SCPDPrefetcher.threads system property.
+ *
+ * @version 1.0
+ */
+
+final class SCPDPrefetcher {
+	final static int DEFAULT_THREADS = 4;
+
+	private final static SCPDPrefetcher singleton = new SCPDPrefetcher();
+
+	private final ThreadPoolExecutor executor;
+
+	private SCPDPrefetcher() {
+		int threads = DEFAULT_THREADS;
+		String prop = System.getProperty("net.sbbi.upnp.services.SCPDPrefetcher.threads");
+		if (prop != null)
+			threads = Integer.parseInt(prop);
+		executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "SCPD prefetcher " + (++count));
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	final static SCPDPrefetcher getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Queues a SCPD fetch, a task already started by another thread simply returns when run by the pool
+	 *
+	 * @param task
+	 *            the service SCPD parsing task
+	 */
+	void prefetch(Runnable task) {
+		executor.execute(task);
+	}
+}
@@ -12,8 +12,11 @@
 package net.sbbi.upnp.services;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * An object to represent a service action proposed by an UPNP service
@@ -29,6 +32,9 @@ public class ServiceAction {
 	private List<ServiceActionArgument> orderedOutputActionArguments;
 	private List<String> orderedInputActionArgumentsNames;
 	private List<String> orderedOutputActionArgumentsNames;
+	private Map<String, ServiceActionArgument> actionArgumentsIndex;
+	private Map<String, ServiceActionArgument> inputActionArgumentsIndex;
+	private Map<String, ServiceActionArgument> outputActionArgumentsIndex;
 
 	protected ServiceAction() {
 	}
@@ -54,22 +60,27 @@ public class ServiceAction {
 	 * @return the argument or null if not found or not available
 	 */
 	public ServiceActionArgument getActionArgument(String argumentName) {
-		if (orderedActionArguments == null)
+		if (actionArgumentsIndex == null)
 			return null;
-		for (Iterator<ServiceActionArgument> i = orderedActionArguments.iterator(); i.hasNext();) {
-			ServiceActionArgument arg = i.next();
-			if (arg.getName().equals(argumentName))
-				return arg;
-		}
-		return null;
+		return actionArgumentsIndex.get(argumentName);
 	}
 
+	/**
+	 * Sets the action arguments, the lists returned by this object are unmodifiable views and the arguments are indexed
+	 * by name
+	 * 
+	 * @param orderedActionArguments
+	 *            the action arguments in the order defined by the service description
+	 */
 	protected void setActionArguments(List<ServiceActionArgument> orderedActionArguments) {
-		this.orderedActionArguments = orderedActionArguments;
+		this.orderedActionArguments = orderedActionArguments != null ? Collections.unmodifiableList(orderedActionArguments) : null;
 		orderedInputActionArguments = getListForActionArgument(orderedActionArguments, ServiceActionArgument.DIRECTION_IN);
 		orderedOutputActionArguments = getListForActionArgument(orderedActionArguments, ServiceActionArgument.DIRECTION_OUT);
 		orderedInputActionArgumentsNames = getListForActionArgumentNames(orderedActionArguments, ServiceActionArgument.DIRECTION_IN);
 		orderedOutputActionArgumentsNames = getListForActionArgumentNames(orderedActionArguments, ServiceActionArgument.DIRECTION_OUT);
+		actionArgumentsIndex = getIndex(orderedActionArguments);
+		inputActionArgumentsIndex = getIndex(orderedInputActionArguments);
+		outputActionArgumentsIndex = getIndex(orderedOutputActionArguments);
 	}
 
 	/**
@@ -90,14 +101,9 @@ public class ServiceAction {
 	 * @return the argument or null if not found or not available
 	 */
 	public ServiceActionArgument getInputActionArgument(String argumentName) {
-		if (orderedInputActionArguments == null)
+		if (inputActionArgumentsIndex == null)
 			return null;
-		for (Iterator<ServiceActionArgument> i = orderedInputActionArguments.iterator(); i.hasNext();) {
-			ServiceActionArgument arg = i.next();
-			if (arg.getName().equals(argumentName))
-				return arg;
-		}
-		return null;
+		return inputActionArgumentsIndex.get(argumentName);
 	}
 
 	/**
@@ -118,14 +124,9 @@ public class ServiceAction {
 	 * @return the argument or null if not found or not available
 	 */
 	public ServiceActionArgument getOutputActionArgument(String argumentName) {
-		if (orderedOutputActionArguments == null)
+		if (outputActionArgumentsIndex == null)
 			return null;
-		for (Iterator<ServiceActionArgument> i = orderedOutputActionArguments.iterator(); i.hasNext();) {
-			ServiceActionArgument arg = i.next();
-			if (arg.getName().equals(argumentName))
-				return arg;
-		}
-		return null;
+		return outputActionArgumentsIndex.get(argumentName);
 	}
 
 	/**
@@ -166,8 +167,8 @@ public class ServiceAction {
 			}
 		}
 		if (rtrVal.isEmpty())
-			rtrVal = null;
-		return rtrVal;
+			return null;
+		return Collections.unmodifiableList(rtrVal);
 	}
 
 	private List<String> getListForActionArgumentNames(List<ServiceActionArgument> args, String direction) {
@@ -181,7 +182,21 @@ public class ServiceAction {
 			}
 		}
 		if (rtrVal.isEmpty())
-			rtrVal = null;
+			return null;
+		return Collections.unmodifiableList(rtrVal);
+	}
+
+	private Map<String, ServiceActionArgument> getIndex(List<ServiceActionArgument> args) {
+		if (args == null)
+			return null;
+		Map<String, ServiceActionArgument> rtrVal = new HashMap<String, ServiceActionArgument>(args.size() * 4 / 3 + 1);
+		for (Iterator<ServiceActionArgument> itr = args.iterator(); itr.hasNext();) {
+			ServiceActionArgument actArg = itr.next();
+			// the first argument wins on duplicated names
+			if (!rtrVal.containsKey(actArg.getName())) {
+				rtrVal.put(actArg.getName(), actArg);
+			}
+		}
 		return rtrVal;
 	}
 }
@@ -0,0 +1,304 @@
+/*
+ *  This software copyright by various authors including the RPTools.net
+ *  development team, and licensed under the LGPL Version 3 or, at your
+ *  option, any later version.
+ *
+ *  Portions of this software were originally covered under the Apache
+ *  Software License, Version 1.1 or Version 2.0.
+ *
+ *  See the file LICENSE elsewhere in this distribution for license details.
+ */
+
+package net.sbbi.upnp.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.sbbi.upnp.ZeroByteFilterInputStream;
+
+/**
+ * Reads a service description (SCPD) document in a single forward pass with a StAX parser, filling the ServiceAction,
+ * ServiceActionArgument and ServiceStateVariable objects directly. Names are interned since the same argument and
+ * variable names are repeated across services. The actions arguments are linked to their related state variables once
+ * the whole document is read, the actions list usually comes before the state variables table. The objects are not
+ * bound to any UPNPService, their parent is left null.
+ *
+ * @version 1.0
+ */
+
+final class ServiceDescriptionReader {
+	final static String SERVICE_NAMESPACE = "urn:schemas-upnp-org:service-1-0";
+
+	private final static XMLInputFactory factory = XMLInputFactory.newInstance();
+
+	static {
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	}
+
+	private final String serviceId;
+
+	String specVersionMajor;
+	String specVersionMinor;
+	final Map<String, ServiceAction> actions = new HashMap<String, ServiceAction>();
+	final Map<String, ServiceStateVariable> stateVariables = new HashMap<String, ServiceStateVariable>();
+
+	private final List<ServiceActionArgument> arguments = new ArrayList<ServiceActionArgument>();
+	private final List<String> argumentsVariables = new ArrayList<String>();
+	private final List<String> argumentsActions = new ArrayList<String>();
+
+	private XMLStreamReader reader;
+
+	/**
+	 * Creates a new reader
+	 *
+	 * @param serviceId
+	 *            the id of the service described by the document, used for error messages
+	 */
+	ServiceDescriptionReader(String serviceId) {
+		this.serviceId = serviceId;
+	}
+
+	/**
+	 * Reads a service description document
+	 *
+	 * @param in
+	 *            the document stream, closed by this method
+	 * @throws IOException
+	 *             if the document cannot be read or parsed
+	 * @throws IllegalArgumentException
+	 *             if an action argument refers to an unknown state variable
+	 */
+	void read(InputStream in) throws IOException, IllegalArgumentException {
+		try {
+			reader = factory.createXMLStreamReader(new ZeroByteFilterInputStream(in));
+			try {
+				readDocument();
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException ex) {
+			IOException ioEx = new IOException("Unable to parse service description: " + ex.getMessage());
+			ioEx.initCause(ex);
+			throw ioEx;
+		} finally {
+			in.close();
+		}
+		linkStateVariables();
+	}
+
+	private void readDocument() throws XMLStreamException, IOException {
+		while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+			// skipping the prolog
+		}
+		if (!reader.isStartElement() || !isServiceElement("scpd")) {
+			throw new IOException("No 'upnp:scpd' root element");
+		}
+		while (nextChild()) {
+			if (isServiceElement("specVersion")) {
+				while (nextChild()) {
+					if (isServiceElement("major")) {
+						specVersionMajor = readText();
+					} else if (isServiceElement("minor")) {
+						specVersionMinor = readText();
+					} else {
+						skipElement();
+					}
+				}
+			} else if (isServiceElement("actionList")) {
+				while (nextChild()) {
+					if (isServiceElement("action")) {
+						readAction();
+					} else {
+						skipElement();
+					}
+				}
+			} else if (isServiceElement("serviceStateTable")) {
+				while (nextChild()) {
+					if (isServiceElement("stateVariable")) {
+						readStateVariable();
+					} else {
+						skipElement();
+					}
+				}
+			} else {
+				skipElement();
+			}
+		}
+	}
+
+	private void readAction() throws XMLStreamException {
+		ServiceAction action = new ServiceAction();
+		List<ServiceActionArgument> orderedActionArguments = null;
+		while (nextChild()) {
+			if (isServiceElement("name")) {
+				action.name = readText().intern();
+			} else if (isServiceElement("argumentList")) {
+				orderedActionArguments = new ArrayList<ServiceActionArgument>();
+				while (nextChild()) {
+					if (isServiceElement("argument")) {
+						orderedActionArguments.add(readArgument());
+					} else {
+						skipElement();
+					}
+				}
+			} else {
+				skipElement();
+			}
+		}
+		if (orderedActionArguments != null) {
+			for (int i = argumentsActions.size(); i < arguments.size(); i++) {
+				argumentsActions.add(action.name);
+			}
+			if (orderedActionArguments.size() > 0) {
+				action.setActionArguments(orderedActionArguments);
+			}
+		}
+		actions.put(action.getName(), action);
+	}
+
+	private ServiceActionArgument readArgument() throws XMLStreamException {
+		ServiceActionArgument arg = new ServiceActionArgument();
+		String stateVarName = null;
+		while (nextChild()) {
+			if (isServiceElement("name")) {
+				arg.name = readText().intern();
+			} else if (isServiceElement("direction")) {
+				String direction = readText();
+				arg.direction = direction.equals(ServiceActionArgument.DIRECTION_IN) ? ServiceActionArgument.DIRECTION_IN : ServiceActionArgument.DIRECTION_OUT;
+			} else if (isServiceElement("relatedStateVariable")) {
+				stateVarName = readText();
+			} else {
+				skipElement();
+			}
+		}
+		if (arg.direction == null) {
+			arg.direction = ServiceActionArgument.DIRECTION_OUT;
+		}
+		arguments.add(arg);
+		argumentsVariables.add(stateVarName);
+		return arg;
+	}
+
+	private void readStateVariable() throws XMLStreamException {
+		ServiceStateVariable srvStateVar = new ServiceStateVariable();
+		// sendEvents not provided defaulting according to specs to "yes"
+		String sendEventsLcl = reader.getAttributeValue(null, "sendEvents");
+		srvStateVar.sendEvents = sendEventsLcl != null && sendEventsLcl.trim().equalsIgnoreCase("no") ? false : true;
+		while (nextChild()) {
+			if (isServiceElement("name")) {
+				srvStateVar.name = readText().intern();
+			} else if (isServiceElement("dataType")) {
+				srvStateVar.dataType = readText().intern();
+			} else if (isServiceElement("defaultValue")) {
+				srvStateVar.defaultValue = readText();
+			} else if (isServiceElement("allowedValueList")) {
+				srvStateVar.allowedvalues = new HashSet<String>();
+				while (nextChild()) {
+					if (isServiceElement("allowedValue")) {
+						srvStateVar.allowedvalues.add(readText().intern());
+					} else {
+						skipElement();
+					}
+				}
+			} else if (isServiceElement("allowedValueRange")) {
+				while (nextChild()) {
+					if (isServiceElement("minimum")) {
+						srvStateVar.minimumRangeValue = readText();
+					} else if (isServiceElement("maximum")) {
+						srvStateVar.maximumRangeValue = readText();
+					} else if (isServiceElement("step")) {
+						srvStateVar.stepRangeValue = readText();
+					} else {
+						skipElement();
+					}
+				}
+			} else {
+				skipElement();
+			}
+		}
+		stateVariables.put(srvStateVar.getName(), srvStateVar);
+	}
+
+	private void linkStateVariables() throws IllegalArgumentException {
+		Iterator<String> actionNames = argumentsActions.iterator();
+		Iterator<String> stateVarNames = argumentsVariables.iterator();
+		for (Iterator<ServiceActionArgument> i = arguments.iterator(); i.hasNext();) {
+			ServiceActionArgument arg = i.next();
+			String actionName = actionNames.next();
+			String stateVarName = stateVarNames.next();
+			ServiceStateVariable stateVar = stateVarName != null ? stateVariables.get(stateVarName) : null;
+			if (stateVar == null) {
+				throw new IllegalArgumentException("Unable to find any state variable named " + stateVarName + " for service "
+						+ serviceId + " action " + actionName + " argument " + arg.name);
+			}
+			arg.relatedStateVariable = stateVar;
+		}
+	}
+
+	/**
+	 * Moves to the next child element of the current element
+	 *
+	 * @return true if positioned on a child start element, false if the current element end has been reached
+	 */
+	private boolean nextChild() throws XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				return true;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the text of the current element, the nested elements text is ignored
+	 *
+	 * @return the trimmed text
+	 */
+	private String readText() throws XMLStreamException {
+		StringBuilder text = new StringBuilder();
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			} else if (depth == 1 && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+				text.append(reader.getText());
+			}
+		}
+		return text.toString().trim();
+	}
+
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	private boolean isServiceElement(String name) {
+		return name.equals(reader.getLocalName()) && SERVICE_NAMESPACE.equals(reader.getNamespaceURI());
+	}
+}
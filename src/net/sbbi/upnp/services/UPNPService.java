@@ -14,21 +14,21 @@ package net.sbbi.upnp.services;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import net.sbbi.upnp.DocumentFetcher;
 import net.sbbi.upnp.JXPathParser;
 import net.sbbi.upnp.devices.UPNPDevice;
 import net.sbbi.upnp.devices.UPNPRootDevice;
 
 import org.apache.commons.jxpath.Container;
 import org.apache.commons.jxpath.JXPathContext;
-import org.apache.commons.jxpath.JXPathException;
-import org.apache.commons.jxpath.Pointer;
 import org.apache.commons.jxpath.xml.DocumentContainer;
 
 /**
@@ -52,7 +52,9 @@ public class UPNPService {
 	protected Map<String, ServiceStateVariable> UPNPServiceStateVariables;
 	private final String USN;
 
-	private boolean parsedSCPD = false;
+	private volatile boolean parsedSCPD = false;
+	private FutureTask<UPNPService> SCPDTask;
+	private Thread SCPDLoader;
 	private DocumentContainer UPNPService;
 
 	public UPNPService(JXPathContext serviceCtx, URL baseDeviceURL, UPNPDevice serviceOwnerDevice) throws MalformedURLException {
@@ -65,6 +67,37 @@ public class UPNPService {
 		USN = serviceOwnerDevice.getUDN().concat("::").concat(serviceType);
 	}
 
+	/**
+	 * Creates a service from the raw values of a device description service element
+	 *
+	 * @param serviceType
+	 *            the service type
+	 * @param serviceId
+	 *            the service id
+	 * @param SCPDURL
+	 *            the service description URL, may be relative to baseDeviceURL
+	 * @param controlURL
+	 *            the service control URL, may be relative to baseDeviceURL
+	 * @param eventSubURL
+	 *            the service events subscription URL, may be relative to baseDeviceURL
+	 * @param baseDeviceURL
+	 *            the base URL of the device
+	 * @param serviceOwnerDevice
+	 *            the device owning the service
+	 * @throws MalformedURLException
+	 *             if one of the service URLs is invalid
+	 */
+	public UPNPService(String serviceType, String serviceId, String SCPDURL, String controlURL, String eventSubURL, URL baseDeviceURL, UPNPDevice serviceOwnerDevice)
+			throws MalformedURLException {
+		this.serviceOwnerDevice = serviceOwnerDevice;
+		this.serviceType = serviceType;
+		this.serviceId = serviceId;
+		this.SCPDURL = UPNPRootDevice.getURL(SCPDURL, baseDeviceURL);
+		this.controlURL = UPNPRootDevice.getURL(controlURL, baseDeviceURL);
+		this.eventSubURL = UPNPRootDevice.getURL(eventSubURL, baseDeviceURL);
+		USN = serviceOwnerDevice.getUDN().concat("::").concat(serviceType);
+	}
+
 	public String getServiceType() {
 		return serviceType;
 	}
@@ -149,58 +182,17 @@ public class UPNPService {
 
 	private void parseSCPD() {
 		try {
-			DocumentContainer.registerXMLParser(DocumentContainer.MODEL_DOM, new JXPathParser());
-			UPNPService = new DocumentContainer(SCPDURL, DocumentContainer.MODEL_DOM);
-			JXPathContext context = JXPathContext.newContext(this);
-			context.registerNamespace("upnp", "urn:schemas-upnp-org:service-1-0");
-			Pointer rootPtr = null;
-			rootPtr = context.getPointer("UPNPService/upnp:scpd");
-			JXPathContext rootCtx = context.getRelativeContext(rootPtr);
-
-			specVersionMajor = Integer.parseInt((String) rootCtx.getValue("upnp:specVersion/upnp:major"));
-			specVersionMinor = Integer.parseInt((String) rootCtx.getValue("upnp:specVersion/upnp:minor"));
-
-			parseServiceStateVariables(rootCtx);
-
-			Pointer actionsListPtr = rootCtx.getPointer("upnp:actionList");
-			JXPathContext actionsListCtx = context.getRelativeContext(actionsListPtr);
-			Double arraySize = (Double) actionsListCtx.getValue("count( upnp:action )");
-			UPNPServiceActions = new HashMap<String, ServiceAction>();
-			for (int idx = 1; idx <= arraySize.intValue(); idx++) {
-				ServiceAction action = new ServiceAction();
-				action.name = (String) actionsListCtx.getValue("upnp:action[" + idx + "]/upnp:name");
-				action.parent = this;
-				Pointer argumentListPtr = null;
-				try {
-					argumentListPtr = actionsListCtx.getPointer("upnp:action[" + idx + "]/upnp:argumentList");
-				} catch (JXPathException ex) {
-					// there is no arguments list.
-				}
-				if (argumentListPtr != null) {
-					JXPathContext argumentListCtx = actionsListCtx.getRelativeContext(argumentListPtr);
-					Double arraySizeArgs = (Double) argumentListCtx.getValue("count( upnp:argument )");
-
-					List<ServiceActionArgument> orderedActionArguments = new ArrayList<ServiceActionArgument>();
-					for (int zed = 1; zed <= arraySizeArgs.intValue(); zed++) {
-						ServiceActionArgument arg = new ServiceActionArgument();
-						arg.name = (String) argumentListCtx.getValue("upnp:argument[" + zed + "]/upnp:name");
-						String direction = (String) argumentListCtx.getValue("upnp:argument[" + zed + "]/upnp:direction");
-						arg.direction = direction.equals(ServiceActionArgument.DIRECTION_IN) ? ServiceActionArgument.DIRECTION_IN : ServiceActionArgument.DIRECTION_OUT;
-						String stateVarName = (String) argumentListCtx.getValue("upnp:argument[" + zed + "]/upnp:relatedStateVariable");
-						ServiceStateVariable stateVar = UPNPServiceStateVariables.get(stateVarName);
-						if (stateVar == null) {
-							throw new IllegalArgumentException("Unable to find any state variable named " + stateVarName
-									+ " for service " + getServiceId() + " action " + action.name + " argument "
-									+ arg.name);
-						}
-						arg.relatedStateVariable = stateVar;
-						orderedActionArguments.add(arg);
-					}
-					if (arraySizeArgs.intValue() > 0) {
-						action.setActionArguments(orderedActionArguments);
-					}
-				}
-				UPNPServiceActions.put(action.getName(), action);
+			SCPDCache.Template template = SCPDCache.getInstance().get(this);
+			specVersionMajor = Integer.parseInt(template.specVersionMajor);
+			specVersionMinor = Integer.parseInt(template.specVersionMinor);
+			Map<String, ServiceStateVariable> stateVariables = template.copyStateVariables(this);
+			Map<String, ServiceAction> actions = template.copyActions(this, stateVariables);
+			if (isCompact()) {
+				UPNPServiceStateVariables = Collections.unmodifiableMap(stateVariables);
+				UPNPServiceActions = Collections.unmodifiableMap(actions);
+			} else {
+				UPNPServiceStateVariables = stateVariables;
+				UPNPServiceActions = actions;
 			}
 			parsedSCPD = true;
 		} catch (Throwable t) {
@@ -208,98 +200,135 @@ public class UPNPService {
 		}
 	}
 
-	private void parseServiceStateVariables(JXPathContext rootContext) {
-		Pointer serviceStateTablePtr = rootContext.getPointer("upnp:serviceStateTable");
-		JXPathContext serviceStateTableCtx = rootContext.getRelativeContext(serviceStateTablePtr);
-		Double arraySize = (Double) serviceStateTableCtx.getValue("count( upnp:stateVariable )");
-		UPNPServiceStateVariables = new HashMap<String, ServiceStateVariable>();
-		for (int idx = 0; idx < arraySize.intValue(); idx++) {
-			ServiceStateVariable srvStateVar = new ServiceStateVariable();
-			String sendEventsLcl = null;
-			try {
-				sendEventsLcl = (String) serviceStateTableCtx.getValue("upnp:stateVariable[" + idx + "]/@upnp:sendEvents");
-			} catch (JXPathException defEx) {
-				// sendEvents not provided defaulting according to specs to "yes"
-				sendEventsLcl = "yes";
-			}
-			srvStateVar.parent = this;
-			srvStateVar.sendEvents = sendEventsLcl.equalsIgnoreCase("no") ? false : true;
-			srvStateVar.name = (String) serviceStateTableCtx.getValue("upnp:stateVariable[" + idx + "]/upnp:name");
-			srvStateVar.dataType = (String) serviceStateTableCtx.getValue("upnp:stateVariable[" + idx + "]/upnp:dataType");
-			try {
-				srvStateVar.defaultValue = (String) serviceStateTableCtx.getValue("upnp:stateVariable[" + idx + "]/upnp:defaultValue");
-			} catch (JXPathException defEx) {
-				// can happend since default value is not
-			}
-			Pointer allowedValuesPtr = null;
-			try {
-				allowedValuesPtr = serviceStateTableCtx.getPointer("upnp:stateVariable[" + idx + "]/upnp:allowedValueList");
-			} catch (JXPathException ex) {
-				// there is no allowed values list.
-			}
-			if (allowedValuesPtr != null) {
-				JXPathContext allowedValuesCtx = serviceStateTableCtx.getRelativeContext(allowedValuesPtr);
-				Double arraySizeAllowed = (Double) allowedValuesCtx.getValue("count( upnp:allowedValue )");
-				srvStateVar.allowedvalues = new HashSet<String>();
-				for (int zed = 1; zed <= arraySizeAllowed.intValue(); zed++) {
-					String allowedValue = (String) allowedValuesCtx.getValue("upnp:allowedValue[" + zed + "]");
-					srvStateVar.allowedvalues.add(allowedValue);
-				}
-			}
+	/**
+	 * Starts fetching and parsing the service SCPD in the background, on a bounded pool of threads. The service
+	 * methods needing the SCPD wait for the running fetch instead of starting another one, and fetch the SCPD once by
+	 * themselves when the prefetch failed.
+	 * 
+	 * @return a future done once the SCPD is parsed, its get method throws an ExecutionException if the SCPD could not
+	 *         be loaded
+	 */
+	public Future<UPNPService> prefetchSCPD() {
+		FutureTask<UPNPService> task = getSCPDTask();
+		if (!task.isDone()) {
+			SCPDPrefetcher.getInstance().prefetch(task);
+		}
+		return task;
+	}
 
-			Pointer allowedValueRangePtr = null;
-			try {
-				allowedValueRangePtr = serviceStateTableCtx.getPointer("upnp:stateVariable[" + idx + "]/upnp:allowedValueRange");
-			} catch (JXPathException ex) {
-				// there is no allowed values list, can happen
-			}
-			if (allowedValueRangePtr != null) {
-				srvStateVar.minimumRangeValue = (String) serviceStateTableCtx.getValue("upnp:stateVariable[" + idx + "]/upnp:allowedValueRange/upnp:minimum");
-				srvStateVar.maximumRangeValue = (String) serviceStateTableCtx.getValue("upnp:stateVariable[" + idx + "]/upnp:allowedValueRange/upnp:maximum");
-				try {
-					srvStateVar.stepRangeValue = (String) serviceStateTableCtx.getValue("upnp:stateVariable[" + idx + "]/upnp:allowedValueRange/upnp:step");
-				} catch (JXPathException stepEx) {
-					// can happend since step is not mandatory
+	private synchronized FutureTask<UPNPService> getSCPDTask() {
+		if (SCPDTask == null) {
+			SCPDTask = new FutureTask<UPNPService>(new Callable<UPNPService>() {
+				public UPNPService call() {
+					synchronized (UPNPService.this) {
+						SCPDLoader = Thread.currentThread();
+					}
+					parseSCPD();
+					return UPNPService.this;
 				}
-			}
-			UPNPServiceStateVariables.put(srvStateVar.getName(), srvStateVar);
+			});
 		}
+		return SCPDTask;
+	}
 
+	/**
+	 * Forgets the parsed SCPD, the next calls needing it load it again
+	 */
+	synchronized void resetSCPD() {
+		parsedSCPD = false;
+		SCPDTask = null;
 	}
 
 	private void lazyInitiate() {
-		if (!parsedSCPD)
-			synchronized (this) {
-				if (!parsedSCPD)
-					parseSCPD();
+		if (parsedSCPD)
+			return;
+		for (boolean retry = true;; retry = false) {
+			FutureTask<UPNPService> task = getSCPDTask();
+			// runs the parsing in this thread unless already started by a prefetch
+			task.run();
+			try {
+				task.get();
+				return;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted during lazy SCDP file parsing at " + SCPDURL, ex);
+			} catch (ExecutionException ex) {
+				boolean ownFailure;
+				synchronized (this) {
+					ownFailure = SCPDLoader == Thread.currentThread();
+					// the next call will try again
+					if (SCPDTask == task)
+						SCPDTask = null;
+				}
+				if (!ownFailure && retry) {
+					// the failure of a prefetch may be transient, this caller fetches once by itself
+					continue;
+				}
+				if (ex.getCause() instanceof RuntimeException)
+					throw (RuntimeException) ex.getCause();
+				throw new RuntimeException("Error during lazy SCDP file parsing at " + SCPDURL, ex.getCause());
 			}
+		}
 	}
 
 	/**
-	 * Used for JXPath parsing, do not use this method
+	 * Used for JXPath parsing, do not use this method. The service description is read without JXPath, the container
+	 * is only created on the first call and loads the SCPD file again. In compact model mode the container is not kept.
 	 * 
 	 * @return a Container object for Xpath parsing capabilities
 	 */
-	public Container getUPNPService() {
+	public synchronized Container getUPNPService() {
+		if (UPNPService == null) {
+			DocumentContainer.registerXMLParser(DocumentContainer.MODEL_DOM, new JXPathParser());
+			DocumentContainer container = DocumentFetcher.getInstance().createContainer(SCPDURL);
+			if (isCompact()) {
+				return container;
+			}
+			UPNPService = container;
+		}
 		return UPNPService;
 	}
 
+	/**
+	 * Retrieves the service description XML data, the data is not kept by the service in compact model mode
+	 * 
+	 * @return the service description XML data as a String
+	 */
 	public String getSCDPData() {
-		if (SCPDURLData == null) {
+		String data = SCPDURLData;
+		if (data == null) {
 			try {
-				java.io.InputStream in = SCPDURL.openConnection().getInputStream();
-				int readen = 0;
-				byte[] buff = new byte[512];
-				StringBuffer strBuff = new StringBuffer();
-				while ((readen = in.read(buff)) != -1) {
-					strBuff.append(new String(buff, 0, readen));
-				}
-				in.close();
-				SCPDURLData = strBuff.toString();
+				data = DocumentFetcher.getInstance().fetchDocument(SCPDURL);
 			} catch (IOException ioEx) {
 				return null;
 			}
+			if (!isCompact()) {
+				SCPDURLData = data;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Tells if the service belongs to a devices tree built in compact model mode
+	 * 
+	 * @return true if the owning root device is compact
+	 */
+	private boolean isCompact() {
+		UPNPRootDevice root = getRootDevice();
+		return root != null && root.isCompact();
+	}
+
+	/**
+	 * Finds the root device of the devices tree owning the service
+	 * 
+	 * @return the root device or null if the tree has none
+	 */
+	UPNPRootDevice getRootDevice() {
+		UPNPDevice device = serviceOwnerDevice;
+		while (device.getDirectParent() != null) {
+			device = device.getDirectParent();
 		}
-		return SCPDURLData;
+		return device instanceof UPNPRootDevice ? (UPNPRootDevice) device : null;
 	}
 }